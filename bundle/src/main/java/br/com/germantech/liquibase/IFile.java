@@ -17,6 +17,9 @@
 package br.com.germantech.liquibase;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
 import java.util.List;
 
 public interface IFile {
@@ -26,10 +29,29 @@ public interface IFile {
 	String getPath();
 	String getName();
 	List<IFile> listFiles();
+	/**
+	 * Iterates over the files of the directory in alphabetical order. Only the sort keys of the files are held in
+	 * memory; the file objects are created one by one while iterating.
+	 * @return the iterator of the files. It is empty if this is not a directory.
+	 */
+	Iterator<IFile> iterateFiles();
 	IFile getParentFile();
 	/**
 	 * Returns the absolute path of the file.
 	 * @return absolute path, without leading slash if it's a directory.
 	 */
 	String getAbsolutePath();
+	/**
+	 * Opens the content of the file.
+	 * @return the stream of the content. The caller must close it.
+	 * @throws IOException if the file does not exist or it cannot be read.
+	 */
+	InputStream openStream() throws IOException;
+	/**
+	 * Opens the content of the file as a channel. File system files return a {@link java.nio.channels.FileChannel},
+	 * so the content is read without an intermediate stream buffer.
+	 * @return the channel of the content. The caller must close it.
+	 * @throws IOException if the file does not exist or it cannot be read.
+	 */
+	ReadableByteChannel openChannel() throws IOException;
 }
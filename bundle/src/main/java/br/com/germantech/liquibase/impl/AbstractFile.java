@@ -0,0 +1,103 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.com.germantech.liquibase.impl;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import br.com.germantech.liquibase.IFile;
+
+/**
+ * The behavior that is shared by the {@link IFile} implementations.
+ */
+public abstract class AbstractFile implements IFile {
+
+	private static final String[] NO_KEYS = new String[0];
+
+	static String removeTrailingSlash(String str) {
+		if (str.endsWith("/")) {
+			return str.substring(0, str.length() - 1);
+		}
+		return str;
+	}
+
+	/**
+	 * Creates a file of the directory.
+	 * @param key the sort key of the file that was returned by {@link #listChildKeys()}.
+	 */
+	protected abstract IFile createChild(String key);
+
+	@Override
+	public Iterator<IFile> iterateFiles() {
+		String[] keys = listChildKeys();
+		if (keys == null) {
+			keys = NO_KEYS;
+		}
+		Arrays.sort(keys);
+		final String[] sortedKeys = keys;
+		return new Iterator<IFile>() {
+
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < sortedKeys.length;
+			}
+
+			@Override
+			public IFile next() {
+				if (index >= sortedKeys.length) {
+					throw new NoSuchElementException();
+				}
+				String key = sortedKeys[index];
+				// The key is not needed any more
+				sortedKeys[index++] = null;
+				return createChild(key);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the sort keys of the files of the directory. The alphabetical order of the keys is the order of the
+	 * files.
+	 * @return the keys or <code>null</code> if this is not a directory.
+	 */
+	protected abstract String[] listChildKeys();
+
+	/**
+	 * Wraps the stream of the file by default.
+	 */
+	@Override
+	public ReadableByteChannel openChannel() throws IOException {
+		return Channels.newChannel(openStream());
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + getPath() + "]";
+	}
+
+}
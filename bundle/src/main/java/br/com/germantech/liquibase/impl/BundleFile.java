@@ -16,71 +16,107 @@
  */
 package br.com.germantech.liquibase.impl;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.Set;
 
 import org.osgi.framework.Bundle;
 
 import br.com.germantech.liquibase.IFile;
 import liquibase.logging.LogFactory;
+import liquibase.logging.LogLevel;
 import liquibase.logging.Logger;
 import liquibase.util.file.FilenameUtils;
 
-public class BundleFile implements IFile {
+/**
+ * A file or directory within a bundle. The resource of the file is looked up on first use and kept together with
+ * its canonical path. The files that are returned by {@link #getParentFile()}, {@link #listFiles()} and
+ * {@link #iterateFiles()} share a path cache with the file that created them, so walking a directory tree creates
+ * every file once and a listed file knows whether it is a directory without looking up its resource.
+ */
+public class BundleFile extends AbstractFile {
+
+	private static void debug(String format, Object... args) {
+		Logger logger = LogFactory.getInstance().getLog();
+		if (logger.getLogLevel() == LogLevel.DEBUG) {
+			logger.debug(String.format(format, args));
+		}
+	}
 
 	private final Bundle bundle;
-	private String filePath;
+	private final String filePath;
+	private final IFile parentPath;
+
+	/**
+	 * The files of the bundle that were created by this file or its relatives, by their paths.
+	 */
+	private final Map<String, BundleFile> files;
+
+	/**
+	 * Whether the file is a directory if it was listed by its parent, otherwise <code>null</code>.
+	 */
+	private final Boolean listedDirectory;
+
+	/**
+	 * The resolved path of the resource or an empty string if the file does not exist. Null until the file is
+	 * resolved.
+	 */
+	private volatile String canonicalPath;
 	private URL resource;
-	private Logger logger = LogFactory.getInstance().getLog();
-	
-	
+
 	public BundleFile(Bundle bundle, String fileName) {
 		this(bundle, null, fileName);
 	}
-	
+
 	public BundleFile(Bundle bundle, IFile parentPath, String fileName) {
+		this(bundle, parentPath, fileName, new HashMap<String, BundleFile>(), null);
+		if (parentPath == null) {
+			files.put(fileName, this);
+		}
+	}
+
+	private BundleFile(Bundle bundle, IFile parentPath, String fileName, Map<String, BundleFile> files,
+			Boolean listedDirectory) {
 		super();
 		this.bundle = bundle;
 		this.filePath = fileName;
-		String fullPath = null;
-		// It can go wrong
-		try {
-			IFile parent = parentPath == null ? new EmptyFile() : parentPath;
-			fullPath = parent.getCanonicalPath()+fileName;
-			
-			logger.debug(String.format("@[%s] BundleFile created with fileName [%s] and parent file [%s]. Resulting path: [%s]", hashCode(), fileName, parent.getCanonicalPath(), fullPath));
-			
-			// Try to translate the path
-			String resolvedFileName = FilenameUtils.normalize(fullPath);
-			this.resource = bundle.getResource(resolvedFileName);
-			
-			logger.debug(String.format("@[%s] BundleFile.resource = [%s]. Path used [%s], resolved: [%s], plugin: [%s]", hashCode(), resource, fullPath, resolvedFileName, bundle.getSymbolicName()));
-		} catch (IOException e) {
-			LogFactory.getInstance().getLog().info(String.format("@[%s] File not found [%s]", hashCode(), fullPath), e);
-		}
-		
+		this.parentPath = parentPath;
+		this.files = files;
+		this.listedDirectory = listedDirectory;
 	}
 
 	@Override
 	public boolean exists() {
 		// TODO What if we have a relative path?
+		if (listedDirectory != null) {
+			return true;
+		}
+		resolve();
 		return resource != null;
 	}
 
 	@Override
 	public boolean isDirectory() {
-		return resource != null && resource.getPath().endsWith("/");
+		if (listedDirectory != null) {
+			return listedDirectory;
+		}
+		return resolve().endsWith("/");
 	}
 
 	@Override
 	public String getCanonicalPath() {
 		// This guy should return the "resolved" path, in case the resource
 		// was created with a relative path
-		return resource == null ? "" : resource.getPath();
+		return resolve();
 	}
 
 	@Override
@@ -90,31 +126,65 @@ public class BundleFile implements IFile {
 
 	@Override
 	public List<IFile> listFiles() {
-		if(isDirectory()) {
-			Enumeration<String> entries = bundle.getEntryPaths(filePath);
-        	// Nothing was found
-        	if(entries == null)
-        		return Collections.emptyList();
-        	
-        	// Create files
-        	Vector<IFile> files = new Vector<IFile>();
-        	
-        	while (entries.hasMoreElements()) {
-        		URL entry = bundle.getEntry(entries.nextElement());
-        		if(entry != null)
-        			files.add(new BundleFile(bundle, entry.getPath()));
-			}
-        	
-			return files;
-		} else
+		String[] keys = listChildKeys();
+		// Nothing was found
+		if(keys == null)
 			return Collections.emptyList();
+		
+		List<IFile> files = new ArrayList<IFile>(keys.length);
+		for (String key : keys) {
+			files.add(createChild(key));
+		}
+		return files;
+	}
+
+	@Override
+	protected IFile createChild(String key) {
+		return getFile("/" + key, Boolean.valueOf(key.endsWith("/")));
+	}
+
+	/**
+	 * The keys of the files are their entry paths. The entries are found the same way as by
+	 * {@link Bundle#findEntries(String, String, boolean)}, so the entries of the fragments are listed, too.
+	 */
+	@Override
+	protected String[] listChildKeys() {
+		Set<String> keys = new LinkedHashSet<String>();
+		Enumeration<URL> entries = bundle.findEntries(filePath, "*", false);
+		if (entries != null) {
+			while (entries.hasMoreElements()) {
+				keys.add(entries.nextElement().getPath().substring(1));
+			}
+		} else {
+			// The bundle cannot be resolved, only its own entries are available
+			Enumeration<String> entryPaths = bundle.getEntryPaths(filePath);
+			if (entryPaths == null) {
+				return null;
+			}
+			while (entryPaths.hasMoreElements()) {
+				keys.add(entryPaths.nextElement());
+			}
+		}
+		if (keys.isEmpty()) {
+			return null;
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	@Override
+	public InputStream openStream() throws IOException {
+		resolve();
+		if (resource == null || isDirectory()) {
+			throw new FileNotFoundException(filePath + " not found in bundle " + bundle.getSymbolicName());
+		}
+		return resource.openStream();
 	}
 
 	@Override
 	public IFile getParentFile() {
 		String fullPath = FilenameUtils.getFullPath(filePath);
-		logger.debug(String.format("@[%s].getParentFile for [%s] = [%s]", hashCode(), filePath, fullPath));
-		return new BundleFile(bundle, fullPath);
+		debug("@[%s].getParentFile for [%s] = [%s]", hashCode(), filePath, fullPath);
+		return getFile(fullPath, null);
 	}
 
 	@Override
@@ -127,8 +197,56 @@ public class BundleFile implements IFile {
 		return removeTrailingSlash(getCanonicalPath());
 	}
 
-	private String removeTrailingSlash(String str) {
-		return str.replaceAll("/$", "");
+	/**
+	 * Returns a file of the bundle from the path cache of this file.
+	 * 
+	 * @param fileName
+	 *            The path of the file within the bundle.
+	 * @param directory
+	 *            Whether the file is a directory if it was listed, otherwise <code>null</code>.
+	 */
+	private BundleFile getFile(String fileName, Boolean directory) {
+		synchronized (files) {
+			BundleFile file = files.get(fileName);
+			if (file == null) {
+				file = new BundleFile(bundle, null, fileName, files, directory);
+				files.put(fileName, file);
+			}
+			return file;
+		}
 	}
-	
+
+	/**
+	 * Looks up the resource of the file if it was not looked up yet.
+	 * 
+	 * @return The canonical path of the file.
+	 */
+	private String resolve() {
+		String path = canonicalPath;
+		if (path != null) {
+			return path;
+		}
+		synchronized (this) {
+			if (canonicalPath == null) {
+				String fullPath = null;
+				// It can go wrong
+				try {
+					String parentCanonicalPath = parentPath == null ? "" : parentPath.getCanonicalPath();
+					fullPath = parentCanonicalPath + filePath;
+
+					// Try to translate the path
+					String resolvedFileName = FilenameUtils.normalize(fullPath);
+					this.resource = resolvedFileName == null ? null : bundle.getResource(resolvedFileName);
+
+					debug("@[%s] BundleFile.resource = [%s]. Path used [%s], resolved: [%s], plugin: [%s]", hashCode(),
+							resource, fullPath, resolvedFileName, bundle.getSymbolicName());
+				} catch (IOException e) {
+					LogFactory.getInstance().getLog().info(String.format("@[%s] File not found [%s]", hashCode(), fullPath), e);
+				}
+				canonicalPath = resource == null ? "" : resource.getPath();
+			}
+			return canonicalPath;
+		}
+	}
+
 }
@@ -16,13 +16,15 @@
  */
 package br.com.germantech.liquibase.impl;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
 
 import br.com.germantech.liquibase.IFile;
 
-public class EmptyFile implements IFile {
+public class EmptyFile extends AbstractFile {
 	
 	public EmptyFile() {}
 
@@ -31,6 +33,16 @@ public class EmptyFile implements IFile {
 		return Collections.emptyList();
 	}
 
+	@Override
+	protected IFile createChild(String key) {
+		return new EmptyFile();
+	}
+
+	@Override
+	protected String[] listChildKeys() {
+		return null;
+	}
+
 	@Override
 	public boolean exists() {
 		return false;
@@ -51,6 +63,11 @@ public class EmptyFile implements IFile {
 		return "";
 	}
 
+	@Override
+	public InputStream openStream() throws IOException {
+		throw new FileNotFoundException("Empty file has no content");
+	}
+
 	@Override
 	public IFile getParentFile() {
 		return null;
@@ -17,48 +17,110 @@
 package br.com.germantech.liquibase.impl;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import br.com.germantech.liquibase.IFile;
 
-public class NormalFile implements IFile {
-	
+/**
+ * A file of the file system. The existence, the directory flag and the canonical path of the file are read once and
+ * kept, so the object reflects the state of the file system when they were first requested. The files that are
+ * listed by a directory get their attributes from the listing, so walking a directory tree reads the attributes of
+ * every file only once.
+ */
+public class NormalFile extends AbstractFile {
+
+	private static final int ATTRIBUTE_DIRECTORY = 2;
+
+	private static final int ATTRIBUTE_EXISTS = 1;
+
+	private static final int ATTRIBUTES_UNKNOWN = -1;
+
+	/**
+	 * The suffix of the keys of the listed directories.
+	 */
+	private static final String DIRECTORY_KEY_SUFFIX = "/";
+
 	private final File file;
 
+	private volatile int attributes = ATTRIBUTES_UNKNOWN;
+
+	private volatile String canonicalPath;
+
 	public NormalFile(File file) {
 		super();
 		this.file = file;
 	}
 
+	/**
+	 * Creates a file that was listed by its directory, so it exists.
+	 */
+	private NormalFile(File file, boolean directory) {
+		this(file);
+		this.attributes = ATTRIBUTE_EXISTS | (directory ? ATTRIBUTE_DIRECTORY : 0);
+	}
+
 	@Override
 	public List<IFile> listFiles() {
 		File[] files = file.listFiles();
 		if(files != null) {
 			List<IFile> iFiles = new ArrayList<IFile>();
 			for (File file : files) {
-				iFiles.add(new NormalFile(file));
+				iFiles.add(new NormalFile(file, file.isDirectory()));
 			}
 			return iFiles;
 		}
 		return Collections.emptyList();
 	}
 
+	@Override
+	protected IFile createChild(String key) {
+		if (key.endsWith(DIRECTORY_KEY_SUFFIX)) {
+			return new NormalFile(new File(file, key.substring(0, key.length() - 1)), true);
+		}
+		return new NormalFile(new File(file, key), false);
+	}
+
+	/**
+	 * The keys of the files are their names, the names of the directories end with a slash.
+	 */
+	@Override
+	protected String[] listChildKeys() {
+		File[] files = file.listFiles();
+		if (files == null) {
+			return null;
+		}
+		String[] keys = new String[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			keys[i] = files[i].isDirectory() ? name + DIRECTORY_KEY_SUFFIX : name;
+		}
+		return keys;
+	}
+
 	@Override
 	public boolean exists() {
-		return file.exists();
+		return (readAttributes() & ATTRIBUTE_EXISTS) != 0;
 	}
 
 	@Override
 	public boolean isDirectory() {
-		return file.isDirectory();
+		return (readAttributes() & ATTRIBUTE_DIRECTORY) != 0;
 	}
 
 	@Override
 	public String getCanonicalPath() throws IOException {
-		return file.getCanonicalPath();
+		String path = canonicalPath;
+		if (path == null) {
+			path = file.getCanonicalPath();
+			canonicalPath = path;
+		}
+		return path;
 	}
 
 	@Override
@@ -66,9 +128,24 @@ public class NormalFile implements IFile {
 		return file.getName();
 	}
 
+	@Override
+	public InputStream openStream() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	@Override
+	public ReadableByteChannel openChannel() throws IOException {
+		return new FileInputStream(file).getChannel();
+	}
+
 	@Override
 	public IFile getParentFile() {
-		return new NormalFile(file.getParentFile());
+		File parentFile = file.getParentFile();
+		// The parent of an existing file is an existing directory
+		if (parentFile != null && attributes != ATTRIBUTES_UNKNOWN && exists()) {
+			return new NormalFile(parentFile, true);
+		}
+		return new NormalFile(parentFile);
 	}
 	
 	@Override
@@ -80,4 +157,20 @@ public class NormalFile implements IFile {
 		return file.getAbsolutePath();
 	}
 
+	private int readAttributes() {
+		int result = attributes;
+		if (result == ATTRIBUTES_UNKNOWN) {
+			// A directory exists, so one call is enough for directories
+			if (file.isDirectory()) {
+				result = ATTRIBUTE_EXISTS | ATTRIBUTE_DIRECTORY;
+			} else if (file.exists()) {
+				result = ATTRIBUTE_EXISTS;
+			} else {
+				result = 0;
+			}
+			attributes = result;
+		}
+		return result;
+	}
+
 }
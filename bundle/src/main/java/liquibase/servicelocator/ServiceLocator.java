@@ -23,14 +23,22 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.jar.Manifest;
 
 import org.everit.osgi.liquibase.bundle.OSGiResourceAccessor;
 import org.everit.osgi.liquibase.bundle.internal.BundlePackageScanClassResolver;
+import org.everit.osgi.liquibase.bundle.internal.ServiceIndex;
 import org.everit.osgi.liquibase.bundle.internal.SimpleClassLoaderResourceAccessor;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.FrameworkUtil;
@@ -52,7 +60,7 @@ import liquibase.util.StringUtils;
  */
 public class ServiceLocator {
 
-    private static ServiceLocator instance;
+    private static volatile ServiceLocator instance;
 
     static {
         reset();
@@ -60,11 +68,12 @@ public class ServiceLocator {
 
     private ResourceAccessor resourceAccessor;
 
-    private Map<Class, List<Class>> classesBySuperclass;
+    private volatile ConcurrentMap<Class, Future<Class[]>> classesBySuperclass;
     private List<String> packagesToScan;
     private Logger logger = new DefaultLogger(); // cannot look up regular logger because you get a stackoverflow since
                                                  // we are in the servicelocator
     private PackageScanClassResolver classResolver;
+    private ServiceIndex serviceIndex;
 
     protected ServiceLocator() {
         this.classResolver = defaultClassLoader();
@@ -105,12 +114,12 @@ public class ServiceLocator {
 
     public void setResourceAccessor(ResourceAccessor resourceAccessor) {
         this.resourceAccessor = resourceAccessor;
-        this.classesBySuperclass = new HashMap<Class, List<Class>>();
+        this.classesBySuperclass = new ConcurrentHashMap<Class, Future<Class[]>>();
 
         this.classResolver.setClassLoaders(new HashSet<ClassLoader>(Arrays.asList(new ClassLoader[] { resourceAccessor
                 .toClassLoader() })));
 
-        packagesToScan = new ArrayList<String>();
+        packagesToScan = new CopyOnWriteArrayList<String>();
         String packagesToScanSystemProp = System.getProperty("liquibase.scan.packages");
         if ((packagesToScanSystemProp != null)
                 && ((packagesToScanSystemProp = StringUtils.trimToNull(packagesToScanSystemProp)) != null)) {
@@ -194,22 +203,48 @@ public class ServiceLocator {
         return classes[0];
     }
 
-    public <T> Class<? extends T>[] findClasses(Class<T> requiredInterface) throws ServiceNotFoundException {
+    /**
+     * Returns the implementations of an interface. The implementations of an interface are looked up only once, even
+     * if more threads ask for them at the same time. The returned array is shared between the callers, so it must not
+     * be modified.
+     */
+    public <T> Class<? extends T>[] findClasses(final Class<T> requiredInterface) throws ServiceNotFoundException {
         logger.debug("ServiceLocator.findClasses for " + requiredInterface.getName());
 
-        try {
-            Class.forName(requiredInterface.getName());
+        ConcurrentMap<Class, Future<Class[]>> classesBySuperclass = this.classesBySuperclass;
+        Future<Class[]> classes = classesBySuperclass.get(requiredInterface);
+        if (classes == null) {
+            FutureTask<Class[]> task = new FutureTask<Class[]>(new Callable<Class[]>() {
+
+                @Override
+                public Class[] call() throws Exception {
+                    Class.forName(requiredInterface.getName());
 
-            if (!classesBySuperclass.containsKey(requiredInterface)) {
-                classesBySuperclass.put(requiredInterface, findClassesImpl(requiredInterface));
+                    HashSet<Class> uniqueClasses = new HashSet<Class>(findClassesImpl(requiredInterface));
+                    return uniqueClasses.toArray(new Class[uniqueClasses.size()]);
+                }
+            });
+            classes = classesBySuperclass.putIfAbsent(requiredInterface, task);
+            if (classes == null) {
+                classes = task;
+                task.run();
             }
-        } catch (Exception e) {
-            throw new ServiceNotFoundException(e);
         }
 
-        List<Class> classes = classesBySuperclass.get(requiredInterface);
-        HashSet<Class> uniqueClasses = new HashSet<Class>(classes);
-        return uniqueClasses.toArray(new Class[uniqueClasses.size()]);
+        try {
+            return classes.get();
+        } catch (ExecutionException e) {
+            // The lookup is repeated on the next call
+            classesBySuperclass.remove(requiredInterface, classes);
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServiceNotFoundException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceNotFoundException(e);
+        }
     }
 
     public Object newInstance(Class requiredInterface) throws ServiceNotFoundException {
@@ -225,9 +260,41 @@ public class ServiceLocator {
 
         List<Class> classes = new ArrayList<Class>();
 
-        classResolver.addClassLoader(resourceAccessor.toClassLoader());
-        for (Class<?> clazz : classResolver.findImplementations(requiredInterface,
-                packagesToScan.toArray(new String[packagesToScan.size()]))) {
+        Set<Class<?>> implementations = new LinkedHashSet<Class<?>>();
+        List<String> packagesToSearch = packagesToScan;
+        List<String> candidates = (serviceIndex != null) ? serviceIndex.getCandidates(requiredInterface.getName())
+                : null;
+        if (candidates != null) {
+            // Only the packages that are not in the index must be scanned
+            packagesToSearch = new ArrayList<String>();
+            for (String packageName : packagesToScan) {
+                if (!serviceIndex.covers(packageName)) {
+                    packagesToSearch.add(packageName);
+                }
+            }
+            ClassLoader classLoader = resourceAccessor.toClassLoader();
+            for (String candidate : candidates) {
+                try {
+                    Class<?> clazz = classLoader.loadClass(candidate);
+                    if (requiredInterface.isAssignableFrom(clazz)) {
+                        implementations.add(clazz);
+                    }
+                } catch (ClassNotFoundException e) {
+                    logger.debug("Cant load class: " + e.getMessage());
+                } catch (LinkageError e) {
+                    logger.debug("Cant load class " + candidate + ": " + e.getMessage());
+                }
+            }
+        }
+        // The class resolvers are not thread safe
+        synchronized (classResolver) {
+            classResolver.addClassLoader(resourceAccessor.toClassLoader());
+            if (!packagesToSearch.isEmpty()) {
+                implementations.addAll(classResolver.findImplementations(requiredInterface,
+                        packagesToSearch.toArray(new String[packagesToSearch.size()])));
+            }
+        }
+        for (Class<?> clazz : implementations) {
             if (clazz.getAnnotation(LiquibaseService.class) != null
                     && clazz.getAnnotation(LiquibaseService.class).skip()) {
                 continue;
@@ -260,21 +327,29 @@ public class ServiceLocator {
     }
 
     public static void reset() {
-        instance = null;
+        // The locator is published only when it is complete, so no thread can see it without its service index
+        ServiceLocator newInstance = null;
         try {
             Bundle bundle = FrameworkUtil.getBundle(ServiceLocator.class);
             if (bundle != null) {
                 BundlePackageScanClassResolver classResolver = new BundlePackageScanClassResolver(bundle);
                 ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle);
-                instance = new ServiceLocator(classResolver, resourceAccessor);
+                newInstance = new ServiceLocator(classResolver, resourceAccessor);
+                try {
+                    newInstance.serviceIndex = ServiceIndex.read(bundle);
+                } catch (IOException e) {
+                    newInstance.logger.warning("Cannot read the service index, the packages are scanned", e);
+                }
             }
         } catch (NoClassDefFoundError e) {
             // We are not in OSGi environment
 
         }
-        if (instance == null) {
-            instance = new ServiceLocator(new SimpleClassLoaderResourceAccessor(ServiceLocator.class.getClassLoader()));
+        if (newInstance == null) {
+            newInstance =
+                    new ServiceLocator(new SimpleClassLoaderResourceAccessor(ServiceLocator.class.getClassLoader()));
         }
+        instance = newInstance;
     }
 
     protected Logger getLogger() {
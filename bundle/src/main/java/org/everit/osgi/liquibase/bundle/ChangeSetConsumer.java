@@ -0,0 +1,40 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle;
+
+import liquibase.changelog.ChangeSet;
+import liquibase.exception.LiquibaseException;
+
+/**
+ * Receives the change sets of a changelog tree in document order as soon as they are parsed. The change sets are
+ * not collected in the changelog when a consumer is used, so the size of the tree does not affect the memory that is
+ * needed by the parse. A streamed changelog tree cannot have changelog level preconditions and its rollback elements
+ * cannot refer to other change sets by id, the parse fails with a
+ * {@link liquibase.exception.ChangeLogParseException} if it does.
+ */
+public interface ChangeSetConsumer {
+
+    /**
+     * Called when a change set is parsed completely.
+     *
+     * @param changeSet
+     *            The change set.
+     * @throws LiquibaseException
+     *             if the change set cannot be accepted. The exception stops the parse.
+     */
+    void accept(ChangeSet changeSet) throws LiquibaseException;
+}
@@ -0,0 +1,456 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle;
+
+import java.util.AbstractSequentialList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.visitor.ValidatingVisitor;
+import liquibase.database.Database;
+import liquibase.database.ObjectQuotingStrategy;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.exception.LockException;
+import liquibase.exception.ValidationFailedException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.logging.LogFactory;
+import liquibase.parser.ChangeLogParser;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.ResourceAccessor;
+
+import org.everit.osgi.liquibase.bundle.internal.parser.OSGiXMLChangeLogSAXParser;
+import org.everit.osgi.liquibase.bundle.internal.parser.ParseContext;
+
+/**
+ * Parses a changelog tree on a background thread and makes its change sets available in document order while the
+ * parse is still running, so the execution of the first change sets can overlap with the parse of the rest. The
+ * parser thread blocks when the given number of parsed change sets are waiting for the caller.
+ *
+ * <p>
+ * If the stream is opened with a database, the change sets are validated the same way as
+ * {@link DatabaseChangeLog#validate(Database, String...)} does, but as they arrive: {@link #next()} throws a
+ * {@link ValidationFailedException} as soon as a change set is invalid, has the same id as a previous one or its
+ * checksum does not match the executed one.
+ *
+ * <p>
+ * If the parse fails, {@link #next()} throws the exception of the parse at the next call, even if there are parsed
+ * change sets that were not returned yet. The change sets that were returned before are not affected, every change
+ * set is executed in its own transaction as usual.
+ *
+ * <p>
+ * A streamed changelog tree cannot have changelog level preconditions, as Liquibase checks them for the whole tree
+ * before the first change set is executed, and its rollback elements cannot refer to other change sets by id, as
+ * the streamed change sets are not kept in memory. The parse fails with a {@link ChangeLogParseException} in both
+ * cases instead of weakening them.
+ *
+ * <p>
+ * The change sets of the stream are usually executed with
+ * {@link #update(String, ChangeLogParameters, ResourceAccessor, int, Database, Contexts)} that works the same way as
+ * {@link Liquibase#update(Contexts)}.
+ */
+public final class ChangeSetStream {
+
+    /**
+     * Queue entry that marks the end of the parse.
+     */
+    private static final Object END_OF_STREAM = new Object();
+
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    /**
+     * Carries the exception of the stream through the iterator of a {@link StreamedChangeLog}.
+     */
+    private static final class StreamFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        StreamFailure(final LiquibaseException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * The root changelog of a streamed update. Its change sets are taken from the stream while they are iterated, so
+     * they can be iterated only once and only forward, that is all {@link liquibase.changelog.ChangeLogIterator}
+     * needs for an update.
+     */
+    private static final class StreamedChangeLog extends DatabaseChangeLog {
+
+        private final ChangeSetStream stream;
+
+        StreamedChangeLog(final String physicalFilePath, final ChangeLogParameters changeLogParameters,
+                final ChangeSetStream stream) {
+            super(physicalFilePath);
+            setChangeLogParameters(changeLogParameters);
+            this.stream = stream;
+        }
+
+        @Override
+        public void addChangeSet(final ChangeSet changeSet) {
+            throw new UnsupportedOperationException("The change sets of a streamed changelog are parsed");
+        }
+
+        @Override
+        public List<ChangeSet> getChangeSets() {
+            return new AbstractSequentialList<ChangeSet>() {
+
+                @Override
+                public Iterator<ChangeSet> iterator() {
+                    return new Iterator<ChangeSet>() {
+
+                        private ChangeSet nextChangeSet;
+
+                        private boolean fetched = false;
+
+                        @Override
+                        public boolean hasNext() {
+                            if (!fetched) {
+                                try {
+                                    nextChangeSet = stream.next();
+                                } catch (LiquibaseException e) {
+                                    throw new StreamFailure(e);
+                                }
+                                fetched = true;
+                            }
+                            return nextChangeSet != null;
+                        }
+
+                        @Override
+                        public ChangeSet next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            fetched = false;
+                            return nextChangeSet;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public ListIterator<ChangeSet> listIterator(final int index) {
+                    throw new UnsupportedOperationException("A streamed changelog can only be iterated forward");
+                }
+
+                @Override
+                public int size() {
+                    throw new UnsupportedOperationException("The size of a streamed changelog is not known");
+                }
+            };
+        }
+    }
+
+    /**
+     * Runs the update of a streamed changelog with the same history tables, filters and visitor as
+     * {@link Liquibase#update(Contexts)}.
+     */
+    private static final class StreamUpdater extends Liquibase {
+
+        StreamUpdater(final String changeLogFile, final ResourceAccessor resourceAccessor, final Database database) {
+            super(new DatabaseChangeLog(changeLogFile), resourceAccessor, database);
+        }
+
+        void update(final String changeLogFile, final ChangeLogParameters changeLogParameters, final int capacity,
+                final Contexts contexts) throws LiquibaseException {
+            Database database = getDatabase();
+            // The null checksums of the executed change sets are not upgraded as that needs the whole tree
+            checkLiquibaseTables(false, new DatabaseChangeLog(changeLogFile), contexts);
+            ChangeSetStream stream = open(changeLogFile, changeLogParameters, getResourceAccessor(), capacity,
+                    database);
+            try {
+                DatabaseChangeLog changeLog = new StreamedChangeLog(changeLogFile, changeLogParameters, stream);
+                getStandardChangelogIterator(contexts, changeLog).run(createUpdateVisitor(), database);
+            } catch (StreamFailure e) {
+                throw (LiquibaseException) e.getCause();
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Starts parsing a changelog tree without validating it.
+     *
+     * @param changeLogFile
+     *            The path of the root changelog.
+     * @param changeLogParameters
+     *            The parameters of the changelog tree.
+     * @param resourceAccessor
+     *            The resource accessor that finds the changelogs.
+     * @param capacity
+     *            The maximum number of parsed change sets that can wait for the caller.
+     * @return The stream of the change sets.
+     */
+    public static ChangeSetStream open(final String changeLogFile, final ChangeLogParameters changeLogParameters,
+            final ResourceAccessor resourceAccessor, final int capacity) {
+        ChangeSetStream stream = new ChangeSetStream(capacity, null, null);
+        stream.start(changeLogFile, changeLogParameters, resourceAccessor);
+        return stream;
+    }
+
+    /**
+     * Starts parsing a changelog tree that is validated against a database while the change sets are returned.
+     *
+     * @param changeLogFile
+     *            The path of the root changelog.
+     * @param changeLogParameters
+     *            The parameters of the changelog tree.
+     * @param resourceAccessor
+     *            The resource accessor that finds the changelogs.
+     * @param capacity
+     *            The maximum number of parsed change sets that can wait for the caller.
+     * @param database
+     *            The database that the preconditions are checked on and the change sets are validated against.
+     * @return The stream of the change sets.
+     * @throws LiquibaseException
+     *             if the executed change sets cannot be read from the database.
+     */
+    public static ChangeSetStream open(final String changeLogFile, final ChangeLogParameters changeLogParameters,
+            final ResourceAccessor resourceAccessor, final int capacity, final Database database)
+            throws LiquibaseException {
+        ChangeSetStream stream = new ChangeSetStream(capacity, database,
+                new ValidatingVisitor(database.getRanChangeSetList()));
+        stream.start(changeLogFile, changeLogParameters, resourceAccessor);
+        return stream;
+    }
+
+    /**
+     * Updates a database with a changelog tree while it is parsed. The update holds the Liquibase lock of the
+     * database, creates the history tables if necessary and executes the change sets that should run, match the
+     * contexts and the database the same way as {@link Liquibase#update(Contexts)} does. A change set is executed as
+     * soon as it is parsed and validated, so the change sets before an invalid one or a parse error are executed
+     * already when the update fails.
+     *
+     * @param changeLogFile
+     *            The path of the root changelog.
+     * @param changeLogParameters
+     *            The parameters of the changelog tree.
+     * @param resourceAccessor
+     *            The resource accessor that finds the changelogs.
+     * @param capacity
+     *            The maximum number of parsed change sets that can wait for their execution.
+     * @param database
+     *            The database to update.
+     * @param contexts
+     *            The contexts of the update.
+     * @throws LiquibaseException
+     *             if the lock cannot be acquired, the parse fails, a change set is not valid or it cannot be
+     *             executed.
+     */
+    public static void update(final String changeLogFile, final ChangeLogParameters changeLogParameters,
+            final ResourceAccessor resourceAccessor, final int capacity, final Database database,
+            final Contexts contexts) throws LiquibaseException {
+        LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+        lockService.waitForLock();
+        changeLogParameters.setContexts(contexts);
+        try {
+            new StreamUpdater(changeLogFile, resourceAccessor, database).update(changeLogFile, changeLogParameters,
+                    capacity, contexts);
+        } finally {
+            database.setObjectQuotingStrategy(ObjectQuotingStrategy.LEGACY);
+            try {
+                lockService.releaseLock();
+            } catch (LockException e) {
+                LogFactory.getLogger().severe("Could not release lock", e);
+            }
+        }
+    }
+
+    private volatile boolean closed = false;
+
+    private final Database database;
+
+    private final DbmsChangeSetFilter dbmsChangeSetFilter;
+
+    private boolean ended = false;
+
+    private volatile Throwable failure;
+
+    private Thread parserThread;
+
+    private final BlockingQueue<Object> queue;
+
+    private final ValidatingVisitor validatingVisitor;
+
+    private ChangeSetStream(final int capacity, final Database database, final ValidatingVisitor validatingVisitor) {
+        queue = new ArrayBlockingQueue<Object>(capacity);
+        this.database = database;
+        this.validatingVisitor = validatingVisitor;
+        if (database != null) {
+            dbmsChangeSetFilter = new DbmsChangeSetFilter(database);
+        } else {
+            dbmsChangeSetFilter = null;
+        }
+    }
+
+    private void checkFailure() throws LiquibaseException {
+        Throwable throwable = failure;
+        if (throwable == null) {
+            return;
+        }
+        ended = true;
+        if (throwable instanceof LiquibaseException) {
+            throw (LiquibaseException) throwable;
+        }
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        throw new ChangeLogParseException(throwable);
+    }
+
+    private void checkValidation() throws ValidationFailedException {
+        if (!validatingVisitor.validationPassed()) {
+            ended = true;
+            throw new ValidationFailedException(validatingVisitor);
+        }
+    }
+
+    /**
+     * Stops the parse if it is still running and drops the change sets that were not returned.
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+        if (parserThread != null) {
+            parserThread.interrupt();
+        }
+    }
+
+    /**
+     * Returns the next change set of the tree. The call blocks until the change set is parsed.
+     *
+     * @return The change set or <code>null</code> if there are no more change sets.
+     * @throws LiquibaseException
+     *             if the parse failed or, if the stream is validated, the change set is not valid.
+     */
+    public ChangeSet next() throws LiquibaseException {
+        if (ended) {
+            return null;
+        }
+        if (closed) {
+            throw new IllegalStateException("The change set stream is closed");
+        }
+        checkFailure();
+        Object entry;
+        try {
+            entry = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChangeLogParseException(e);
+        }
+        checkFailure();
+        if (entry == END_OF_STREAM) {
+            ended = true;
+            return null;
+        }
+        ChangeSet changeSet = (ChangeSet) entry;
+        validate(changeSet);
+        return changeSet;
+    }
+
+    private void parse(final String changeLogFile, final ChangeLogParameters changeLogParameters,
+            final ResourceAccessor resourceAccessor) throws LiquibaseException {
+        ChangeSetConsumer consumer = new ChangeSetConsumer() {
+            @Override
+            public void accept(final ChangeSet changeSet) throws LiquibaseException {
+                put(changeSet);
+            }
+        };
+        ChangeLogParser parser = ChangeLogParserFactory.getInstance().getParser(changeLogFile, resourceAccessor);
+        if (parser instanceof OSGiXMLChangeLogSAXParser) {
+            ((OSGiXMLChangeLogSAXParser) parser).parse(changeLogFile, changeLogParameters, resourceAccessor,
+                    new ParseContext(consumer));
+        } else {
+            DatabaseChangeLog databaseChangeLog = parser.parse(changeLogFile, changeLogParameters, resourceAccessor);
+            if ((databaseChangeLog.getPreconditions() != null)
+                    && !databaseChangeLog.getPreconditions().getNestedPreconditions().isEmpty()) {
+                throw new ChangeLogParseException(changeLogFile
+                        + ": changelog preconditions are not supported in a streamed changelog");
+            }
+            for (ChangeSet changeSet : databaseChangeLog.getChangeSets()) {
+                consumer.accept(changeSet);
+            }
+        }
+    }
+
+    /**
+     * Puts an entry to the queue and waits while the queue is full.
+     */
+    private void put(final Object entry) throws LiquibaseException {
+        try {
+            while (!queue.offer(entry, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new ChangeLogParseException("The change set stream is closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new ChangeLogParseException("The change set stream is closed");
+        }
+    }
+
+    private void start(final String changeLogFile, final ChangeLogParameters changeLogParameters,
+            final ResourceAccessor resourceAccessor) {
+        parserThread = new Thread("liquibase-changeset-stream") {
+            @Override
+            public void run() {
+                try {
+                    parse(changeLogFile, changeLogParameters, resourceAccessor);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                try {
+                    put(END_OF_STREAM);
+                } catch (LiquibaseException e) {
+                    // The stream is closed, nobody waits for the end
+                }
+            }
+        };
+        parserThread.setDaemon(true);
+        parserThread.start();
+    }
+
+    /**
+     * Validates a change set the same way as the change sets of a changelog are validated before an update.
+     */
+    private void validate(final ChangeSet changeSet) throws LiquibaseException {
+        if ((validatingVisitor == null) || !dbmsChangeSetFilter.accepts(changeSet)) {
+            return;
+        }
+        validatingVisitor.visit(changeSet, changeSet.getChangeLog(), database);
+        checkValidation();
+    }
+}
@@ -18,21 +18,20 @@ package org.everit.osgi.liquibase.bundle;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
-import org.apache.felix.utils.manifest.Attribute;
-import org.apache.felix.utils.manifest.Clause;
-import org.apache.felix.utils.manifest.Directive;
-import org.apache.felix.utils.manifest.Parser;
+import liquibase.logging.LogFactory;
+
+import org.everit.osgi.liquibase.bundle.internal.SchemaCapabilityIndex;
+import org.everit.osgi.liquibase.bundle.internal.SchemaExpressionCache;
+import org.everit.osgi.liquibase.bundle.internal.SchemaExpressionMatcher;
+import org.everit.osgi.liquibase.bundle.internal.WireResolutionCache;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
@@ -62,58 +61,88 @@ public final class LiquibaseOSGiUtil {
      */
     public static final String INCLUDE_FILE_OSGI_PREFIX = "eosgi:";
 
-    public static Filter createFilterForLiquibaseCapabilityAttributes(final String schemaExpression) {
-        Clause[] clauses = Parser.parseClauses(new String[] { schemaExpression });
-        if (clauses.length != 1) {
-            throw new SchemaExpressionSyntaxException("The number of Clauses in the Schema expression should be 1");
+    /**
+     * Manifest header that points to the directory within the bundle where the changelogs that were precompiled at
+     * build time can be found. A precompiled changelog is used instead of the XML file only if it was created from
+     * the same XML content.
+     */
+    public static final String PRECOMPILED_CHANGELOGS_HEADER = "Liquibase-Precompiled-ChangeLogs";
+
+    private static void addCapability(final Map<Bundle, List<BundleCapability>> result, final Bundle bundle,
+            final BundleCapability capability) {
+        List<BundleCapability> capabilityList = result.get(bundle);
+        if (capabilityList == null) {
+            capabilityList = new ArrayList<BundleCapability>();
+            result.put(bundle, capabilityList);
         }
-        Clause clause = clauses[0];
-        String schemaName = clause.getName();
-        Attribute[] attributes = clause.getAttributes();
-        if (attributes.length > 0) {
-            throw new SchemaExpressionSyntaxException("No Attributes in the schema expresson are supported.");
+        capabilityList.add(capability);
+    }
+
+    public static Filter createFilterForLiquibaseCapabilityAttributes(final String schemaExpression) {
+        return SchemaExpressionCache.getInstance().getMatcher(schemaExpression).getFilter();
+    }
+
+    public static Map<Bundle, List<BundleCapability>> findBundlesBySchemaExpression(final String schemaExpression,
+            final BundleContext bundleContext, final int necessaryBundleStates) {
+        SchemaExpressionMatcher matcher = SchemaExpressionCache.getInstance().getMatcher(schemaExpression);
+        SchemaCapabilityIndex index = SchemaCapabilityIndex.getSharedIndex();
+        if (index == null) {
+            return scanBundlesByMatcher(matcher, bundleContext, necessaryBundleStates);
         }
-        Directive[] directives = clause.getDirectives();
-        if (directives.length > 1) {
-            throw new SchemaExpressionSyntaxException(
-                    "The number of Directives in the Schema expression should not be more than 1");
+
+        List<SchemaCapabilityIndex.Entry> entries;
+        if (matcher.isSimpleSchemaName()) {
+            entries = index.getEntries(matcher.getSchemaName());
+        } else {
+            // The name is not a simple value in the filter so we cannot look it up directly
+            entries = index.getAllEntries();
         }
-        String filterString = "(" + ATTR_SCHEMA_NAME + "=" + schemaName + ")";
-        if (directives.length == 1) {
-            if (!Constants.FILTER_DIRECTIVE.equals(directives[0].getName())) {
-                throw new SchemaExpressionSyntaxException(
-                        "Only the 'filter' directive is supported in the schema expression");
-            }
-            String additionalFilterString = directives[0].getValue();
-            filterString = "(&" + filterString + additionalFilterString + ")";
 
+        Map<Bundle, List<BundleCapability>> result = createBundleMap();
+        for (SchemaCapabilityIndex.Entry entry : entries) {
+            if (((entry.getBundleState() & necessaryBundleStates) != 0)
+                    && matcher.matches(entry.getCapability().getAttributes())) {
+                addCapability(result, entry.getBundle(), entry.getCapability());
+            }
         }
-        try {
-            return FrameworkUtil.createFilter(filterString);
-        } catch (InvalidSyntaxException e) {
-            throw new SchemaExpressionSyntaxException("The filter contains an invalid filter string");
+        return result;
+    }
+
+    public static final BundleWire findMatchingWireBySchemaExpression(final Bundle currentBundle,
+            final String schemaExpression) {
+        WireResolutionCache.Resolution resolution =
+                WireResolutionCache.getInstance().resolve(currentBundle, schemaExpression);
+        if (resolution == null) {
+            return null;
         }
+        return resolution.getWire();
+    }
+    
+    private static Map<Bundle, List<BundleCapability>> createBundleMap() {
+        return new TreeMap<Bundle, List<BundleCapability>>(new Comparator<Bundle>() {
+
+            @Override
+            public int compare(final Bundle o1, final Bundle o2) {
+                long bundle1Id = o1.getBundleId();
+                long bundle2Id = o2.getBundleId();
+                if (bundle1Id == bundle2Id) {
+                    return 0;
+                } else if (bundle1Id < bundle2Id) {
+                    return -1;
+                } else {
+                    return 1;
+                }
+            }
+        });
     }
 
-    public static Map<Bundle, List<BundleCapability>> findBundlesBySchemaExpression(final String schemaExpression,
+    /**
+     * Fallback of {@link #findBundlesBySchemaExpression(String, BundleContext, int)} when the capability index is not
+     * available as the Liquibase bundle is not started.
+     */
+    private static Map<Bundle, List<BundleCapability>> scanBundlesByMatcher(final SchemaExpressionMatcher matcher,
             final BundleContext bundleContext, final int necessaryBundleStates) {
-        Filter filter = LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
-        Map<Bundle, List<BundleCapability>> result =
-                new TreeMap<Bundle, List<BundleCapability>>(new Comparator<Bundle>() {
-
-                    @Override
-                    public int compare(final Bundle o1, final Bundle o2) {
-                        long bundle1Id = o1.getBundleId();
-                        long bundle2Id = o2.getBundleId();
-                        if (bundle1Id == bundle2Id) {
-                            return 0;
-                        } else if (bundle1Id < bundle2Id) {
-                            return -1;
-                        } else {
-                            return 1;
-                        }
-                    }
-                });
+        Map<Bundle, List<BundleCapability>> result = createBundleMap();
         Bundle[] bundles = bundleContext.getBundles();
         for (Bundle bundle : bundles) {
             int state = bundle.getState();
@@ -123,16 +152,13 @@ public final class LiquibaseOSGiUtil {
                 for (BundleCapability capability : capabilities) {
                     Map<String, Object> attributes = capability.getAttributes();
                     if (attributes.get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE) != null) {
-                        if (filter.matches(attributes)) {
-                            List<BundleCapability> capabilityList = result.get(bundle);
-                            if (capabilityList == null) {
-                                capabilityList = new ArrayList<BundleCapability>();
-                                result.put(bundle, capabilityList);
-                            }
-                            capabilityList.add(capability);
+                        if (matcher.matches(attributes)) {
+                            addCapability(result, bundle, capability);
                         }
                     } else {
-                        // TODO log
+                        LogFactory.getLogger().warning("The " + LIQUIBASE_CAPABILITY_NS + " capability "
+                                + attributes + " of bundle " + bundle.getSymbolicName() + " has no "
+                                + ATTR_SCHEMA_RESOURCE + " attribute");
                     }
                 }
             }
@@ -140,37 +166,6 @@ public final class LiquibaseOSGiUtil {
         return result;
     }
 
-    public static final BundleWire findMatchingWireBySchemaExpression(final Bundle currentBundle,
-            final String schemaExpression) {
-
-        BundleWiring bundleWiring = currentBundle.adapt(BundleWiring.class);
-        List<BundleWire> wires = bundleWiring.getRequiredWires(LIQUIBASE_CAPABILITY_NS);
-
-        if (wires.size() == 0) {
-            return null;
-        }
-
-        Filter capabilityFilter = LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
-
-        Iterator<BundleWire> iterator = wires.iterator();
-        BundleWire matchingWire = null;
-        // Iterate through the wires to find the one that matches the schema expression
-        while ((matchingWire == null) && iterator.hasNext()) {
-            BundleWire wire = iterator.next();
-            BundleCapability capability = wire.getCapability();
-            Map<String, Object> capabilityAttributes = capability.getAttributes();
-            if (capabilityFilter.matches(capabilityAttributes)) {
-                Object schemaResourceAttr = capabilityAttributes.get(ATTR_SCHEMA_RESOURCE);
-                if (schemaResourceAttr != null) {
-                    matchingWire = wire;
-                } else {
-                    // TODO Write WARNING
-                }
-            }
-        }
-        return matchingWire;
-    }
-    
     public static final Bundle getBundle() {
     	return FrameworkUtil.getBundle(LiquibaseOSGiUtil.class);
     }
@@ -25,36 +25,120 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Vector;
 
+import org.everit.osgi.liquibase.bundle.internal.ResourceContentCache;
+import org.everit.osgi.liquibase.bundle.internal.ResourceRouteCache;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleWiring;
 
+import liquibase.logging.LogFactory;
 import liquibase.resource.ClassLoaderResourceAccessor;
 import liquibase.resource.CompositeResourceAccessor;
 import liquibase.resource.ResourceAccessor;
 
 /**
- * The resource accessor that should be used in OSGi environments.
+ * The resource accessor that should be used in OSGi environments. The content of the resources that are read from the
+ * bundle can be cached, see {@link ResourceContentCache}. The accessor that finds a resource is remembered, see
+ * {@link ResourceRouteCache}. The resources can be read from the entries of the bundle instead of the class loader,
+ * see {@link #READ_MODE_PROPERTY}.
  *
  */
 public class OSGiResourceAccessor extends CompositeResourceAccessor {
 
+    /**
+     * The ways the resources of the bundle can be read.
+     */
+    public enum ReadMode {
+
+        /**
+         * The resources are loaded through the class loader of the bundle, so the imported packages and the required
+         * bundles are searched before the content of the bundle.
+         */
+        CLASS_LOADER,
+
+        /**
+         * The resources are looked up first among the entries of the bundle and its fragments. The class loader of
+         * the bundle is used only if the resource is not an entry. The class loader is not created for bundles that
+         * hold only changelogs.
+         */
+        ENTRY_FIRST
+    }
+
     private static class BundleResourceAccessor implements ResourceAccessor {
 
-        private ClassLoader bundleClassLoader;
+        private volatile ClassLoader bundleClassLoader;
 		private Bundle hostBundle;
 
         public BundleResourceAccessor(final Bundle bundle) {
-			BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
-            this.bundleClassLoader = bundleWiring.getClassLoader();
             hostBundle = bundle;
         }
 
+        /**
+         * Returns the class loader of the bundle. The class loader is looked up on first use, so it is not created if
+         * every resource is found among the entries of the bundle.
+         */
+        private ClassLoader getBundleClassLoader() {
+            ClassLoader classLoader = bundleClassLoader;
+            if (classLoader == null) {
+                BundleWiring bundleWiring = hostBundle.adapt(BundleWiring.class);
+                classLoader = bundleWiring.getClassLoader();
+                bundleClassLoader = classLoader;
+            }
+            return classLoader;
+        }
+
+        /**
+         * Returns the URL of an entry of the bundle or its fragments.
+         *
+         * @return The URL or <code>null</code> if there is no such entry.
+         */
+        private URL findEntry(String file) {
+            URL entry = hostBundle.getEntry(file);
+            if (entry != null) {
+                return entry;
+            }
+            int separatorIndex = file.lastIndexOf('/');
+            String name = file.substring(separatorIndex + 1);
+            if (name.length() == 0 || name.indexOf('*') >= 0) {
+                return null;
+            }
+            String directory = (separatorIndex < 0) ? "/" : file.substring(0, separatorIndex + 1);
+            // The entries of the attached fragments
+            Enumeration<URL> entries = hostBundle.findEntries(directory, name, false);
+            if (entries == null || !entries.hasMoreElements()) {
+                return null;
+            }
+            return entries.nextElement();
+        }
+
+        private InputStream openResource(String file) throws IOException {
+            if (READ_MODE == ReadMode.ENTRY_FIRST) {
+                URL entry = findEntry(file);
+                if (entry != null) {
+                    return entry.openStream();
+                }
+            }
+            return getBundleClassLoader().getResourceAsStream(file);
+        }
+
         @Override
         public InputStream getResourceAsStream(String file) throws IOException {
-            return this.bundleClassLoader.getResourceAsStream(file);
+            ResourceContentCache contentCache = ResourceContentCache.getInstance();
+            if (!contentCache.isEnabled()) {
+                return openResource(file);
+            }
+            InputStream cachedStream = contentCache.get(hostBundle, file);
+            if (cachedStream != null) {
+                return cachedStream;
+            }
+            InputStream inputStream = openResource(file);
+            if (inputStream == null) {
+                return null;
+            }
+            return contentCache.put(hostBundle, file, inputStream);
         }
 
         @Override
@@ -68,7 +152,10 @@ public class OSGiResourceAccessor extends CompositeResourceAccessor {
         	// Create files and then URLs
         	Vector<URL> files = new Vector<URL>();
         	while (discoveredFiles.hasMoreElements()) {
-        		URL entry = hostBundle.getResource(discoveredFiles.nextElement());
+        		String entryPath = discoveredFiles.nextElement();
+        		URL entry = (READ_MODE == ReadMode.ENTRY_FIRST) ? hostBundle.getEntry(entryPath) : null;
+        		if(entry == null)
+        			entry = hostBundle.getResource(entryPath);
         		if(entry != null)
         			files.add(entry);
 			}
@@ -77,7 +164,7 @@ public class OSGiResourceAccessor extends CompositeResourceAccessor {
 
         @Override
         public ClassLoader toClassLoader() {
-            return this.bundleClassLoader;
+            return getBundleClassLoader();
         }
         
         private class EmptyEnumeration<E> implements Enumeration<E> {
@@ -94,10 +181,29 @@ public class OSGiResourceAccessor extends CompositeResourceAccessor {
         
     }
     
+    /**
+     * System property that selects how the resources of the bundles are read. The value is the name of a
+     * {@link ReadMode}. The default is {@link ReadMode#CLASS_LOADER}.
+     */
+    public static final String READ_MODE_PROPERTY = "org.everit.osgi.liquibase.bundle.resourceAccessor.readMode";
+
+    private static final ReadMode READ_MODE = readModeProperty();
+
+    /**
+     * The number of the accessors that are added to the accessors of the caller: the accessor of the bundle and the
+     * accessor of the Liquibase bundle.
+     */
+    private static final int SHARED_ACCESSOR_COUNT = 2;
+
     private final Bundle bundle;
 
     private final Map<String, Object> attributes;
 
+    /**
+     * The accessors passed by the caller, followed by the accessors of the bundle and of the Liquibase bundle.
+     */
+    private final List<ResourceAccessor> resourceAccessors;
+
     /**
      * Creating a new resource accessor for the specified bundle without any attributes.
      * 
@@ -121,7 +227,12 @@ public class OSGiResourceAccessor extends CompositeResourceAccessor {
      *            See {@link #getAttributes()}.
      */
     public OSGiResourceAccessor(Bundle bundle, Map<String, Object> attributes, ResourceAccessor... accessors) {
-    	super(combine(accessors, new BundleResourceAccessor(bundle), new ClassLoaderResourceAccessor(OSGiResourceAccessor.class.getClassLoader())));
+    	this(bundle, attributes, combine(accessors, new BundleResourceAccessor(bundle), new ClassLoaderResourceAccessor(OSGiResourceAccessor.class.getClassLoader())));
+    }
+
+    private OSGiResourceAccessor(Bundle bundle, Map<String, Object> attributes, List<ResourceAccessor> allAccessors) {
+    	super(allAccessors);
+    	this.resourceAccessors = allAccessors;
     	this.bundle = bundle;
     	if (attributes == null) {
     		this.attributes = Collections.emptyMap();
@@ -142,10 +253,74 @@ public class OSGiResourceAccessor extends CompositeResourceAccessor {
         this(bundle, attributes, new ResourceAccessor[]{});
     }
 
+    private static ReadMode readModeProperty() {
+    	String value = System.getProperty(READ_MODE_PROPERTY);
+    	if (value == null)
+    		return ReadMode.CLASS_LOADER;
+    	try {
+    		return ReadMode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    	} catch (IllegalArgumentException e) {
+    		LogFactory.getLogger().warning("Unknown value of " + READ_MODE_PROPERTY + ": " + value + ", using "
+    				+ ReadMode.CLASS_LOADER);
+    		return ReadMode.CLASS_LOADER;
+    	}
+    }
+
+    /**
+     * Returns the resource from the first accessor that finds it. The accessors passed by the caller are asked every
+     * time, as they belong to this instance only. The accessor of the bundle and the accessor of the Liquibase bundle
+     * are asked only until one of them finds the resource or both of them fail, and the result is remembered for the
+     * revision of the bundle by the {@link ResourceRouteCache}.
+     */
+    @Override
+    public InputStream getResourceAsStream(String file) throws IOException {
+    	int sharedAccessorsStart = resourceAccessors.size() - SHARED_ACCESSOR_COUNT;
+    	for (int i = 0; i < sharedAccessorsStart; i++) {
+    		InputStream inputStream = resourceAccessors.get(i).getResourceAsStream(file);
+    		if (inputStream != null)
+    			return inputStream;
+    	}
+
+    	ResourceRouteCache routeCache = ResourceRouteCache.getInstance();
+    	int route = ResourceRouteCache.UNKNOWN;
+    	if (routeCache.isEnabled())
+    		route = routeCache.getRoute(bundle, file);
+    	if (route == ResourceRouteCache.NOT_FOUND)
+    		return null;
+    	if (route != ResourceRouteCache.UNKNOWN) {
+    		InputStream inputStream = resourceAccessors.get(sharedAccessorsStart + route).getResourceAsStream(file);
+    		if (inputStream != null)
+    			return inputStream;
+    	}
+
+    	for (int i = 0; i < SHARED_ACCESSOR_COUNT; i++) {
+    		InputStream inputStream = resourceAccessors.get(sharedAccessorsStart + i).getResourceAsStream(file);
+    		if (inputStream != null) {
+    			if (routeCache.isEnabled())
+    				routeCache.putRoute(bundle, file, i);
+    			return inputStream;
+    		}
+    	}
+    	if (routeCache.isEnabled())
+    		routeCache.putRoute(bundle, file, ResourceRouteCache.NOT_FOUND);
+    	return null;
+    }
+
     public Bundle getBundle() {
         return bundle;
     }
 
+    /**
+     * Tells whether the caller passed its own accessors. The content that is read through this accessor cannot be
+     * cached by the bundle and the path of the resource in that case, as the accessors of the caller might return
+     * different content for the same path.
+     * 
+     * @return <code>true</code> if the accessors passed by the caller are asked before the accessors of the bundle.
+     */
+    public boolean hasCallerAccessors() {
+    	return resourceAccessors.size() > SHARED_ACCESSOR_COUNT;
+    }
+
     /**
      * Attributes are normally coming from the liquibase.schema capability definition.
      * 
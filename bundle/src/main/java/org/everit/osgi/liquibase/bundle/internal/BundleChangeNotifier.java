@@ -0,0 +1,137 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Notifies the caches of this bundle when the content or the wiring of a bundle changes. The framework listeners are
+ * registered with the context of the Liquibase bundle on first use. If the Liquibase bundle is not started, no events
+ * arrive, so the caches must not rely on the notifications for correctness, only to release entries early.
+ */
+public final class BundleChangeNotifier {
+
+    /**
+     * Listener of the bundle changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the bundle is unresolved, updated or uninstalled.
+         */
+        void bundleChanged(Bundle bundle);
+
+        /**
+         * Called when the wiring of the framework was refreshed.
+         */
+        void wiringRefreshed();
+    }
+
+    private static class FrameworkEventListener implements SynchronousBundleListener, FrameworkListener {
+
+        @Override
+        public void bundleChanged(final BundleEvent event) {
+            int type = event.getType();
+            if ((type == BundleEvent.UNRESOLVED) || (type == BundleEvent.UPDATED)
+                    || (type == BundleEvent.UNINSTALLED)) {
+                Bundle bundle = event.getBundle();
+                for (Listener listener : LISTENERS) {
+                    listener.bundleChanged(bundle);
+                }
+            }
+        }
+
+        @Override
+        public void frameworkEvent(final FrameworkEvent event) {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+                for (Listener listener : LISTENERS) {
+                    listener.wiringRefreshed();
+                }
+            }
+        }
+    }
+
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+    private static volatile BundleContext registeredContext;
+
+    /**
+     * Adds a listener and makes sure that the framework listeners are registered if it is possible.
+     */
+    public static void addListener(final Listener listener) {
+        LISTENERS.add(listener);
+        ensureRegistered();
+    }
+
+    /**
+     * Registers the framework listeners with the context of the Liquibase bundle if they are not registered with the
+     * current context yet. Calling this method is cheap when the listeners are already registered.
+     */
+    public static void ensureRegistered() {
+        BundleContext bundleContext;
+        try {
+            Bundle bundle = FrameworkUtil.getBundle(BundleChangeNotifier.class);
+            if (bundle == null) {
+                return;
+            }
+            bundleContext = bundle.getBundleContext();
+        } catch (NoClassDefFoundError e) {
+            // We are not in OSGi environment
+            return;
+        }
+        if ((bundleContext == null) || (bundleContext == registeredContext)) {
+            return;
+        }
+        synchronized (BundleChangeNotifier.class) {
+            if (bundleContext == registeredContext) {
+                return;
+            }
+            try {
+                FrameworkEventListener eventListener = new FrameworkEventListener();
+                bundleContext.addBundleListener(eventListener);
+                bundleContext.addFrameworkListener(eventListener);
+                registeredContext = bundleContext;
+            } catch (IllegalStateException e) {
+                // The context became invalid in the meantime
+                return;
+            }
+        }
+        // Events might have been missed while the listeners were not registered
+        for (Listener listener : LISTENERS) {
+            listener.wiringRefreshed();
+        }
+    }
+
+    /**
+     * Removes a listener. The framework listeners stay registered.
+     */
+    public static void removeListener(final Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    private BundleChangeNotifier() {
+    }
+}
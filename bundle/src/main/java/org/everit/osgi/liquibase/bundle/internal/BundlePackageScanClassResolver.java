@@ -16,8 +16,17 @@
  */
 package org.everit.osgi.liquibase.bundle.internal;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import liquibase.servicelocator.DefaultPackageScanClassResolver;
 import liquibase.servicelocator.PackageScanFilter;
@@ -26,31 +35,54 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleWiring;
 
 /**
- * Package scan resolver that works with OSGI frameworks.
+ * Package scan resolver that works with OSGI frameworks. The implementations of a type are found by reading the
+ * headers of the class files of the packages, so only the classes that are assignable to the type are loaded. The
+ * headers are read once and kept for the lifetime of the resolver. If a class file or the class file of one of its
+ * supertypes cannot be read, the class is loaded to check it.
  */
 public class BundlePackageScanClassResolver extends DefaultPackageScanClassResolver {
 
+    private static final String CLASS_EXTENSION = ".class";
+
     private final BundleWiring bundleWiring;
 
+    private final Map<String, List<String>> classNamesByPackage = new ConcurrentHashMap<String, List<String>>();
+
+    /**
+     * The filters that are currently added. The filter set of the super class is private, so it is mirrored here.
+     */
+    private final Set<PackageScanFilter> filters = Collections.synchronizedSet(new HashSet<PackageScanFilter>());
+
+    private final Map<String, ClassFileHeader> headers = new ConcurrentHashMap<String, ClassFileHeader>();
+
+    /**
+     * The classes that have no readable class file.
+     */
+    private final Set<String> unreadableClasses =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     public BundlePackageScanClassResolver(Bundle bundle) {
         this.bundleWiring = bundle.adapt(BundleWiring.class);
     }
 
     @Override
-    protected void find(PackageScanFilter test, String packageName, Set<Class<?>> classes) {
-        packageName = packageName.replace('.', '/');
+    public void addFilter(PackageScanFilter filter) {
+        super.addFilter(filter);
+        filters.add(filter);
+    }
 
-        Collection<String> names =
-                bundleWiring.listResources(packageName, "*.class", BundleWiring.LISTRESOURCES_RECURSE);
-        if (names == null) {
-            return;
-        }
-        ClassLoader bundleClassLoader = bundleWiring.getClassLoader();
-        for (String name : names) {
-            String fixedName = name.substring(0, name.indexOf('.')).replace('/', '.');
+    @Override
+    public void removeFilter(PackageScanFilter filter) {
+        super.removeFilter(filter);
+        filters.remove(filter);
+    }
 
+    @Override
+    protected void find(PackageScanFilter test, String packageName, Set<Class<?>> classes) {
+        ClassLoader bundleClassLoader = bundleWiring.getClassLoader();
+        for (String className : getClassNames(packageName)) {
             try {
-                Class<?> klass = bundleClassLoader.loadClass(fixedName);
+                Class<?> klass = bundleClassLoader.loadClass(className);
                 if (test.matches(klass)) {
                     classes.add(klass);
                 }
@@ -61,4 +93,130 @@ public class BundlePackageScanClassResolver extends DefaultPackageScanClassResol
         }
 
     }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public Set<Class<?>> findImplementations(Class parent, String... packageNames) {
+        if (packageNames == null) {
+            return Collections.emptySet();
+        }
+        // The added filters and the types of the JDK need the loaded classes
+        if (!filters.isEmpty() || parent.getName().startsWith("java.")) {
+            return super.findImplementations(parent, packageNames);
+        }
+        ClassLoader bundleClassLoader = bundleWiring.getClassLoader();
+        Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+        for (String packageName : packageNames) {
+            for (String className : getClassNames(packageName)) {
+                if (isAssignable(className, parent.getName(), bundleClassLoader) == Boolean.FALSE) {
+                    continue;
+                }
+                try {
+                    Class<?> klass = bundleClassLoader.loadClass(className);
+                    if (parent.isAssignableFrom(klass)) {
+                        classes.add(klass);
+                    }
+                } catch (ClassNotFoundException e) {
+                    log.debug("Cant load class: " + e.getMessage());
+                } catch (LinkageError e) {
+                    log.debug("Cant load class " + className + ": " + e.getMessage());
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Returns the names of the classes of a package and its subpackages.
+     */
+    private List<String> getClassNames(String packageName) {
+        String packagePath = packageName.trim().replace('.', '/');
+        List<String> classNames = classNamesByPackage.get(packagePath);
+        if (classNames != null) {
+            return classNames;
+        }
+        Collection<String> names =
+                bundleWiring.listResources(packagePath, "*" + CLASS_EXTENSION, BundleWiring.LISTRESOURCES_RECURSE);
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        classNames = new ArrayList<String>(names.size());
+        for (String name : names) {
+            classNames.add(name.substring(0, name.indexOf('.')).replace('/', '.'));
+        }
+        classNames = Collections.unmodifiableList(classNames);
+        classNamesByPackage.put(packagePath, classNames);
+        return classNames;
+    }
+
+    /**
+     * Returns the header of a class file.
+     *
+     * @return The header or <code>null</code> if the class file cannot be read.
+     */
+    private ClassFileHeader getHeader(String className, ClassLoader classLoader) {
+        ClassFileHeader header = headers.get(className);
+        if (header != null || unreadableClasses.contains(className)) {
+            return header;
+        }
+        header = readHeader(className, classLoader);
+        if (header != null) {
+            headers.put(className, header);
+        } else {
+            unreadableClasses.add(className);
+        }
+        return header;
+    }
+
+    /**
+     * Checks whether a class is assignable to a type by the headers of the class files.
+     *
+     * @return {@link Boolean#TRUE} or {@link Boolean#FALSE}, or <code>null</code> if the class file of the class or
+     *         of one of its supertypes cannot be read.
+     */
+    private Boolean isAssignable(String className, String typeName, ClassLoader classLoader) {
+        if (className.equals(typeName)) {
+            return Boolean.TRUE;
+        }
+        if (className.startsWith("java.")) {
+            // The type is not a JDK type, so the JDK types cannot be assignable to it
+            return Boolean.FALSE;
+        }
+        ClassFileHeader header = getHeader(className, classLoader);
+        if (header == null) {
+            return null;
+        }
+        Boolean result = Boolean.FALSE;
+        List<String> supertypeNames = new ArrayList<String>(header.getInterfaceNames());
+        if (header.getSuperClassName() != null) {
+            supertypeNames.add(header.getSuperClassName());
+        }
+        for (String supertypeName : supertypeNames) {
+            Boolean assignable = isAssignable(supertypeName, typeName, classLoader);
+            if (assignable == Boolean.TRUE) {
+                return Boolean.TRUE;
+            }
+            if (assignable == null) {
+                result = null;
+            }
+        }
+        return result;
+    }
+
+    private ClassFileHeader readHeader(String className, ClassLoader classLoader) {
+        InputStream inputStream = classLoader.getResourceAsStream(className.replace('.', '/') + CLASS_EXTENSION);
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            try {
+                return ClassFileHeader.read(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            log.debug("Cant read class file of " + className + ": " + e.getMessage());
+            return null;
+        }
+    }
 }
@@ -0,0 +1,180 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Least recently used map of values that belong to a resource of a bundle revision. The values are keyed by the id
+ * and the last modification time of the bundle and the path of the resource, so a value that was stored for an older
+ * revision of a bundle is never returned for a newer one. The caches that use this map release the values of a bundle
+ * by calling {@link #removeBundle(long)} when they are notified about the change of the bundle.
+ *
+ * <p>
+ * The map is bounded by the sum of the weights of the values. Every value weighs one by default, so the map is
+ * bounded by the number of entries. Subclasses can override {@link #weigh(Object)} to bound the map by the memory
+ * that the values use. A value that weighs more than the whole budget is not stored.
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public class BundleResourceLruMap<V> {
+
+    private static final class Key {
+
+        private final long bundleId;
+
+        private final int hashCode;
+
+        private final long lastModified;
+
+        private final String path;
+
+        Key(final Bundle bundle, final String path) {
+            this.bundleId = bundle.getBundleId();
+            this.lastModified = bundle.getLastModified();
+            this.path = path;
+            int result = (int) (bundleId ^ (bundleId >>> 32));
+            result = (31 * result) + (int) (lastModified ^ (lastModified >>> 32));
+            result = (31 * result) + path.hashCode();
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (bundleId == other.bundleId) && (lastModified == other.lastModified) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final Map<Key, V> entries = new LinkedHashMap<Key, V>(16, 0.75f, true);
+
+    private final long maxWeight;
+
+    private long weight;
+
+    /**
+     * Constructor.
+     *
+     * @param maxWeight
+     *            The maximum sum of the weights of the stored values.
+     */
+    public BundleResourceLruMap(final long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Returns the value of a resource and marks it as the most recently used one.
+     *
+     * @return The value or <code>null</code> if the map does not hold a value for the current revision of the bundle.
+     */
+    public V get(final Bundle bundle, final String path) {
+        Key key = new Key(bundle, path);
+        synchronized (this) {
+            return entries.get(key);
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Returns the sum of the weights of the stored values.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Stores the value of a resource and evicts the least recently used values until the stored values fit into the
+     * budget.
+     *
+     * @return The number of the evicted values. The value that is replaced by the new one is not counted.
+     */
+    public int put(final Bundle bundle, final String path, final V value) {
+        Key key = new Key(bundle, path);
+        long valueWeight = weigh(value);
+        synchronized (this) {
+            V previous;
+            if (valueWeight > maxWeight) {
+                previous = entries.remove(key);
+            } else {
+                previous = entries.put(key, value);
+                weight += valueWeight;
+            }
+            if (previous != null) {
+                weight -= weigh(previous);
+            }
+            int evicted = 0;
+            Iterator<V> iterator = entries.values().iterator();
+            while (weight > maxWeight) {
+                weight -= weigh(iterator.next());
+                iterator.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * Removes the values of every revision of a bundle.
+     */
+    public synchronized void removeBundle(final long bundleId) {
+        Iterator<Map.Entry<Key, V>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, V> entry = iterator.next();
+            if (entry.getKey().bundleId == bundleId) {
+                weight -= weigh(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the weight of a value. The weight of a value must not change while the value is stored.
+     *
+     * @return One by default.
+     */
+    protected long weigh(final V value) {
+        return 1;
+    }
+}
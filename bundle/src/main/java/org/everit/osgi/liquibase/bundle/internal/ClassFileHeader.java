@@ -0,0 +1,209 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The name, the super class and the interfaces of a class that are read from the class file without loading the
+ * class. Only the constant pool and the fields that follow it are read, the rest of the class file is skipped.
+ */
+final class ClassFileHeader {
+
+    private static final int ACC_INTERFACE = 0x0200;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int CONSTANT_DOUBLE = 6;
+
+    private static final int CONSTANT_DYNAMIC = 17;
+
+    private static final int CONSTANT_FIELDREF = 9;
+
+    private static final int CONSTANT_FLOAT = 4;
+
+    private static final int CONSTANT_INTEGER = 3;
+
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    private static final int CONSTANT_LONG = 5;
+
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    private static final int CONSTANT_METHODREF = 10;
+
+    private static final int CONSTANT_MODULE = 19;
+
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final int CONSTANT_STRING = 8;
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * Reads the header of a class file.
+     *
+     * @param inputStream
+     *            The stream of the class file. The stream is not closed.
+     * @return The header.
+     * @throws IOException
+     *             if the stream cannot be read or it does not hold a class file.
+     */
+    static ClassFileHeader read(final InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        // Minor and major version
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int constantPoolCount = in.readUnsignedShort();
+        String[] utf8Constants = new String[constantPoolCount];
+        int[] classNameIndexes = new int[constantPoolCount];
+        int index = 1;
+        while (index < constantPoolCount) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case CONSTANT_UTF8:
+                utf8Constants[index] = in.readUTF();
+                break;
+            case CONSTANT_CLASS:
+                classNameIndexes[index] = in.readUnsignedShort();
+                break;
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                skip(in, 2);
+                break;
+            case CONSTANT_METHOD_HANDLE:
+                skip(in, 3);
+                break;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                skip(in, 4);
+                break;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                skip(in, 8);
+                // Eight byte constants take two entries
+                index++;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag: " + tag);
+            }
+            index++;
+        }
+
+        int accessFlags = in.readUnsignedShort();
+        String name = resolveClassName(in.readUnsignedShort(), classNameIndexes, utf8Constants);
+        int superClassIndex = in.readUnsignedShort();
+        String superClassName = null;
+        if (superClassIndex != 0) {
+            superClassName = resolveClassName(superClassIndex, classNameIndexes, utf8Constants);
+        }
+        int interfaceCount = in.readUnsignedShort();
+        List<String> interfaceNames = new ArrayList<String>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaceNames.add(resolveClassName(in.readUnsignedShort(), classNameIndexes, utf8Constants));
+        }
+        return new ClassFileHeader(accessFlags, name, superClassName, Collections.unmodifiableList(interfaceNames));
+    }
+
+    private static String resolveClassName(final int classIndex, final int[] classNameIndexes,
+            final String[] utf8Constants) throws IOException {
+        if ((classIndex <= 0) || (classIndex >= classNameIndexes.length)) {
+            throw new IOException("Invalid class index: " + classIndex);
+        }
+        int nameIndex = classNameIndexes[classIndex];
+        if ((nameIndex <= 0) || (nameIndex >= utf8Constants.length) || (utf8Constants[nameIndex] == null)) {
+            throw new IOException("Invalid class name index: " + nameIndex);
+        }
+        return utf8Constants[nameIndex].replace('/', '.');
+    }
+
+    private static void skip(final DataInputStream in, final int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private final int accessFlags;
+
+    private final List<String> interfaceNames;
+
+    private final String name;
+
+    private final String superClassName;
+
+    private ClassFileHeader(final int accessFlags, final String name, final String superClassName,
+            final List<String> interfaceNames) {
+        this.accessFlags = accessFlags;
+        this.name = name;
+        this.superClassName = superClassName;
+        this.interfaceNames = interfaceNames;
+    }
+
+    /**
+     * The names of the interfaces that the class implements directly.
+     */
+    public List<String> getInterfaceNames() {
+        return interfaceNames;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The name of the super class or <code>null</code> if the class is {@link Object}.
+     */
+    public String getSuperClassName() {
+        return superClassName;
+    }
+
+    public boolean isInterface() {
+        return (accessFlags & ACC_INTERFACE) != 0;
+    }
+}
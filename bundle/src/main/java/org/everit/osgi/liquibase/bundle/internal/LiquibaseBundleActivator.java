@@ -0,0 +1,37 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Releases the state that is bound to the context of the Liquibase bundle when the bundle stops. Nothing is set up on
+ * start, the shared objects are created on first use.
+ */
+public class LiquibaseBundleActivator implements BundleActivator {
+
+    @Override
+    public void start(final BundleContext context) {
+        // The shared objects are created on first use
+    }
+
+    @Override
+    public void stop(final BundleContext context) {
+        SchemaCapabilityIndex.closeSharedIndex();
+    }
+}
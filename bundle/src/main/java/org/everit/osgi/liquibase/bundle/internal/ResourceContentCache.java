@@ -0,0 +1,186 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Cache of the bytes of the resources that the {@link org.everit.osgi.liquibase.bundle.OSGiResourceAccessor} reads
+ * from the bundles, so a changelog or an XSD that is read by several parses is loaded through the class loader of the
+ * bundle only once. The cache holds at most the configured number of bytes and evicts the least recently read
+ * resources first. A resource is read into the memory only up to one byte more than the whole budget. A larger
+ * resource is not cached, the caller gets the buffered bytes followed by the rest of the original stream. The bytes of
+ * a bundle are released when the bundle changes, and every resource is released when the wiring is refreshed, as the
+ * class loader of a bundle might load the resources from the wired bundles.
+ *
+ * <p>
+ * The cache is disabled by default. It can be enabled by setting the maximum number of cached bytes in the
+ * {@value #MAX_BYTES_PROPERTY} system property.
+ */
+public final class ResourceContentCache implements BundleChangeNotifier.Listener {
+
+    /**
+     * System property that holds the maximum number of cached bytes. Zero or a missing property disables the cache.
+     */
+    public static final String MAX_BYTES_PROPERTY = "org.everit.osgi.liquibase.bundle.resourceCache.maxBytes";
+
+    private static final ResourceContentCache INSTANCE = new ResourceContentCache(Long.getLong(MAX_BYTES_PROPERTY, 0));
+
+    static {
+        if (INSTANCE.isEnabled()) {
+            BundleChangeNotifier.addListener(INSTANCE);
+        }
+    }
+
+    public static ResourceContentCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final BundleResourceLruMap<byte[]> entries;
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public ResourceContentCache(final long maxBytes) {
+        this.entries = new BundleResourceLruMap<byte[]>(maxBytes) {
+
+            @Override
+            protected long weigh(final byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    @Override
+    public void bundleChanged(final Bundle bundle) {
+        entries.removeBundle(bundle.getBundleId());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the cached content of a resource.
+     *
+     * @param bundle
+     *            The bundle that the resource is loaded from.
+     * @param path
+     *            The path of the resource.
+     * @return A stream over the cached content or <code>null</code> if the resource is not in the cache.
+     */
+    public InputStream get(final Bundle bundle, final String path) {
+        byte[] content = entries.get(bundle, path);
+        if (content == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return new ByteArrayInputStream(content);
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMaxBytes() {
+        return entries.getMaxWeight();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of the cached bytes.
+     */
+    public long getSize() {
+        return entries.getWeight();
+    }
+
+    public boolean isEnabled() {
+        return entries.getMaxWeight() > 0;
+    }
+
+    /**
+     * Reads the content of a resource and stores it in the cache if it fits into the budget. At most one byte more
+     * than the budget is read into the memory. If the resource is larger, it is not cached and the returned stream
+     * continues with the rest of the original stream.
+     *
+     * @param bundle
+     *            The bundle that the resource is loaded from.
+     * @param path
+     *            The path of the resource.
+     * @param inputStream
+     *            The stream of the resource. The stream is closed by this method, or by the returned stream if the
+     *            resource does not fit into the budget.
+     * @return A stream over the content of the resource.
+     * @throws IOException
+     *             if the resource cannot be read.
+     */
+    public InputStream put(final Bundle bundle, final String path, final InputStream inputStream)
+            throws IOException {
+        long maxBytes = entries.getMaxWeight();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean tooLarge = false;
+        try {
+            long limit = (maxBytes < Long.MAX_VALUE) ? (maxBytes + 1) : maxBytes;
+            byte[] buffer = new byte[8192];
+            int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, limit));
+            while (read >= 0) {
+                out.write(buffer, 0, read);
+                if (out.size() >= limit) {
+                    break;
+                }
+                read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, limit - out.size()));
+            }
+            tooLarge = out.size() > maxBytes;
+        } finally {
+            if (!tooLarge) {
+                inputStream.close();
+            }
+        }
+        byte[] content = out.toByteArray();
+        if (tooLarge) {
+            return new SequenceInputStream(new ByteArrayInputStream(content), inputStream);
+        }
+        int evicted = entries.put(bundle, path, content);
+        if (evicted > 0) {
+            evictionCount.addAndGet(evicted);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public void wiringRefreshed() {
+        entries.clear();
+    }
+}
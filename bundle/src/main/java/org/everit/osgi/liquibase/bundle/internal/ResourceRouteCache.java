@@ -0,0 +1,144 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Remembers which of the shared accessors of the {@link org.everit.osgi.liquibase.bundle.OSGiResourceAccessor}, the
+ * accessor of the bundle or the accessor of the Liquibase bundle, found a resource, or that neither of them did. A
+ * resource that was found is read from the same accessor next time, and a missing resource is not looked up again,
+ * which saves the failing class loader lookups of every include and XSD. A route is a single number, so the cache is
+ * bounded by the number of the routes. The routes of a bundle are released when the bundle changes, and every route is
+ * released when the wiring is refreshed, as the class loader of a bundle might find the resources in the wired
+ * bundles.
+ *
+ * <p>
+ * The number of the remembered routes is limited by the {@value #MAX_ENTRIES_PROPERTY} system property. Zero
+ * disables the cache.
+ */
+public final class ResourceRouteCache implements BundleChangeNotifier.Listener {
+
+    /**
+     * The default number of the remembered routes.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    /**
+     * System property that holds the maximum number of the remembered routes.
+     */
+    public static final String MAX_ENTRIES_PROPERTY = "org.everit.osgi.liquibase.bundle.resourceRouteCache.maxEntries";
+
+    /**
+     * The route of the resources that none of the resource accessors found.
+     */
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * Returned by {@link #getRoute(Bundle, String)} if the route of the resource is not known.
+     */
+    public static final int UNKNOWN = -2;
+
+    private static final ResourceRouteCache INSTANCE = new ResourceRouteCache(Integer.getInteger(
+            MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+
+    static {
+        if (INSTANCE.isEnabled()) {
+            BundleChangeNotifier.addListener(INSTANCE);
+        }
+    }
+
+    public static ResourceRouteCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final BundleResourceLruMap<Integer> routes;
+
+    public ResourceRouteCache(final int maxEntries) {
+        this.routes = new BundleResourceLruMap<Integer>(maxEntries);
+    }
+
+    @Override
+    public void bundleChanged(final Bundle bundle) {
+        routes.removeBundle(bundle.getBundleId());
+    }
+
+    public void clear() {
+        routes.clear();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the route of a resource.
+     *
+     * @param bundle
+     *            The bundle of the resource accessor.
+     * @param path
+     *            The path of the resource.
+     * @return The index of the resource accessor that found the resource, {@link #NOT_FOUND} if none of them found
+     *         it or {@link #UNKNOWN} if the route is not remembered.
+     */
+    public int getRoute(final Bundle bundle, final String path) {
+        Integer route = routes.get(bundle, path);
+        if (route == null) {
+            missCount.incrementAndGet();
+            return UNKNOWN;
+        }
+        hitCount.incrementAndGet();
+        return route;
+    }
+
+    public boolean isEnabled() {
+        return routes.getMaxWeight() > 0;
+    }
+
+    /**
+     * Remembers the route of a resource.
+     *
+     * @param bundle
+     *            The bundle of the resource accessor.
+     * @param path
+     *            The path of the resource.
+     * @param route
+     *            The index of the resource accessor that found the resource or {@link #NOT_FOUND}.
+     */
+    public void putRoute(final Bundle bundle, final String path, final int route) {
+        routes.put(bundle, path, route);
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    @Override
+    public void wiringRefreshed() {
+        routes.clear();
+    }
+}
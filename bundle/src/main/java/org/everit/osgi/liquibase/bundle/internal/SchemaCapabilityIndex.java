@@ -0,0 +1,291 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import liquibase.logging.LogFactory;
+
+import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.util.tracker.BundleTracker;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+
+/**
+ * Index of the liquibase.schema capabilities of the resolved bundles. The index is maintained by a
+ * {@link BundleTracker}, so lookups do not have to iterate through the bundles of the framework and adapt each of them
+ * to {@link BundleWiring}. A capability is indexed under every value of its name attribute if the attribute holds a
+ * list.
+ */
+public final class SchemaCapabilityIndex {
+
+    /**
+     * One liquibase.schema capability that has a resource attribute.
+     */
+    public static final class Entry {
+
+        private final Bundle bundle;
+
+        private final BundleCapability capability;
+
+        private final String resource;
+
+        private Entry(final Bundle bundle, final BundleCapability capability, final String resource) {
+            this.bundle = bundle;
+            this.capability = capability;
+            this.resource = resource;
+        }
+
+        public Bundle getBundle() {
+            return bundle;
+        }
+
+        /**
+         * The current state of the bundle.
+         */
+        public int getBundleState() {
+            return bundle.getState();
+        }
+
+        public BundleCapability getCapability() {
+            return capability;
+        }
+
+        public String getResource() {
+            return resource;
+        }
+    }
+
+    private class Customizer implements BundleTrackerCustomizer<List<Entry>> {
+
+        @Override
+        public List<Entry> addingBundle(final Bundle bundle, final BundleEvent event) {
+            BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+            if (bundleWiring == null) {
+                return null;
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            for (BundleCapability capability : bundleWiring
+                    .getCapabilities(LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS)) {
+                Object resource = capability.getAttributes().get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE);
+                if (resource != null) {
+                    entries.add(new Entry(bundle, capability, String.valueOf(resource)));
+                } else {
+                    LogFactory.getLogger().warning("The " + LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS
+                            + " capability " + capability.getAttributes() + " of bundle " + bundle.getSymbolicName()
+                            + " has no " + LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE + " attribute");
+                }
+            }
+            addEntries(entries);
+            return entries;
+        }
+
+        @Override
+        public void modifiedBundle(final Bundle bundle, final BundleEvent event, final List<Entry> entries) {
+            // The capabilities do not change while the bundle is resolved and the state is read at lookup time
+        }
+
+        @Override
+        public void removedBundle(final Bundle bundle, final BundleEvent event, final List<Entry> entries) {
+            removeEntries(entries);
+        }
+    }
+
+    private static final int TRACKED_STATES = Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+
+    private static volatile SchemaCapabilityIndex sharedIndex;
+
+    /**
+     * Returns the index that is maintained with the context of the Liquibase bundle. The index is opened on first use
+     * and re-opened if the Liquibase bundle was restarted in the meantime.
+     *
+     * @return The shared index or <code>null</code> if the Liquibase bundle does not have a valid context (it is not
+     *         started or we are not in an OSGi environment).
+     */
+    public static SchemaCapabilityIndex getSharedIndex() {
+        BundleContext bundleContext;
+        try {
+            Bundle bundle = FrameworkUtil.getBundle(SchemaCapabilityIndex.class);
+            if (bundle == null) {
+                return null;
+            }
+            bundleContext = bundle.getBundleContext();
+        } catch (NoClassDefFoundError e) {
+            // We are not in OSGi environment
+            return null;
+        }
+
+        SchemaCapabilityIndex index = sharedIndex;
+        if ((index != null) && (index.bundleContext == bundleContext)) {
+            return index;
+        }
+        synchronized (SchemaCapabilityIndex.class) {
+            index = sharedIndex;
+            if ((index != null) && (index.bundleContext != bundleContext)) {
+                index.close();
+                index = null;
+            }
+            if ((index == null) && (bundleContext != null)) {
+                try {
+                    index = new SchemaCapabilityIndex(bundleContext);
+                    index.open();
+                } catch (NoClassDefFoundError e) {
+                    // The tracker package is not available
+                    index = null;
+                } catch (IllegalStateException e) {
+                    // The context became invalid in the meantime
+                    index = null;
+                }
+            }
+            sharedIndex = index;
+            return index;
+        }
+    }
+
+    /**
+     * Closes the index that is maintained with the context of the Liquibase bundle, so its tracker and its entries
+     * do not outlive the context. The next {@link #getSharedIndex()} call opens a new index.
+     */
+    public static void closeSharedIndex() {
+        synchronized (SchemaCapabilityIndex.class) {
+            SchemaCapabilityIndex index = sharedIndex;
+            sharedIndex = null;
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Every indexed capability in the order they were indexed.
+     */
+    private final Set<Entry> allEntries = new LinkedHashSet<Entry>();
+
+    private final BundleContext bundleContext;
+
+    private final BundleTracker<List<Entry>> bundleTracker;
+
+    private final Map<String, List<Entry>> entriesBySchemaName = new ConcurrentHashMap<String, List<Entry>>();
+
+    public SchemaCapabilityIndex(final BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+        this.bundleTracker = new BundleTracker<List<Entry>>(bundleContext, TRACKED_STATES, new Customizer());
+    }
+
+    private synchronized void addEntries(final List<Entry> entries) {
+        for (Entry entry : entries) {
+            allEntries.add(entry);
+            for (String schemaName : getSchemaNames(entry)) {
+                List<Entry> currentEntries = entriesBySchemaName.get(schemaName);
+                List<Entry> newEntries;
+                if (currentEntries == null) {
+                    newEntries = Collections.singletonList(entry);
+                } else {
+                    newEntries = new ArrayList<Entry>(currentEntries.size() + 1);
+                    newEntries.addAll(currentEntries);
+                    newEntries.add(entry);
+                    newEntries = Collections.unmodifiableList(newEntries);
+                }
+                entriesBySchemaName.put(schemaName, newEntries);
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            bundleTracker.close();
+        } catch (IllegalStateException e) {
+            // The context is not valid anymore so the listener is already removed
+        }
+        synchronized (this) {
+            allEntries.clear();
+            entriesBySchemaName.clear();
+        }
+    }
+
+    /**
+     * Returns all indexed capabilities.
+     */
+    public synchronized List<Entry> getAllEntries() {
+        return new ArrayList<Entry>(allEntries);
+    }
+
+    /**
+     * Returns the indexed capabilities that have the specified value in their name attribute.
+     *
+     * @param schemaName
+     *            The value of the name attribute.
+     * @return The matching capabilities in the order they were indexed. Never <code>null</code>.
+     */
+    public List<Entry> getEntries(final String schemaName) {
+        List<Entry> entries = entriesBySchemaName.get(schemaName);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the values of the name attribute of a capability. The attribute might hold a single value or a list.
+     */
+    private Collection<String> getSchemaNames(final Entry entry) {
+        Object nameAttr = entry.capability.getAttributes().get(LiquibaseOSGiUtil.ATTR_SCHEMA_NAME);
+        if (!(nameAttr instanceof Collection)) {
+            return Collections.singletonList(String.valueOf(nameAttr));
+        }
+        Collection<?> names = (Collection<?>) nameAttr;
+        Set<String> result = new LinkedHashSet<String>(names.size());
+        for (Object name : names) {
+            result.add(String.valueOf(name));
+        }
+        return result;
+    }
+
+    public void open() {
+        bundleTracker.open();
+    }
+
+    private synchronized void removeEntries(final Collection<Entry> entries) {
+        for (Entry entry : entries) {
+            allEntries.remove(entry);
+            for (String schemaName : getSchemaNames(entry)) {
+                List<Entry> currentEntries = entriesBySchemaName.get(schemaName);
+                if (currentEntries != null) {
+                    List<Entry> newEntries = new ArrayList<Entry>(currentEntries);
+                    newEntries.remove(entry);
+                    if (newEntries.isEmpty()) {
+                        entriesBySchemaName.remove(schemaName);
+                    } else {
+                        entriesBySchemaName.put(schemaName, Collections.unmodifiableList(newEntries));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least recently used cache of compiled schema expressions.
+ */
+public final class SchemaExpressionCache {
+
+    /**
+     * The default number of compiled expressions kept in the cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final SchemaExpressionCache INSTANCE = new SchemaExpressionCache(DEFAULT_MAX_SIZE);
+
+    public static SchemaExpressionCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final Map<String, SchemaExpressionMatcher> matchers;
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public SchemaExpressionCache(final int maxSize) {
+        this.matchers = new LinkedHashMap<String, SchemaExpressionMatcher>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, SchemaExpressionMatcher> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized void clear() {
+        matchers.clear();
+    }
+
+    /**
+     * Returns the compiled form of the schema expression. The expression is compiled if it is not in the cache yet.
+     *
+     * @param schemaExpression
+     *            The schema expression.
+     * @return The compiled expression.
+     * @throws org.everit.osgi.liquibase.bundle.SchemaExpressionSyntaxException
+     *             if the expression is not valid.
+     */
+    public SchemaExpressionMatcher getMatcher(final String schemaExpression) {
+        SchemaExpressionMatcher matcher;
+        synchronized (this) {
+            matcher = matchers.get(schemaExpression);
+        }
+        if (matcher != null) {
+            hitCount.incrementAndGet();
+            return matcher;
+        }
+        missCount.incrementAndGet();
+        matcher = SchemaExpressionMatcher.compile(schemaExpression);
+        synchronized (this) {
+            matchers.put(schemaExpression, matcher);
+        }
+        return matcher;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public synchronized int size() {
+        return matchers.size();
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.Map;
+
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Directive;
+import org.apache.felix.utils.manifest.Parser;
+import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
+import org.everit.osgi.liquibase.bundle.SchemaExpressionSyntaxException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Immutable, compiled form of a schema expression like <code>myApp;filter:=(version&gt;=2)</code>. The name part of
+ * the expression is checked by a simple comparison of the name attribute and the filter is evaluated only if the name
+ * matches.
+ */
+public final class SchemaExpressionMatcher {
+
+    /**
+     * Parses and compiles a schema expression.
+     *
+     * @param schemaExpression
+     *            The schema expression.
+     * @return The compiled expression.
+     * @throws SchemaExpressionSyntaxException
+     *             if the expression is not valid.
+     */
+    public static SchemaExpressionMatcher compile(final String schemaExpression) {
+        Clause[] clauses = Parser.parseClauses(new String[] { schemaExpression });
+        if (clauses.length != 1) {
+            throw new SchemaExpressionSyntaxException("The number of Clauses in the Schema expression should be 1");
+        }
+        Clause clause = clauses[0];
+        String schemaName = clause.getName();
+        Attribute[] attributes = clause.getAttributes();
+        if (attributes.length > 0) {
+            throw new SchemaExpressionSyntaxException("No Attributes in the schema expresson are supported.");
+        }
+        Directive[] directives = clause.getDirectives();
+        if (directives.length > 1) {
+            throw new SchemaExpressionSyntaxException(
+                    "The number of Directives in the Schema expression should not be more than 1");
+        }
+        String filterString = "(" + LiquibaseOSGiUtil.ATTR_SCHEMA_NAME + "=" + schemaName + ")";
+        String additionalFilterString = null;
+        if (directives.length == 1) {
+            if (!Constants.FILTER_DIRECTIVE.equals(directives[0].getName())) {
+                throw new SchemaExpressionSyntaxException(
+                        "Only the 'filter' directive is supported in the schema expression");
+            }
+            additionalFilterString = directives[0].getValue();
+            filterString = "(&" + filterString + additionalFilterString + ")";
+
+        }
+        try {
+            Filter filter = FrameworkUtil.createFilter(filterString);
+            Filter additionalFilter = null;
+            if (additionalFilterString != null) {
+                additionalFilter = FrameworkUtil.createFilter(additionalFilterString);
+            }
+            return new SchemaExpressionMatcher(schemaName, filter, additionalFilter);
+        } catch (InvalidSyntaxException e) {
+            throw new SchemaExpressionSyntaxException("The filter contains an invalid filter string");
+        }
+    }
+
+    private final Filter additionalFilter;
+
+    private final Filter filter;
+
+    private final String schemaName;
+
+    /**
+     * Whether the name can be compared with the name attribute directly or the filter has to be evaluated as the name
+     * contains wildcards or escaped characters.
+     */
+    private final boolean simpleSchemaName;
+
+    private SchemaExpressionMatcher(final String schemaName, final Filter filter, final Filter additionalFilter) {
+        this.schemaName = schemaName;
+        this.filter = filter;
+        this.additionalFilter = additionalFilter;
+        this.simpleSchemaName = (schemaName.indexOf('*') < 0) && (schemaName.indexOf('\\') < 0);
+    }
+
+    /**
+     * The filter that contains both the name and the filter directive of the schema expression.
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    /**
+     * Whether the schema name of the expression can be used to look up capabilities by the value of their name
+     * attribute.
+     */
+    public boolean isSimpleSchemaName() {
+        return simpleSchemaName;
+    }
+
+    /**
+     * Checks whether the attributes of a liquibase.schema capability match the expression.
+     *
+     * @param capabilityAttributes
+     *            The attributes of the capability.
+     * @return <code>true</code> if the capability matches.
+     */
+    public boolean matches(final Map<String, Object> capabilityAttributes) {
+        if (simpleSchemaName) {
+            Object nameAttr = capabilityAttributes.get(LiquibaseOSGiUtil.ATTR_SCHEMA_NAME);
+            if (nameAttr instanceof String) {
+                if (!schemaName.equals(nameAttr)) {
+                    return false;
+                }
+                return (additionalFilter == null) || additionalFilter.matches(capabilityAttributes);
+            }
+        }
+        return filter.matches(capabilityAttributes);
+    }
+
+    @Override
+    public String toString() {
+        return filter.toString();
+    }
+}
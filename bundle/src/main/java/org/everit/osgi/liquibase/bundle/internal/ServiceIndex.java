@@ -0,0 +1,215 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * The implementations of the Liquibase services that are found at build time by the
+ * {@link org.everit.osgi.liquibase.bundle.internal.build.ServiceIndexGenerator}. In OSGi environment the
+ * {@link liquibase.servicelocator.ServiceLocator} loads only the classes that are listed in the index for a service
+ * instead of loading every class of the indexed packages. The packages that are not covered by the index are scanned
+ * as before.
+ *
+ * <p>
+ * The index is stored in the {@value #INDEX_PATH} resource. It is a UTF-8 text file. The first line holds the indexed
+ * packages and the second line the classes that could not be loaded at build time, both after a marker. Every other
+ * line holds the name of a type followed by the public, concrete classes that are assignable to the type. The names
+ * are separated by a space. The types of the <code>java.</code> packages are not indexed.
+ */
+public final class ServiceIndex {
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The path of the index within the bundle.
+     */
+    public static final String INDEX_PATH = "META-INF/liquibase-services.idx";
+
+    private static final String PACKAGES_MARKER = "@packages";
+
+    private static final String SEPARATOR = " ";
+
+    private static final String UNRESOLVED_MARKER = "@unresolved";
+
+    private static List<String> readNames(final String line, final String marker) throws IOException {
+        if ((line == null) || !line.startsWith(marker)) {
+            throw new IOException("Invalid service index, " + marker + " is missing");
+        }
+        return splitNames(line.substring(marker.length()));
+    }
+
+    /**
+     * Reads the index of a bundle. The index is not used if fragments are attached to the bundle, as the fragments
+     * might add classes to the indexed packages.
+     *
+     * @param bundle
+     *            The bundle that holds the index.
+     * @return The index or <code>null</code> if the index is not available or it cannot be used.
+     * @throws IOException
+     *             if the index cannot be read.
+     */
+    public static ServiceIndex read(final Bundle bundle) throws IOException {
+        URL indexEntry = bundle.getEntry(INDEX_PATH);
+        if (indexEntry == null) {
+            return null;
+        }
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        BundleWiring wiring = (revision != null) ? revision.getWiring() : null;
+        if ((wiring == null) || !wiring.getProvidedWires(BundleRevision.HOST_NAMESPACE).isEmpty()) {
+            return null;
+        }
+        InputStream inputStream = indexEntry.openStream();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, ENCODING));
+        try {
+            List<String> packages = readNames(reader.readLine(), PACKAGES_MARKER);
+            List<String> unresolvedClasses = readNames(reader.readLine(), UNRESOLVED_MARKER);
+            Map<String, List<String>> implementations = new HashMap<String, List<String>>();
+            String line = reader.readLine();
+            while (line != null) {
+                int separatorIndex = line.indexOf(SEPARATOR);
+                if (separatorIndex > 0) {
+                    implementations.put(line.substring(0, separatorIndex),
+                            splitNames(line.substring(separatorIndex + 1)));
+                }
+                line = reader.readLine();
+            }
+            return new ServiceIndex(packages, unresolvedClasses, implementations);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static List<String> splitNames(final String names) {
+        String trimmedNames = names.trim();
+        if (trimmedNames.length() == 0) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(trimmedNames.split(SEPARATOR));
+    }
+
+    /**
+     * Writes an index.
+     *
+     * @param packages
+     *            The indexed packages.
+     * @param unresolvedClasses
+     *            The classes that could not be loaded.
+     * @param implementations
+     *            The implementations by the name of the type that they are assignable to.
+     * @param indexFile
+     *            The file that the index is written to.
+     * @throws IOException
+     *             if the index cannot be written.
+     */
+    public static void write(final Collection<String> packages, final Collection<String> unresolvedClasses,
+            final Map<String, ? extends Collection<String>> implementations, final File indexFile)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), ENCODING));
+        try {
+            writeLine(writer, PACKAGES_MARKER, packages);
+            writeLine(writer, UNRESOLVED_MARKER, unresolvedClasses);
+            for (Map.Entry<String, ? extends Collection<String>> entry : implementations.entrySet()) {
+                writeLine(writer, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeLine(final Writer writer, final String key, final Collection<String> names)
+            throws IOException {
+        writer.write(key);
+        for (String name : names) {
+            writer.write(SEPARATOR);
+            writer.write(name);
+        }
+        writer.write('\n');
+    }
+
+    private final Map<String, List<String>> implementations;
+
+    private final List<String> packages;
+
+    private final List<String> unresolvedClasses;
+
+    private ServiceIndex(final List<String> packages, final List<String> unresolvedClasses,
+            final Map<String, List<String>> implementations) {
+        this.packages = packages;
+        this.unresolvedClasses = unresolvedClasses;
+        this.implementations = implementations;
+    }
+
+    /**
+     * Checks whether the classes of a package and its subpackages are in the index.
+     */
+    public boolean covers(final String packageName) {
+        String trimmedName = packageName.trim();
+        for (String indexedPackage : packages) {
+            if (trimmedName.equals(indexedPackage) || trimmedName.startsWith(indexedPackage + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the classes that might implement a type.
+     *
+     * @param typeName
+     *            The name of the type.
+     * @return The public, concrete classes that are assignable to the type and the classes that could not be loaded at
+     *         build time, or <code>null</code> if the type cannot be looked up in the index.
+     */
+    public List<String> getCandidates(final String typeName) {
+        if (typeName.startsWith("java.")) {
+            return null;
+        }
+        List<String> typeImplementations = implementations.get(typeName);
+        if (unresolvedClasses.isEmpty()) {
+            if (typeImplementations == null) {
+                return Collections.emptyList();
+            }
+            return typeImplementations;
+        }
+        List<String> result = new ArrayList<String>(unresolvedClasses);
+        if (typeImplementations != null) {
+            result.addAll(typeImplementations);
+        }
+        return result;
+    }
+}
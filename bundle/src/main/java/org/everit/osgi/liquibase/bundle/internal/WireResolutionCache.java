@@ -0,0 +1,252 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import liquibase.logging.LogFactory;
+
+import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Caches the liquibase.schema wires that are selected for the schema expressions of the eosgi: includes. The entries
+ * are keyed by the revision of the requiring bundle and the schema expression, and they are only used while the wiring
+ * that they were resolved from is current. Refresh and bundle events release the entries early.
+ *
+ * <p>
+ * The number of the cached resolutions is limited by the {@value #MAX_ENTRIES_PROPERTY} system property. The least
+ * recently used resolutions are dropped first. Zero disables the cache.
+ */
+public final class WireResolutionCache implements BundleChangeNotifier.Listener {
+
+    /**
+     * The result of the wire resolution.
+     */
+    public static final class Resolution {
+
+        private final Bundle providerBundle;
+
+        private final BundleWiring requirerWiring;
+
+        private final String resource;
+
+        private final BundleWire wire;
+
+        private Resolution(final BundleWiring requirerWiring, final BundleWire wire) {
+            this.requirerWiring = requirerWiring;
+            this.wire = wire;
+            if (wire != null) {
+                this.providerBundle = wire.getProviderWiring().getBundle();
+                this.resource = String.valueOf(wire.getCapability().getAttributes()
+                        .get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE));
+            } else {
+                this.providerBundle = null;
+                this.resource = null;
+            }
+        }
+
+        public Bundle getProviderBundle() {
+            return providerBundle;
+        }
+
+        /**
+         * The value of the resource attribute of the wired capability.
+         */
+        public String getResource() {
+            return resource;
+        }
+
+        /**
+         * The matching wire or <code>null</code> if there is no wire that matches the schema expression.
+         */
+        public BundleWire getWire() {
+            return wire;
+        }
+    }
+
+    private static final class ResolutionKey {
+
+        private final int hashCode;
+
+        private final BundleRevision revision;
+
+        private final String schemaExpression;
+
+        ResolutionKey(final BundleRevision revision, final String schemaExpression) {
+            this.revision = revision;
+            this.schemaExpression = schemaExpression;
+            this.hashCode = (31 * revision.hashCode()) + schemaExpression.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ResolutionKey)) {
+                return false;
+            }
+            ResolutionKey other = (ResolutionKey) obj;
+            return (revision == other.revision) && schemaExpression.equals(other.schemaExpression);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The default number of the cached resolutions.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    /**
+     * System property that holds the maximum number of the cached resolutions.
+     */
+    public static final String MAX_ENTRIES_PROPERTY =
+            "org.everit.osgi.liquibase.bundle.wireResolutionCache.maxEntries";
+
+    private static final WireResolutionCache INSTANCE = new WireResolutionCache(Integer.getInteger(
+            MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+
+    static {
+        if (INSTANCE.isEnabled()) {
+            BundleChangeNotifier.addListener(INSTANCE);
+        }
+    }
+
+    public static WireResolutionCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final int maxEntries;
+
+    private final Map<ResolutionKey, Resolution> resolutions;
+
+    private WireResolutionCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.resolutions = new LinkedHashMap<ResolutionKey, Resolution>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ResolutionKey, Resolution> eldest) {
+                return size() > WireResolutionCache.this.maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void bundleChanged(final Bundle bundle) {
+        Iterator<Map.Entry<ResolutionKey, Resolution>> iterator = resolutions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ResolutionKey, Resolution> entry = iterator.next();
+            if (entry.getKey().revision.getBundle().equals(bundle)
+                    || bundle.equals(entry.getValue().getProviderBundle())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        resolutions.clear();
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Finds the liquibase.schema wire of the bundle that matches the schema expression.
+     *
+     * @param currentBundle
+     *            The bundle that requires the capability.
+     * @param schemaExpression
+     *            The schema expression.
+     * @return The resolution or <code>null</code> if the bundle is not resolved.
+     */
+    public Resolution resolve(final Bundle currentBundle, final String schemaExpression) {
+        BundleChangeNotifier.ensureRegistered();
+        BundleRevision revision = currentBundle.adapt(BundleRevision.class);
+        if (revision == null) {
+            return null;
+        }
+        ResolutionKey key = new ResolutionKey(revision, schemaExpression);
+        Resolution resolution;
+        synchronized (this) {
+            resolution = resolutions.get(key);
+        }
+        if ((resolution != null) && resolution.requirerWiring.isCurrent()) {
+            return resolution;
+        }
+
+        BundleWiring bundleWiring = revision.getWiring();
+        if (bundleWiring == null) {
+            return null;
+        }
+        resolution = new Resolution(bundleWiring, findMatchingWire(bundleWiring, schemaExpression));
+        synchronized (this) {
+            resolutions.put(key, resolution);
+        }
+        return resolution;
+    }
+
+    private BundleWire findMatchingWire(final BundleWiring bundleWiring, final String schemaExpression) {
+        List<BundleWire> wires = bundleWiring.getRequiredWires(LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS);
+
+        if (wires.size() == 0) {
+            return null;
+        }
+
+        SchemaExpressionMatcher matcher = SchemaExpressionCache.getInstance().getMatcher(schemaExpression);
+
+        Iterator<BundleWire> iterator = wires.iterator();
+        BundleWire matchingWire = null;
+        // Iterate through the wires to find the one that matches the schema expression
+        while ((matchingWire == null) && iterator.hasNext()) {
+            BundleWire wire = iterator.next();
+            BundleCapability capability = wire.getCapability();
+            Map<String, Object> capabilityAttributes = capability.getAttributes();
+            if (matcher.matches(capabilityAttributes)) {
+                Object schemaResourceAttr = capabilityAttributes.get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE);
+                if (schemaResourceAttr != null) {
+                    matchingWire = wire;
+                } else {
+                    LogFactory.getLogger().warning("The " + LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS
+                            + " capability of bundle " + wire.getProviderWiring().getBundle().getSymbolicName()
+                            + " matches the schema expression " + schemaExpression + " but it has no "
+                            + LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE + " attribute");
+                }
+            }
+        }
+        return matchingWire;
+    }
+
+    @Override
+    public synchronized void wiringRefreshed() {
+        resolutions.clear();
+    }
+}
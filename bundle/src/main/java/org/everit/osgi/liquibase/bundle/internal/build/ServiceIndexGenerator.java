@@ -0,0 +1,197 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.everit.osgi.liquibase.bundle.internal.ServiceIndex;
+
+/**
+ * Command line tool that writes the {@link ServiceIndex} of the bundle at build time. Every class of the given
+ * packages and their subpackages is loaded without initialization and the public, concrete classes are recorded under
+ * the name of every type that they are assignable to.
+ *
+ * <p>
+ * Arguments: the index file and the packages to index. A package argument can hold more packages separated by
+ * commas, so the value of the <code>Liquibase-Package</code> header can be passed as one argument. The classes are
+ * looked up through the context class loader, so the tool must be run with the classpath of the bundle, e.g. by the
+ * <code>java</code> goal of the exec-maven-plugin in the <code>process-classes</code> phase. The package of the tool
+ * is excluded from the bundle.
+ */
+public final class ServiceIndexGenerator {
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private static void addSupertypes(final Class<?> type, final Set<String> supertypes) {
+        if ((type == null) || type.getName().startsWith("java.") || !supertypes.add(type.getName())) {
+            return;
+        }
+        addSupertypes(type.getSuperclass(), supertypes);
+        for (Class<?> implementedInterface : type.getInterfaces()) {
+            addSupertypes(implementedInterface, supertypes);
+        }
+    }
+
+    private static void collectClassNames(final File directory, final String packagePath,
+            final Set<String> classNames) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String path = packagePath + "/" + file.getName();
+            if (file.isDirectory()) {
+                collectClassNames(file, path, classNames);
+            } else if (path.endsWith(CLASS_EXTENSION)) {
+                classNames.add(toClassName(path));
+            }
+        }
+    }
+
+    private static void collectClassNames(final JarFile jarFile, final String packagePath,
+            final Set<String> classNames) {
+        String prefix = packagePath + "/";
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.startsWith(prefix) && name.endsWith(CLASS_EXTENSION)) {
+                classNames.add(toClassName(name));
+            }
+        }
+    }
+
+    /**
+     * Lists the classes of a package and its subpackages in every directory and jar of the classpath.
+     */
+    private static void collectClassNames(final ClassLoader classLoader, final String packageName,
+            final Set<String> classNames) throws IOException {
+        String packagePath = packageName.replace('.', '/');
+        Enumeration<URL> resources = classLoader.getResources(packagePath);
+        while (resources.hasMoreElements()) {
+            URL resource = resources.nextElement();
+            if ("file".equals(resource.getProtocol())) {
+                File directory;
+                try {
+                    directory = new File(resource.toURI());
+                } catch (URISyntaxException e) {
+                    directory = new File(resource.getPath());
+                }
+                collectClassNames(directory, packagePath, classNames);
+            } else {
+                URLConnection connection = resource.openConnection();
+                if (!(connection instanceof JarURLConnection)) {
+                    throw new IOException("Cannot list the classes of " + resource);
+                }
+                connection.setUseCaches(false);
+                JarFile jarFile = ((JarURLConnection) connection).getJarFile();
+                try {
+                    collectClassNames(jarFile, packagePath, classNames);
+                } finally {
+                    jarFile.close();
+                }
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: " + ServiceIndexGenerator.class.getName()
+                    + " <index file> <package>[,<package>...]...");
+            System.exit(1);
+        }
+        Set<String> packages = new LinkedHashSet<String>();
+        for (int i = 1; i < args.length; i++) {
+            for (String packageName : args[i].split(",")) {
+                String trimmedName = packageName.trim();
+                if (trimmedName.length() > 0) {
+                    packages.add(trimmedName);
+                }
+            }
+        }
+
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = ServiceIndexGenerator.class.getClassLoader();
+        }
+        Set<String> classNames = new TreeSet<String>();
+        for (String packageName : packages) {
+            collectClassNames(classLoader, packageName, classNames);
+        }
+
+        Set<String> unresolvedClasses = new TreeSet<String>();
+        Map<String, Set<String>> implementations = new TreeMap<String, Set<String>>();
+        for (String className : classNames) {
+            Class<?> type;
+            try {
+                type = Class.forName(className, false, classLoader);
+            } catch (ClassNotFoundException e) {
+                unresolvedClasses.add(className);
+                continue;
+            } catch (LinkageError e) {
+                unresolvedClasses.add(className);
+                continue;
+            }
+            int modifiers = type.getModifiers();
+            if (!Modifier.isPublic(modifiers) || Modifier.isAbstract(modifiers) || type.isInterface()) {
+                continue;
+            }
+            Set<String> supertypes = new TreeSet<String>();
+            try {
+                addSupertypes(type, supertypes);
+            } catch (LinkageError e) {
+                unresolvedClasses.add(className);
+                continue;
+            }
+            for (String supertype : supertypes) {
+                Set<String> typeImplementations = implementations.get(supertype);
+                if (typeImplementations == null) {
+                    typeImplementations = new TreeSet<String>();
+                    implementations.put(supertype, typeImplementations);
+                }
+                typeImplementations.add(className);
+            }
+        }
+
+        File indexFile = new File(args[0]);
+        File parentDirectory = indexFile.getParentFile();
+        if ((parentDirectory != null) && !parentDirectory.isDirectory() && !parentDirectory.mkdirs()) {
+            throw new IOException("Cannot create directory " + parentDirectory.getAbsolutePath());
+        }
+        ServiceIndex.write(packages, unresolvedClasses, implementations, indexFile);
+    }
+
+    private static String toClassName(final String path) {
+        return path.substring(0, path.length() - CLASS_EXTENSION.length()).replace('/', '.');
+    }
+
+    private ServiceIndexGenerator() {
+    }
+}
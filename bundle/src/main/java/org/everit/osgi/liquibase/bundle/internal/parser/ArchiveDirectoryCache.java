@@ -0,0 +1,164 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Lists the directories of the jar and zip archives that contain includeAll directories without extracting the
+ * archives. The entries of an archive are read once and the file names are indexed by their directory. The indexes
+ * of the recently used archives are kept until the archive file is modified.
+ */
+final class ArchiveDirectoryCache {
+
+    /**
+     * The file names of an archive by directory.
+     */
+    private static final class ArchiveIndex {
+
+        private final Map<String, List<String>> fileNamesByDirectory;
+
+        private final long lastModified;
+
+        private final long length;
+
+        ArchiveIndex(final long lastModified, final long length,
+                final Map<String, List<String>> fileNamesByDirectory) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.fileNamesByDirectory = fileNamesByDirectory;
+        }
+    }
+
+    private static final ArchiveDirectoryCache INSTANCE = new ArchiveDirectoryCache();
+
+    private static final int MAX_ARCHIVES = 16;
+
+    public static ArchiveDirectoryCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the archive file of a jar:file:, wsjar:file: or zip: URL.
+     */
+    static File getArchiveFile(final URL resource) throws IOException {
+        String file = resource.getFile();
+        String path = file.split("!")[0];
+        if (path.matches("file:\\/[A-Za-z]:\\/.*")) {
+            path = path.replaceFirst("file:\\/", "");
+        } else {
+            path = path.replaceFirst("file:", "");
+        }
+        path = URLDecoder.decode(path, "UTF-8");
+        return new File(path);
+    }
+
+    private static Map<String, List<String>> readIndex(final File archiveFile) throws IOException {
+        Map<String, Set<String>> sortedFileNames = new HashMap<String, Set<String>>();
+        ZipFile zipFile = new ZipFile(archiveFile);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                int separatorIndex = name.lastIndexOf('/');
+                String directory = name.substring(0, separatorIndex + 1);
+                Set<String> fileNames = sortedFileNames.get(directory);
+                if (fileNames == null) {
+                    fileNames = new TreeSet<String>();
+                    sortedFileNames.put(directory, fileNames);
+                }
+                fileNames.add(name.substring(separatorIndex + 1));
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        Map<String, List<String>> result = new HashMap<String, List<String>>();
+        for (Map.Entry<String, Set<String>> entry : sortedFileNames.entrySet()) {
+            result.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<String>(entry.getValue())));
+        }
+        return result;
+    }
+
+    private final Map<File, ArchiveIndex> indexes = new LinkedHashMap<File, ArchiveIndex>(MAX_ARCHIVES, 0.75f,
+            true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<File, ArchiveIndex> eldest) {
+            return size() > MAX_ARCHIVES;
+        }
+    };
+
+    private ArchiveDirectoryCache() {
+    }
+
+    /**
+     * Returns the names of the files in a directory of an archive.
+     *
+     * @param archiveFile
+     *            The archive.
+     * @param directory
+     *            The path of the directory within the archive with a trailing slash.
+     * @return The names of the files in alphabetical order. The list is empty if the directory does not exist.
+     * @throws IOException
+     *             if the archive cannot be read.
+     */
+    public List<String> getFileNames(final File archiveFile, final String directory) throws IOException {
+        File absoluteFile = archiveFile.getAbsoluteFile();
+        long lastModified = absoluteFile.lastModified();
+        long length = absoluteFile.length();
+        ArchiveIndex index;
+        synchronized (indexes) {
+            index = indexes.get(absoluteFile);
+        }
+        if ((index == null) || (index.lastModified != lastModified) || (index.length != length)) {
+            index = new ArchiveIndex(lastModified, length, readIndex(absoluteFile));
+            synchronized (indexes) {
+                indexes.put(absoluteFile, index);
+            }
+        }
+        String entryDirectory = directory;
+        while (entryDirectory.startsWith("/")) {
+            entryDirectory = entryDirectory.substring(1);
+        }
+        List<String> fileNames = index.fileNamesByDirectory.get(entryDirectory);
+        if (fileNames == null) {
+            return Collections.emptyList();
+        }
+        return fileNames;
+    }
+}
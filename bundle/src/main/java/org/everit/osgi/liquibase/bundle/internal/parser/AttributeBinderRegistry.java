@@ -0,0 +1,242 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import liquibase.statement.DatabaseFunction;
+import liquibase.statement.SequenceCurrentValueFunction;
+import liquibase.statement.SequenceNextValueFunction;
+
+/**
+ * Sets the attributes of the changelog elements on the changes, columns, preconditions and other objects that are
+ * created for them. The setter and the type conversion of an attribute are selected once per class and attribute
+ * name and are reused by every parse. The setter is selected the same way as {@link liquibase.util.ObjectUtil}
+ * selects it, so the supported types, the unknown attribute behavior and the error messages are the same.
+ */
+final class AttributeBinderRegistry {
+
+    /**
+     * Sets the value of an attribute on the objects of a class.
+     */
+    private abstract static class Binder {
+
+        abstract void bind(Object object, String value) throws IllegalAccessException, InvocationTargetException;
+    }
+
+    /**
+     * Converts the attribute values to the parameter type of the setter.
+     */
+    private enum Converter {
+
+        BIG_INTEGER(BigInteger.class) {
+            @Override
+            Object convert(final String value) {
+                return new BigInteger(value);
+            }
+        },
+
+        BOOLEAN(Boolean.class) {
+            @Override
+            Object convert(final String value) {
+                return Boolean.valueOf(value);
+            }
+        },
+
+        BOOLEAN_PRIMITIVE(Boolean.TYPE) {
+            @Override
+            Object convert(final String value) {
+                return Boolean.valueOf(value);
+            }
+        },
+
+        DATABASE_FUNCTION(DatabaseFunction.class) {
+            @Override
+            Object convert(final String value) {
+                return new DatabaseFunction(value);
+            }
+        },
+
+        INTEGER(Integer.class) {
+            @Override
+            Object convert(final String value) {
+                return Integer.valueOf(value);
+            }
+        },
+
+        LONG(Long.class) {
+            @Override
+            Object convert(final String value) {
+                return Long.valueOf(value);
+            }
+        },
+
+        SEQUENCE_CURRENT_VALUE_FUNCTION(SequenceCurrentValueFunction.class) {
+            @Override
+            Object convert(final String value) {
+                return new SequenceCurrentValueFunction(value);
+            }
+        },
+
+        SEQUENCE_NEXT_VALUE_FUNCTION(SequenceNextValueFunction.class) {
+            @Override
+            Object convert(final String value) {
+                return new SequenceNextValueFunction(value);
+            }
+        },
+
+        STRING(String.class) {
+            @Override
+            Object convert(final String value) {
+                return value;
+            }
+        };
+
+        public static Converter forType(final Class<?> type) {
+            for (Converter converter : values()) {
+                if (converter.type.equals(type)) {
+                    return converter;
+                }
+            }
+            return null;
+        }
+
+        private final Class<?> type;
+
+        private Converter(final Class<?> type) {
+            this.type = type;
+        }
+
+        abstract Object convert(String value);
+    }
+
+    private static class MissingPropertyBinder extends Binder {
+
+        private final String message;
+
+        MissingPropertyBinder(final String message) {
+            this.message = message;
+        }
+
+        @Override
+        void bind(final Object object, final String value) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    private static class SetterBinder extends Binder {
+
+        private final Converter converter;
+
+        private final Method setter;
+
+        SetterBinder(final Method setter, final Converter converter) {
+            this.setter = setter;
+            this.converter = converter;
+        }
+
+        @Override
+        void bind(final Object object, final String value) throws IllegalAccessException,
+                InvocationTargetException {
+            setter.invoke(object, converter.convert(value));
+        }
+    }
+
+    /**
+     * A setter without parameters that precedes the usable setters. {@link liquibase.util.ObjectUtil} fails on these
+     * setters by reading the type of their first parameter.
+     */
+    private static class SetterWithoutParameterBinder extends Binder {
+
+        @Override
+        void bind(final Object object, final String value) {
+            throw new ArrayIndexOutOfBoundsException(0);
+        }
+    }
+
+    private static final AttributeBinderRegistry INSTANCE = new AttributeBinderRegistry();
+
+    public static AttributeBinderRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, Binder>> bindersByClass =
+            new ConcurrentHashMap<Class<?>, ConcurrentMap<String, Binder>>();
+
+    private AttributeBinderRegistry() {
+    }
+
+    private Binder createBinder(final Class<?> type, final String attributeName) {
+        String methodName = "set" + attributeName.substring(0, 1).toUpperCase(Locale.ENGLISH)
+                + attributeName.substring(1);
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                if (parameterTypes.length == 0) {
+                    return new SetterWithoutParameterBinder();
+                }
+                if (parameterTypes.length == 1) {
+                    Converter converter = Converter.forType(parameterTypes[0]);
+                    if (converter != null) {
+                        return new SetterBinder(method, converter);
+                    }
+                }
+            }
+        }
+        return new MissingPropertyBinder("Property '" + attributeName + "' not found on object type "
+                + type.getName());
+    }
+
+    private Binder getBinder(final Class<?> type, final String attributeName) {
+        ConcurrentMap<String, Binder> binders = bindersByClass.get(type);
+        if (binders == null) {
+            binders = new ConcurrentHashMap<String, Binder>();
+            ConcurrentMap<String, Binder> existingBinders = bindersByClass.putIfAbsent(type, binders);
+            if (existingBinders != null) {
+                binders = existingBinders;
+            }
+        }
+        Binder binder = binders.get(attributeName);
+        if (binder == null) {
+            binder = createBinder(type, attributeName);
+            binders.put(attributeName, binder);
+        }
+        return binder;
+    }
+
+    /**
+     * Sets the value of an attribute on an object.
+     *
+     * @param object
+     *            The object that is created for the element.
+     * @param attributeName
+     *            The name of the attribute.
+     * @param value
+     *            The expanded value of the attribute.
+     * @throws RuntimeException
+     *             if the object has no setter for the attribute.
+     */
+    public void setProperty(final Object object, final String attributeName, final String value)
+            throws IllegalAccessException, InvocationTargetException {
+        getBinder(object.getClass(), attributeName).bind(object, value);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import liquibase.changelog.DatabaseChangeLog;
+
+import org.everit.osgi.liquibase.bundle.internal.BundleChangeNotifier;
+import org.everit.osgi.liquibase.bundle.internal.BundleResourceLruMap;
+import org.osgi.framework.Bundle;
+
+/**
+ * Cache of the validated SAX events of the changelogs. The events are recorded before the changelog parameters are
+ * expanded, so they can be replayed with any parameters. Every replay goes through a new
+ * {@link OSGiXMLChangeLogSAXHandler}, so each parse gets its own {@link DatabaseChangeLog} with its own change sets
+ * and changes that are bound to the parameters of that parse. Nothing that can be modified is shared between the
+ * parses. The cache is bounded by the estimated memory size of the recorded events and strings, as the size of the
+ * changelogs differs by orders of magnitude. The cache is used only for the changelogs that are read through the
+ * shared accessors of the bundle, as the accessors that are passed by a caller might return different content for
+ * the same path.
+ *
+ * <p>
+ * There are two instances. The instance that is returned by {@link #getInstance()} holds the events of the parsed
+ * changelogs. It is disabled by default and it can be enabled by setting the maximum number of cached bytes in the
+ * {@value #MAX_BYTES_PROPERTY} system property. The instance that is returned by {@link #getPrecompiledInstance()}
+ * holds the precompiled changelogs that were found to be up to date with their XML, so the XML of a precompiled
+ * changelog is read and its digest is calculated only once per bundle revision. Its budget can be set in the
+ * {@value #PRECOMPILED_MAX_BYTES_PROPERTY} system property.
+ */
+class ChangeLogCache implements BundleChangeNotifier.Listener {
+
+    private static final long DEFAULT_PRECOMPILED_MAX_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * System property that holds the maximum number of bytes of the cached changelogs. Zero or a missing property
+     * disables the cache.
+     */
+    public static final String MAX_BYTES_PROPERTY = "org.everit.osgi.liquibase.bundle.changeLogCache.maxBytes";
+
+    /**
+     * System property that holds the maximum number of bytes of the cached precompiled changelogs. Zero disables the
+     * cache.
+     */
+    public static final String PRECOMPILED_MAX_BYTES_PROPERTY =
+            "org.everit.osgi.liquibase.bundle.precompiledChangeLogCache.maxBytes";
+
+    private static final ChangeLogCache INSTANCE = new ChangeLogCache(Long.getLong(MAX_BYTES_PROPERTY, 0));
+
+    private static final ChangeLogCache PRECOMPILED_INSTANCE = new ChangeLogCache(Long.getLong(
+            PRECOMPILED_MAX_BYTES_PROPERTY, DEFAULT_PRECOMPILED_MAX_BYTES));
+
+    static {
+        if (INSTANCE.isEnabled()) {
+            BundleChangeNotifier.addListener(INSTANCE);
+        }
+        if (PRECOMPILED_INSTANCE.isEnabled()) {
+            BundleChangeNotifier.addListener(PRECOMPILED_INSTANCE);
+        }
+    }
+
+    public static ChangeLogCache getInstance() {
+        return INSTANCE;
+    }
+
+    public static ChangeLogCache getPrecompiledInstance() {
+        return PRECOMPILED_INSTANCE;
+    }
+
+    private final BundleResourceLruMap<PrecompiledChangeLog> entries;
+
+    ChangeLogCache(final long maxBytes) {
+        this.entries = new BundleResourceLruMap<PrecompiledChangeLog>(maxBytes) {
+
+            @Override
+            protected long weigh(final PrecompiledChangeLog value) {
+                return value.getMemorySize();
+            }
+        };
+    }
+
+    @Override
+    public void bundleChanged(final Bundle bundle) {
+        entries.removeBundle(bundle.getBundleId());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the recorded events of a changelog.
+     *
+     * @return The events or <code>null</code> if the changelog is not in the cache.
+     */
+    public PrecompiledChangeLog get(final Bundle bundle, final String path) {
+        return entries.get(bundle, path);
+    }
+
+    public boolean isEnabled() {
+        return entries.getMaxWeight() > 0;
+    }
+
+    /**
+     * Stores the recorded events of a changelog that was parsed and validated successfully. The events of a changelog
+     * that is larger than the whole budget are not stored.
+     */
+    public void put(final Bundle bundle, final String path, final PrecompiledChangeLog changeLog) {
+        entries.put(bundle, path, changeLog);
+    }
+
+    @Override
+    public void wiringRefreshed() {
+        // The changelogs might be loaded from other bundles now
+        entries.clear();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import liquibase.logging.LogFactory;
+import liquibase.parser.LiquibaseParser;
+import liquibase.parser.NamespaceDetails;
+import liquibase.parser.NamespaceDetailsFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Compiled XML schemas of the changelogs keyed by the value of their xsi:schemaLocation attribute. The grammars are
+ * compiled once per JVM. Only the schema locations that can be mapped to XSD files shipped with Liquibase (the same
+ * way {@link liquibase.parser.core.xml.LiquibaseEntityResolver} does) are compiled, for the others
+ * <code>null</code> is returned and the changelog must be validated in the traditional way.
+ */
+class ChangeLogSchemaCache {
+
+    private static final ChangeLogSchemaCache INSTANCE = new ChangeLogSchemaCache();
+
+    /**
+     * Marker of the schema locations that cannot be compiled.
+     */
+    private static final Object UNRESOLVABLE = new Object();
+
+    public static ChangeLogSchemaCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Object> schemas = new ConcurrentHashMap<String, Object>();
+
+    private ChangeLogSchemaCache() {
+    }
+
+    private Schema compileSchema(final String schemaLocation, final LiquibaseParser parser) {
+        String[] tokens = schemaLocation.trim().split("\\s+");
+        if ((tokens.length == 0) || ((tokens.length % 2) != 0)) {
+            return null;
+        }
+        List<Source> sources = new ArrayList<Source>();
+        ClassLoader classLoader = ChangeLogSchemaCache.class.getClassLoader();
+        for (int i = 0; i < tokens.length; i += 2) {
+            String namespace = tokens[i];
+            String systemId = tokens[i + 1];
+            NamespaceDetails namespaceDetails = NamespaceDetailsFactory.getInstance().getNamespaceDetails(parser,
+                    namespace);
+            if (namespaceDetails == null) {
+                return null;
+            }
+            String localPath = namespaceDetails.getLocalPath(systemId);
+            if (localPath == null) {
+                return null;
+            }
+            URL xsdURL = classLoader.getResource(localPath);
+            if (xsdURL == null) {
+                return null;
+            }
+            sources.add(new StreamSource(xsdURL.toExternalForm()));
+        }
+
+        SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        try {
+            return schemaFactory.newSchema(sources.toArray(new Source[sources.size()]));
+        } catch (SAXException e) {
+            LogFactory.getLogger().debug("Cannot compile the schema of " + schemaLocation + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the compiled schema of the schema location.
+     *
+     * @param schemaLocation
+     *            The value of the xsi:schemaLocation attribute.
+     * @param parser
+     *            The parser that is used to find the details of the namespaces.
+     * @return The schema or <code>null</code> if the schema location refers to XSD files that are not shipped with
+     *         Liquibase.
+     */
+    public Schema getSchema(final String schemaLocation, final LiquibaseParser parser) {
+        Object schema = schemas.get(schemaLocation);
+        if (schema == null) {
+            synchronized (this) {
+                schema = schemas.get(schemaLocation);
+                if (schema == null) {
+                    schema = compileSchema(schemaLocation, parser);
+                    if (schema == null) {
+                        schema = UNRESOLVABLE;
+                    }
+                    schemas.put(schemaLocation, schema);
+                }
+            }
+        }
+        if (schema == UNRESOLVABLE) {
+            return null;
+        }
+        return (Schema) schema;
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import liquibase.logging.LogFactory;
+import liquibase.resource.ResourceAccessor;
+
+import org.everit.osgi.liquibase.bundle.OSGiResourceAccessor;
+import org.everit.osgi.liquibase.bundle.internal.BundleChangeNotifier;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+import br.com.germantech.liquibase.IFile;
+import br.com.germantech.liquibase.impl.BundleFile;
+import br.com.germantech.liquibase.impl.NormalFile;
+
+/**
+ * Finds the changelogs of an includeAll directory. The files of a directory within a bundle are listed with
+ * {@link Bundle#findEntries(String, String, boolean)} or, if the directory is not part of the bundle or its
+ * fragments, with {@link BundleWiring#listResources(String, String, int)}. The result is cached by the revision of
+ * the bundle and the path of the directory, as the content of a bundle revision never changes. The entries are
+ * released when the bundle changes or the wiring is refreshed. Directories outside of bundles are listed on every
+ * call.
+ */
+final class IncludeAllDiscovery implements BundleChangeNotifier.Listener {
+
+    private static final class DirectoryKey {
+
+        private final int hashCode;
+
+        private final String path;
+
+        private final BundleRevision revision;
+
+        DirectoryKey(final BundleRevision revision, final String path) {
+            this.revision = revision;
+            this.path = path;
+            this.hashCode = (31 * revision.hashCode()) + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DirectoryKey)) {
+                return false;
+            }
+            DirectoryKey other = (DirectoryKey) obj;
+            return (revision == other.revision) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final IncludeAllDiscovery INSTANCE = new IncludeAllDiscovery();
+
+    static {
+        BundleChangeNotifier.addListener(INSTANCE);
+    }
+
+    public static IncludeAllDiscovery getInstance() {
+        return INSTANCE;
+    }
+
+    private static String getName(final String entryPath) {
+        return entryPath.substring(entryPath.lastIndexOf('/') + 1);
+    }
+
+    private final Map<DirectoryKey, List<String>> bundleDirectories =
+            new ConcurrentHashMap<DirectoryKey, List<String>>();
+
+    private IncludeAllDiscovery() {
+    }
+
+    @Override
+    public void bundleChanged(final Bundle bundle) {
+        Iterator<DirectoryKey> iterator = bundleDirectories.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().revision.getBundle().equals(bundle)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the changelogs of an includeAll directory.
+     *
+     * @param resourceAccessor
+     *            The resource accessor of the changelog that contains the includeAll element.
+     * @param directory
+     *            The path of the directory with a trailing slash.
+     * @return The paths of the changelogs in alphabetical order of their names. The list is empty if the directory
+     *         does not exist or it does not contain any file.
+     * @throws IOException
+     *             if the directory cannot be listed.
+     */
+    public List<String> discover(final ResourceAccessor resourceAccessor, final String directory)
+            throws IOException {
+        Collection<String> fileNames = null;
+        if (resourceAccessor instanceof OSGiResourceAccessor) {
+            fileNames = listBundleDirectory(((OSGiResourceAccessor) resourceAccessor).getBundle(), directory);
+        }
+        if (fileNames == null) {
+            fileNames = listResourceDirectories(resourceAccessor, directory);
+        }
+        List<String> result = new ArrayList<String>(fileNames.size());
+        for (String fileName : fileNames) {
+            result.add(directory + fileName);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the files of a directory of a bundle.
+     *
+     * @return The names of the files or <code>null</code> if the bundle is not resolved or the directory is not found
+     *         within the bundle.
+     */
+    private List<String> listBundleDirectory(final Bundle bundle, final String directory) {
+        BundleChangeNotifier.ensureRegistered();
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        if (revision == null) {
+            return null;
+        }
+        DirectoryKey key = new DirectoryKey(revision, directory);
+        List<String> fileNames = bundleDirectories.get(key);
+        if (fileNames != null) {
+            return fileNames;
+        }
+
+        Set<String> sortedFileNames = new TreeSet<String>();
+        Iterator<IFile> entries = new BundleFile(bundle, directory).iterateFiles();
+        if (entries.hasNext()) {
+            while (entries.hasNext()) {
+                IFile entry = entries.next();
+                if (!entry.isDirectory()) {
+                    sortedFileNames.add(entry.getName());
+                }
+            }
+        } else {
+            BundleWiring wiring = revision.getWiring();
+            if (wiring == null) {
+                return null;
+            }
+            Collection<String> resources = wiring.listResources(directory, "*", 0);
+            if (resources != null) {
+                for (String resource : resources) {
+                    if (!resource.endsWith("/")) {
+                        sortedFileNames.add(getName(resource));
+                    }
+                }
+            }
+        }
+        if (sortedFileNames.isEmpty()) {
+            // The directory might be provided by the other resource accessors
+            return null;
+        }
+
+        fileNames = Collections.unmodifiableList(new ArrayList<String>(sortedFileNames));
+        bundleDirectories.put(key, fileNames);
+        return fileNames;
+    }
+
+    /**
+     * Lists the directories that the resource accessor finds for the path. The file names of the directories are
+     * merged.
+     */
+    private Collection<String> listResourceDirectories(final ResourceAccessor resourceAccessor,
+            final String directory) throws IOException {
+        Set<String> fileNames = new LinkedHashSet<String>();
+        Enumeration<URL> resources = resourceAccessor.getResources(directory);
+        Map<String, URL> urls = new TreeMap<String, URL>();
+        while (resources.hasMoreElements()) {
+            URL url = resources.nextElement();
+            urls.put(url.toExternalForm(), url);
+        }
+
+        for (URL url : urls.values()) {
+            String externalForm = url.toExternalForm();
+            if (externalForm.startsWith("file:")) {
+                File file;
+                try {
+                    file = new File(url.toURI());
+                } catch (URISyntaxException e) {
+                    file = new File(url.getPath());
+                }
+                if (file.isDirectory()) {
+                    Iterator<IFile> children = new NormalFile(file).iterateFiles();
+                    while (children.hasNext()) {
+                        IFile child = children.next();
+                        if (!child.isDirectory()) {
+                            fileNames.add(child.getName());
+                        }
+                    }
+                } else if (file.exists()) {
+                    fileNames.add(file.getName());
+                }
+            } else if (externalForm.startsWith("jar:file:") || externalForm.startsWith("wsjar:file:")
+                    || externalForm.startsWith("zip:")) {
+                String urlFile = url.getFile();
+                String entryDirectory = urlFile.substring(urlFile.indexOf('!') + 1);
+                if (!entryDirectory.endsWith("/")) {
+                    entryDirectory = entryDirectory + "/";
+                }
+                fileNames.addAll(ArchiveDirectoryCache.getInstance().getFileNames(
+                        ArchiveDirectoryCache.getArchiveFile(url), entryDirectory));
+            } else {
+                LogFactory.getLogger().debug(externalForm + " is not a file path");
+            }
+        }
+        return fileNames;
+    }
+
+    @Override
+    public void wiringRefreshed() {
+        // The resources that are listed through the wiring might have changed
+        bundleDirectories.clear();
+    }
+}
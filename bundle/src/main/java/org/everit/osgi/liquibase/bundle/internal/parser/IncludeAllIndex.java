@@ -0,0 +1,100 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import liquibase.resource.ResourceAccessor;
+
+import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
+import org.everit.osgi.liquibase.bundle.OSGiResourceAccessor;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * The sorted list of the files of a changelog directory that is created at build time by the ChangeLogPrecompiler of
+ * the <code>org.everit.osgi.liquibase.bundle.precompiler</code> module. The includeAll elements use the index
+ * instead of listing the directory within the bundle at runtime. The index of a directory is stored in the
+ * {@value #INDEX_FILE_NAME} file of the same directory under the directory that is named by the
+ * {@link LiquibaseOSGiUtil#PRECOMPILED_CHANGELOGS_HEADER} manifest header. The index is a UTF-8 text file that
+ * holds one file name per line. The index is not used if fragments are attached to the bundle, as the fragments might
+ * add files to the directory.
+ */
+final class IncludeAllIndex {
+
+    static final String ENCODING = "UTF-8";
+
+    public static final String INDEX_FILE_NAME = "includeAll.idx";
+
+    /**
+     * Returns the names of the files in a directory of the bundle of a resource accessor.
+     *
+     * @param resourceAccessor
+     *            The resource accessor of the changelog that contains the includeAll element.
+     * @param directory
+     *            The path of the directory.
+     * @return The names of the files in alphabetical order or <code>null</code> if there is no index for the
+     *         directory or it cannot be used.
+     * @throws IOException
+     *             if the index cannot be read.
+     */
+    static List<String> getFileNames(final ResourceAccessor resourceAccessor, final String directory)
+            throws IOException {
+        if (!(resourceAccessor instanceof OSGiResourceAccessor)) {
+            return null;
+        }
+        Bundle bundle = ((OSGiResourceAccessor) resourceAccessor).getBundle();
+        String precompiledDirectory = bundle.getHeaders().get(LiquibaseOSGiUtil.PRECOMPILED_CHANGELOGS_HEADER);
+        if (precompiledDirectory == null) {
+            return null;
+        }
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        BundleWiring wiring = (revision != null) ? revision.getWiring() : null;
+        if ((wiring == null) || !wiring.getProvidedWires(BundleRevision.HOST_NAMESPACE).isEmpty()) {
+            return null;
+        }
+        String indexPath = PrecompiledChangeLog.getPrecompiledPath(precompiledDirectory, directory) + "/"
+                + INDEX_FILE_NAME;
+        InputStream inputStream = resourceAccessor.getResourceAsStream(indexPath);
+        if (inputStream == null) {
+            return null;
+        }
+        List<String> fileNames = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, ENCODING));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                if (line.length() > 0) {
+                    fileNames.add(line);
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return fileNames;
+    }
+
+    private IncludeAllIndex() {
+    }
+}
@@ -21,28 +21,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLDecoder;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.Stack;
-import java.util.TreeSet;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.everit.osgi.liquibase.bundle.ChangeSetConsumer;
 import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
 import org.everit.osgi.liquibase.bundle.OSGiResourceAccessor;
+import org.everit.osgi.liquibase.bundle.internal.WireResolutionCache;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleWire;
 import org.xml.sax.Attributes;
@@ -50,7 +52,6 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import br.com.germantech.liquibase.IFile;
-import br.com.germantech.liquibase.impl.BundleFile;
 import br.com.germantech.liquibase.impl.NormalFile;
 import liquibase.Contexts;
 import liquibase.change.AddColumnConfig;
@@ -80,9 +81,11 @@ import liquibase.exception.ChangeLogParseException;
 import liquibase.exception.CustomChangeException;
 import liquibase.exception.LiquibaseException;
 import liquibase.exception.MigrationFailedException;
+import liquibase.exception.UnexpectedLiquibaseException;
 import liquibase.exception.UnknownChangelogFormatException;
 import liquibase.logging.LogFactory;
 import liquibase.logging.Logger;
+import liquibase.parser.ChangeLogParser;
 import liquibase.parser.ChangeLogParserFactory;
 import liquibase.parser.core.xml.IncludeAllFilter;
 import liquibase.precondition.CustomPreconditionWrapper;
@@ -94,13 +97,49 @@ import liquibase.precondition.core.SqlPrecondition;
 import liquibase.resource.ResourceAccessor;
 import liquibase.sql.visitor.SqlVisitor;
 import liquibase.sql.visitor.SqlVisitorFactory;
-import liquibase.util.FileUtil;
-import liquibase.util.ObjectUtil;
 import liquibase.util.StringUtils;
 import liquibase.util.file.FilenameUtils;
 
 class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
 
+    /**
+     * The elements that are handled differently from the change and precondition elements. The constant of an element
+     * is looked up once per SAX event and the handling is selected by switching on it.
+     */
+    private enum Element {
+
+        AND("and"), ARG("arg"), CHANGE_SET("changeSet"), COLUMN("column"), COMMENT("comment"),
+        CONSTRAINTS("constraints"), CUSTOM_PRECONDITION("customPrecondition"), DATABASE_CHANGE_LOG(
+                "databaseChangeLog"), INCLUDE("include"), INCLUDE_ALL("includeAll"), MODIFY_SQL("modifySql"),
+        NOT("not"), OR("or"), OTHER(null), PARAM("param"), PRE_CONDITIONS("preConditions"), PROPERTY("property"),
+        ROLLBACK("rollback"), SQL_CHECK("sqlCheck"), VALID_CHECK_SUM("validCheckSum"), WHERE("where"),
+        WHERE_PARAMS("whereParams");
+
+        private static final Map<String, Element> ELEMENTS_BY_NAME = new HashMap<String, Element>();
+
+        static {
+            for (Element element : values()) {
+                if (element.elementName != null) {
+                    ELEMENTS_BY_NAME.put(element.elementName, element);
+                }
+            }
+        }
+
+        public static Element forName(final String qName) {
+            Element element = ELEMENTS_BY_NAME.get(qName);
+            if (element == null) {
+                return OTHER;
+            }
+            return element;
+        }
+
+        private final String elementName;
+
+        private Element(final String elementName) {
+            this.elementName = elementName;
+        }
+    }
+
     /**
      * Wrapper for Attributes that expands the value as needed
      */
@@ -163,49 +202,17 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
 
         @Override
         public String getValue(final String qName) {
-            return changeLogParameters.expandExpressions(attributes.getValue(qName));
+            return expandExpressions(attributes.getValue(qName));
         }
 
         @Override
         public String getValue(final String uri, final String localName) {
-            return changeLogParameters.expandExpressions(attributes.getValue(uri, localName));
+            return expandExpressions(attributes.getValue(uri, localName));
         }
     }
 
     private static final char LIQUIBASE_FILE_SEPARATOR = '/';
 
-    static File extractZipFile(final URL resource) throws IOException {
-        String file = resource.getFile();
-        String path = file.split("!")[0];
-        if (path.matches("file:\\/[A-Za-z]:\\/.*")) {
-            path = path.replaceFirst("file:\\/", "");
-        } else {
-            path = path.replaceFirst("file:", "");
-        }
-        path = URLDecoder.decode(path, "UTF-8");
-        File zipfile = new File(path);
-
-        File tempDir = File.createTempFile("liquibase-sax", ".dir");
-        tempDir.delete();
-        tempDir.mkdir();
-
-        JarFile jarFile = new JarFile(zipfile);
-        try {
-            Enumeration<JarEntry> entries = jarFile.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                File entryFile = new File(tempDir, entry.getName());
-                entryFile.mkdirs();
-            }
-
-            FileUtil.forceDeleteOnExit(tempDir);
-        } finally {
-            jarFile.close();
-        }
-
-        return tempDir;
-    }
-
     private final ChangeFactory changeFactory;
     private final PreconditionFactory preconditionFactory;
 
@@ -215,8 +222,19 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
     protected Logger log;
     private final DatabaseChangeLog databaseChangeLog;
     private Change change;
+
+    /**
+     * The name of the element of the current change.
+     */
+    private String changeName;
     private final Stack changeSubObjects = new Stack();
-    private StringBuffer text;
+    /**
+     * The buffer of the text that is being collected or <code>null</code> if the text of the current element is
+     * ignored.
+     */
+    private TextBuffer text;
+
+    private final TextBuffer textBuffer = new TextBuffer();
     private PreconditionContainer rootPrecondition;
     private final Stack<PreconditionLogic> preconditionLogicStack = new Stack<PreconditionLogic>();
     private ChangeSet changeSet;
@@ -234,9 +252,35 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
 
     private boolean modifySqlAppliedOnRollback = false;
 
+    private final ParseContext parseContext;
+
+    /**
+     * The consumer that receives the change sets instead of the changelog or <code>null</code> if the change sets
+     * are collected in the changelog.
+     */
+    private final ChangeSetConsumer changeSetConsumer;
+
+    /**
+     * The executor that parses the included changelogs or <code>null</code> if they are parsed in the SAX callback.
+     */
+    private final Executor includeExecutor;
+
+    /**
+     * The change sets and the included changelogs (as {@link FutureTask}s) in document order that cannot be added to
+     * the changelog until the preceding includes are parsed. Null if there is no include that is being parsed.
+     */
+    private List<Object> pendingEntries;
+
+    /**
+     * The task of the last include of this changelog that was submitted to the include executor or <code>null</code>.
+     * The include tasks of a changelog complete in document order, so when this task is completed, every preceding
+     * include of the changelog is parsed.
+     */
+    private FutureTask<DatabaseChangeLog> lastIncludeTask;
+
     protected OSGiXMLChangeLogSAXHandler(final String physicalChangeLogLocation,
             final ResourceAccessor resourceAccessor,
-            final ChangeLogParameters changeLogParameters) {
+            final ChangeLogParameters changeLogParameters, final ParseContext parseContext) {
         log = LogFactory.getInstance().getLog();
         this.resourceAccessor = resourceAccessor;
 
@@ -245,6 +289,9 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
         databaseChangeLog.setChangeLogParameters(changeLogParameters);
 
         this.changeLogParameters = changeLogParameters;
+        this.parseContext = parseContext;
+        this.changeSetConsumer = parseContext.getChangeSetConsumer();
+        this.includeExecutor = OSGiXMLChangeLogSAXParser.getIncludeExecutor();
 
         changeFactory = ChangeFactory.getInstance();
         preconditionFactory = PreconditionFactory.getInstance();
@@ -252,77 +299,190 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
         changeLogParserFactory = ChangeLogParserFactory.getInstance();
     }
 
+    /**
+     * Adds the preconditions and the change sets of an included changelog to this changelog.
+     *
+     * @param changeLog
+     *            The included changelog or <code>null</code> if it was streamed to the consumer already.
+     */
+    private void addIncludedChangeLog(final DatabaseChangeLog changeLog) throws LiquibaseException {
+        if (changeLog == null) {
+            return;
+        }
+        PreconditionContainer preconditions = changeLog.getPreconditions();
+        if ((preconditions != null) && (changeSetConsumer != null)) {
+            if (!preconditions.getNestedPreconditions().isEmpty()) {
+                throw streamedPreconditionsException(changeLog);
+            }
+        } else if (preconditions != null) {
+            if (null == databaseChangeLog.getPreconditions()) {
+                databaseChangeLog.setPreconditions(new PreconditionContainer());
+            }
+            databaseChangeLog.getPreconditions().addNestedPrecondition(preconditions);
+        }
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            handleChangeSet(changeSet);
+        }
+    }
+
     @Override
     public void characters(final char ch[], final int start, final int length) throws SAXException {
         if (text != null) {
-            text.append(new String(ch, start, length));
+            try {
+                text.append(ch, start, length);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
         }
     }
 
-    @Override
-    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
-        String textString = null;
-        if ((text != null) && (text.length() > 0)) {
-            textString = changeLogParameters.expandExpressions(StringUtils.trimToNull(text.toString()));
+    /**
+     * Waits until every include that precedes the current position in the document of the changelog tree is parsed.
+     * It is called before the state that depends on the document order is read or changed: the processed eosgi:
+     * includes and the changelog parameters, as a property that is defined by an include must be visible to the
+     * content that follows the include.
+     */
+    private void awaitPrecedingIncludes() throws ChangeLogParseException {
+        if (lastIncludeTask != null) {
+            ParseContext.awaitTask(lastIncludeTask);
         }
+        parseContext.awaitPrecedingIncludes();
+    }
 
+    /**
+     * Waits for the included changelogs that are parsed by the include executor and adds the pending entries to the
+     * changelog in document order.
+     */
+    @SuppressWarnings("unchecked")
+    private void completePendingEntries() throws LiquibaseException {
+        if (pendingEntries == null) {
+            return;
+        }
+        List<Object> entries = pendingEntries;
+        pendingEntries = null;
+        lastIncludeTask = null;
+        Iterator<Object> iterator = entries.iterator();
         try {
-            if (changeSubObjects.size() > 0) {
-                changeSubObjects.pop();
-            } else if (rootPrecondition != null) {
-                if ("preConditions".equals(qName)) {
-                    if (changeSet == null) {
-                        databaseChangeLog.setPreconditions(rootPrecondition);
-                        handlePreCondition(rootPrecondition);
-                    } else {
-                        changeSet.setPreconditions(rootPrecondition);
-                    }
-                    rootPrecondition = null;
-                } else if ("and".equals(qName)) {
-                    preconditionLogicStack.pop();
-                    currentPrecondition = null;
-                } else if ("or".equals(qName)) {
-                    preconditionLogicStack.pop();
-                    currentPrecondition = null;
-                } else if ("not".equals(qName)) {
-                    preconditionLogicStack.pop();
-                    currentPrecondition = null;
-                } else if (qName.equals("sqlCheck")) {
-                    ((SqlPrecondition) currentPrecondition).setSql(textString);
-                    currentPrecondition = null;
-                } else if (qName.equals("customPrecondition")) {
-                    ((CustomPreconditionWrapper) currentPrecondition).setClassLoader(resourceAccessor.toClassLoader());
-                    currentPrecondition = null;
+            while (iterator.hasNext()) {
+                Object entry = iterator.next();
+                if (entry instanceof ChangeSet) {
+                    handleChangeSet((ChangeSet) entry);
+                } else {
+                    addIncludedChangeLog(joinIncludeTask((FutureTask<DatabaseChangeLog>) entry));
+                }
+            }
+        } finally {
+            while (iterator.hasNext()) {
+                Object entry = iterator.next();
+                if (entry instanceof FutureTask) {
+                    ((FutureTask<DatabaseChangeLog>) entry).cancel(false);
                 }
+            }
+        }
+    }
 
-            } else if ((changeSet != null) && "rollback".equals(qName)) {
+    private void endChange(final String textString) throws Exception {
+        if (textString != null) {
+            if (change instanceof RawSQLChange) {
+                // We've already expanded expressions when we defined 'textString' above. If we enabled
+                // escaping, we cannot re-expand; the now-literal variables in the text would get
+                // incorrectly expanded. If we haven't enabled escaping, then retain the current behavior.
+                String expandedExpression = textString;
+
+                if (false == ChangeLogParameters.EnableEscaping) {
+                    expandedExpression = expandExpressions(textString);
+                }
+                ((RawSQLChange) change).setSql(expandedExpression);
+            } else if (change instanceof CreateProcedureChange) {
+                ((CreateProcedureChange) change).setProcedureText(textString);
+                // } else if (change instanceof AlterViewChange) {
+                // ((AlterViewChange)
+                // change).setSelectQuery(textString);
+            } else if (change instanceof CreateViewChange) {
+                ((CreateViewChange) change).setSelectQuery(textString);
+            } else if (change instanceof StopChange) {
+                ((StopChange) change).setMessage(textString);
+            } else {
+                throw new RuntimeException("Unexpected text in "
+                        + changeFactory.getChangeMetaData(change).getName());
+            }
+        }
+        text = null;
+        if (inRollback) {
+            changeSet.addRollbackChange(change);
+        } else {
+            changeSet.addChange(change);
+        }
+        change = null;
+        changeName = null;
+    }
+
+    /**
+     * Handles the end of the elements that belong to the current change set.
+     *
+     * @return <code>true</code> if the element was handled.
+     */
+    private boolean endChangeSetElement(final Element element, final String textString) throws LiquibaseException {
+        switch (element) {
+        case ROLLBACK:
+            if (changeSet != null) {
                 changeSet.addRollBackSQL(textString);
                 inRollback = false;
-            } else if ((change != null) && (change instanceof RawSQLChange) && "comment".equals(qName)) {
+                return true;
+            }
+            return false;
+        case COMMENT:
+            if (change instanceof RawSQLChange) {
                 ((RawSQLChange) change).setComment(textString);
-                text = new StringBuffer();
-            } else if ((change != null) && "where".equals(qName)) {
+                text = textBuffer.reset();
+                return true;
+            }
+            if (change instanceof CreateProcedureChange) {
+                ((CreateProcedureChange) change).setComments(textString);
+                text = textBuffer.reset();
+                return true;
+            }
+            if (changeSet != null) {
+                changeSet.setComments(textString);
+                text = textBuffer.reset();
+                return true;
+            }
+            return false;
+        case WHERE:
+            if (change != null) {
                 if (change instanceof AbstractModifyDataChange) {
                     ((AbstractModifyDataChange) change).setWhere(textString);
                 } else {
                     throw new RuntimeException("Unexpected change type: " + change.getClass().getName());
                 }
-                text = new StringBuffer();
-            } else if ((change != null) && (change instanceof CreateProcedureChange) && "comment".equals(qName)) {
-                ((CreateProcedureChange) change).setComments(textString);
-                text = new StringBuffer();
-            } else if ((change != null) && (change instanceof CustomChangeWrapper) && (paramName != null)
-                    && "param".equals(qName)) {
+                text = textBuffer.reset();
+                return true;
+            }
+            return false;
+        case PARAM:
+            if ((change instanceof CustomChangeWrapper) && (paramName != null)) {
                 ((CustomChangeWrapper) change).setParam(paramName, textString);
-                text = new StringBuffer();
+                text = textBuffer.reset();
                 paramName = null;
-            } else if ((changeSet != null) && "comment".equals(qName)) {
-                changeSet.setComments(textString);
-                text = new StringBuffer();
-            } else if ((changeSet != null) && "changeSet".equals(qName)) {
+                return true;
+            }
+            if ((change instanceof AbstractModifyDataChange) && (textString != null)) {
+                List<ColumnConfig> columns = ((AbstractModifyDataChange) change)
+                        .getWhereParams();
+                columns.get(columns.size() - 1).setValue(textString);
+                text = textBuffer.reset();
+                return true;
+            }
+            return false;
+        case CHANGE_SET:
+            if (changeSet != null) {
                 handleChangeSet(changeSet);
                 changeSet = null;
-            } else if ((change != null) && qName.equals("column") && (textString != null)) {
+                return true;
+            }
+            return false;
+        case COLUMN:
+            if ((change != null) && (textString != null)) {
                 if (change instanceof InsertDataChange) {
                     List<ColumnConfig> columns = ((InsertDataChange) change).getColumns();
                     columns.get(columns.size() - 1).setValue(textString);
@@ -332,51 +492,48 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
                 } else {
                     throw new RuntimeException("Unexpected column with text: " + textString);
                 }
-                text = new StringBuffer();
-            } else if ((change != null) && (change instanceof AbstractModifyDataChange) && qName.equals("param")
-                    && (textString != null)) {
-                List<ColumnConfig> columns = ((AbstractModifyDataChange) change)
-                        .getWhereParams();
-                columns.get(columns.size() - 1).setValue(textString);
-                text = new StringBuffer();
-            } else if ((change != null)
-                    && localName.equals(changeFactory.getChangeMetaData(change).getName())) {
-                if (textString != null) {
-                    if (change instanceof RawSQLChange) {
-                        // We've already expanded expressions when we defined 'textString' above. If we enabled
-                        // escaping, we cannot re-expand; the now-literal variables in the text would get
-                        // incorrectly expanded. If we haven't enabled escaping, then retain the current behavior.
-                        String expandedExpression = textString;
-
-                        if (false == ChangeLogParameters.EnableEscaping) {
-                            expandedExpression = changeLogParameters.expandExpressions(textString);
-                        }
-                        ((RawSQLChange) change).setSql(expandedExpression);
-                    } else if (change instanceof CreateProcedureChange) {
-                        ((CreateProcedureChange) change).setProcedureText(textString);
-                        // } else if (change instanceof AlterViewChange) {
-                        // ((AlterViewChange)
-                        // change).setSelectQuery(textString);
-                    } else if (change instanceof CreateViewChange) {
-                        ((CreateViewChange) change).setSelectQuery(textString);
-                    } else if (change instanceof StopChange) {
-                        ((StopChange) change).setMessage(textString);
-                    } else {
-                        throw new RuntimeException("Unexpected text in "
-                                + changeFactory.getChangeMetaData(change).getName());
-                    }
-                }
-                text = null;
-                if (inRollback) {
-                    changeSet.addRollbackChange(change);
-                } else {
-                    changeSet.addChange(change);
-                }
-                change = null;
-            } else if ((changeSet != null) && "validCheckSum".equals(qName)) {
+                text = textBuffer.reset();
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        try {
+            completePendingEntries();
+        } catch (LiquibaseException e) {
+            log.severe("Error thrown as a SAXException: " + e.getMessage(), e);
+            throw new SAXException(databaseChangeLog.getPhysicalFilePath() + ": " + e.getMessage(), e);
+        } finally {
+            releaseResources();
+        }
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        String textString = null;
+        if ((text != null) && (text.length() > 0)) {
+            textString = expandExpressions(text.toTrimmedString());
+        }
+
+        Element element = Element.forName(qName);
+        try {
+            if (changeSubObjects.size() > 0) {
+                changeSubObjects.pop();
+            } else if (rootPrecondition != null) {
+                endPrecondition(element, textString);
+            } else if (endChangeSetElement(element, textString)) {
+                return;
+            } else if ((change != null) && localName.equals(changeName)) {
+                endChange(textString);
+            } else if ((changeSet != null) && (element == Element.VALID_CHECK_SUM)) {
                 changeSet.addValidCheckSum(text.toString());
                 text = null;
-            } else if ("modifySql".equals(qName)) {
+            } else if (element == Element.MODIFY_SQL) {
                 inModifySql = false;
                 modifySqlDbmsList = null;
                 modifySqlContexts = null;
@@ -388,6 +545,52 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
         }
     }
 
+    private void endPrecondition(final Element element, final String textString) throws LiquibaseException {
+        switch (element) {
+        case PRE_CONDITIONS:
+            if (changeSet == null) {
+                if (changeSetConsumer != null) {
+                    throw streamedPreconditionsException(databaseChangeLog);
+                }
+                databaseChangeLog.setPreconditions(rootPrecondition);
+                handlePreCondition(rootPrecondition);
+            } else {
+                changeSet.setPreconditions(rootPrecondition);
+            }
+            rootPrecondition = null;
+            break;
+        case AND:
+        case OR:
+        case NOT:
+            preconditionLogicStack.pop();
+            currentPrecondition = null;
+            break;
+        case SQL_CHECK:
+            ((SqlPrecondition) currentPrecondition).setSql(textString);
+            currentPrecondition = null;
+            break;
+        case CUSTOM_PRECONDITION:
+            ((CustomPreconditionWrapper) currentPrecondition).setClassLoader(resourceAccessor.toClassLoader());
+            currentPrecondition = null;
+            break;
+        default:
+            break;
+        }
+    }
+
+    private String expandExpressions(final String value) {
+        if ((value != null) && (value.indexOf("${") >= 0)) {
+            try {
+                awaitPrecedingIncludes();
+            } catch (ChangeLogParseException e) {
+                throw new UnexpectedLiquibaseException(e);
+            }
+        }
+        synchronized (changeLogParameters) {
+            return changeLogParameters.expandExpressions(value);
+        }
+    }
+
     public DatabaseChangeLog getDatabaseChangeLog() {
         return databaseChangeLog;
     }
@@ -405,8 +608,14 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
         return result;
     }
 
-    protected void handleChangeSet(final ChangeSet changeSet) {
-        databaseChangeLog.addChangeSet(changeSet);
+    protected void handleChangeSet(final ChangeSet changeSet) throws LiquibaseException {
+        if (pendingEntries != null) {
+            pendingEntries.add(changeSet);
+        } else if (changeSetConsumer != null) {
+            changeSetConsumer.accept(changeSet);
+        } else {
+            databaseChangeLog.addChangeSet(changeSet);
+        }
     }
 
     protected boolean handleIncludedChangeLog(String fileName, final boolean isRelativePath,
@@ -426,23 +635,21 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
             }
             OSGiResourceAccessor osgiResourceAccessor = (OSGiResourceAccessor) resourceAccessor;
             fileName = fileName.substring(LiquibaseOSGiUtil.INCLUDE_FILE_OSGI_PREFIX.length());
-            BundleWire bundleWire = LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(
+            WireResolutionCache.Resolution resolution = WireResolutionCache.getInstance().resolve(
                     osgiResourceAccessor.getBundle(), fileName);
 
-            if (bundleWire == null) {
+            if ((resolution == null) || (resolution.getWire() == null)) {
                 throw new ChangeLogParseException("No matching bundle wire for inclusion: " + fileName);
             }
 
-            fileName = String.valueOf(
-                    bundleWire.getCapability().getAttributes().get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE));
-            Bundle providerBundle = bundleWire.getProviderWiring().getBundle();
+            BundleWire bundleWire = resolution.getWire();
+            fileName = resolution.getResource();
+            Bundle providerBundle = resolution.getProviderBundle();
 
-            String changeLogLocation = providerBundle.getLocation() + "@" + fileName;
-            Set<String> processedChangeLogsOnThread = OSGiXMLChangeLogSAXParser.getProcessedChangeLogsOnThread();
-            if (processedChangeLogsOnThread.contains(changeLogLocation)) {
+            // The include might be processed by a preceding include that is parsed concurrently
+            awaitPrecedingIncludes();
+            if (!parseContext.markProcessed(providerBundle, fileName)) {
                 return false;
-            } else {
-                processedChangeLogsOnThread.add(changeLogLocation);
             }
 
             Map<String, Object> attributes = bundleWire.getCapability().getAttributes();
@@ -457,26 +664,65 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
                 fileName = FilenameUtils.getFullPath(relativeBaseFileName) + fileName;
             }
         }
-        DatabaseChangeLog changeLog;
-        try {
-            changeLog = changeLogParserFactory.getParser(fileName, resourceAccessorToUse).parse(fileName,
-                    changeLogParameters,
-                    resourceAccessorToUse);
-        } catch (UnknownChangelogFormatException e) {
-            throw new ChangeLogParseException("included file " + fileName + " is not a recognized file type");
+        if (includeExecutor != null) {
+            submitIncludeTask(fileName, resourceAccessorToUse);
+        } else {
+            addIncludedChangeLog(parseIncludedChangeLog(fileName, resourceAccessorToUse, parseContext));
         }
-        PreconditionContainer preconditions = changeLog.getPreconditions();
-        if (preconditions != null) {
-            if (null == databaseChangeLog.getPreconditions()) {
-                databaseChangeLog.setPreconditions(new PreconditionContainer());
+
+        return true;
+    }
+
+    /**
+     * Returns the result of an include task. If the task has not been started by the executor yet, it is run on the
+     * current thread, so a thread of the executor never waits for a task that is queued behind it.
+     */
+    private DatabaseChangeLog joinIncludeTask(final FutureTask<DatabaseChangeLog> includeTask)
+            throws LiquibaseException {
+        includeTask.run();
+        try {
+            return includeTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChangeLogParseException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof LiquibaseException) {
+                throw (LiquibaseException) cause;
             }
-            databaseChangeLog.getPreconditions().addNestedPrecondition(preconditions);
-        }
-        for (ChangeSet changeSet : changeLog.getChangeSets()) {
-            handleChangeSet(changeSet);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ChangeLogParseException(cause);
         }
+    }
 
-        return true;
+    /**
+     * Parses an included changelog.
+     *
+     * @return The included changelog or <code>null</code> if its change sets were streamed to the consumer of the
+     *         context during the parse.
+     */
+    private DatabaseChangeLog parseIncludedChangeLog(final String fileName,
+            final ResourceAccessor resourceAccessorToUse, final ParseContext includeParseContext)
+            throws LiquibaseException {
+        try {
+            ChangeLogParser parser = changeLogParserFactory.getParser(fileName, resourceAccessorToUse);
+            if (parser instanceof OSGiXMLChangeLogSAXParser) {
+                DatabaseChangeLog includedChangeLog = ((OSGiXMLChangeLogSAXParser) parser).parse(fileName,
+                        changeLogParameters, resourceAccessorToUse, includeParseContext);
+                if (includeParseContext.getChangeSetConsumer() != null) {
+                    return null;
+                }
+                return includedChangeLog;
+            }
+            return parser.parse(fileName, changeLogParameters, resourceAccessorToUse);
+        } catch (UnknownChangelogFormatException e) {
+            throw new ChangeLogParseException("included file " + fileName + " is not a recognized file type");
+        }
     }
 
     protected void handlePreCondition(@SuppressWarnings("unused") final Precondition precondition) {
@@ -493,6 +739,15 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
         }
     }
 
+    /**
+     * Releases the temporary resources of the handler. It is called at the end of the document and when the parse
+     * fails.
+     */
+    void releaseResources() {
+        text = null;
+        textBuffer.reset();
+    }
+
     private void setAllProperties(final Object object, final Attributes atts) throws IllegalAccessException,
             InvocationTargetException,
             CustomChangeException {
@@ -503,472 +758,288 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
         }
     }
 
+    private void setChangeLogParameter(final String name, final String value, final String context,
+            final String dbms) throws ChangeLogParseException {
+        // The first definition of a parameter wins, so the preceding includes have to define theirs first
+        awaitPrecedingIncludes();
+        synchronized (changeLogParameters) {
+            changeLogParameters.set(name, value, context, dbms);
+        }
+    }
+
     private void setProperty(final Object object, final String attributeName, final String attributeValue)
             throws IllegalAccessException,
             InvocationTargetException, CustomChangeException {
         if (object instanceof CustomChangeWrapper) {
             if (attributeName.equals("class")) {
-                ((CustomChangeWrapper) object).setClass(changeLogParameters.expandExpressions(attributeValue));
+                ((CustomChangeWrapper) object).setClass(expandExpressions(attributeValue));
             } else {
                 ((CustomChangeWrapper) object).setParam(attributeName,
-                        changeLogParameters.expandExpressions(attributeValue));
+                        expandExpressions(attributeValue));
             }
         } else {
-            ObjectUtil.setProperty(object, attributeName, changeLogParameters.expandExpressions(attributeValue));
+            AttributeBinderRegistry.getInstance().setProperty(object, attributeName,
+                    expandExpressions(attributeValue));
         }
     }
 
-    @Override
-    public void startElement(final String uri, final String localName, final String qName,
-            final Attributes baseAttributes) throws SAXException {
-        Attributes atts = new ExpandingAttributes(baseAttributes);
-        try {
-            if ("comment".equals(qName)) {
-                text = new StringBuffer();
-            } else if ("validCheckSum".equals(qName)) {
-                text = new StringBuffer();
-            } else if ("databaseChangeLog".equals(qName)) {
-                String schemaLocation = atts.getValue("xsi:schemaLocation");
-                if (schemaLocation != null) {
-                    Matcher matcher = Pattern.compile(".*dbchangelog-(\\d+\\.\\d+).xsd").matcher(schemaLocation);
-                    if (matcher.matches()) {
-                        String version = matcher.group(1);
-                        if (!version.equals(OSGiXMLChangeLogSAXParser
-                                .getSchemaVersion())) {
-                            log.warning(databaseChangeLog.getPhysicalFilePath()
-                                    + " is using schema version " + version
-                                    + " rather than version "
-                                    + OSGiXMLChangeLogSAXParser.getSchemaVersion());
-                        }
-                    }
-                }
-                databaseChangeLog.setLogicalFilePath(atts.getValue("logicalFilePath"));
-                ObjectQuotingStrategy quotingStrategy = ObjectQuotingStrategy.LEGACY;
-                String quotingStrategyText = atts.getValue("objectQuotingStrategy");
-                if (quotingStrategyText != null) {
-                    quotingStrategy = ObjectQuotingStrategy.valueOf(quotingStrategyText);
-                }
-                databaseChangeLog.setObjectQuotingStrategy(quotingStrategy);
-            } else if ("include".equals(qName)) {
-                String fileName = atts.getValue("file");
-                fileName = fileName.replace('\\', '/');
-                boolean isRelativeToChangelogFile = Boolean.parseBoolean(atts.getValue("relativeToChangelogFile"));
-                handleIncludedChangeLog(fileName, isRelativeToChangelogFile, databaseChangeLog.getPhysicalFilePath());
-            } else if ("includeAll".equals(qName)) {
-                String pathName = atts.getValue("path");
-                // Replace backwards slash with normal slash
-                pathName = pathName.replace('\\', '/');
-
-                // Add the normal slash to the end of the path, if not present already
-                if (!(pathName.endsWith("/"))) {
-                    pathName = pathName + '/';
-                }
-                
-                log.debug("includeAll for " + pathName);
-                log.debug("Using file opener for includeAll: " + resourceAccessor.toString());
-                
-                boolean isRelativeToChangelogFile = Boolean.parseBoolean(atts.getValue("relativeToChangelogFile"));
-
-                String resourceFilterDef = atts.getValue("resourceFilter");
-                IncludeAllFilter resourceFilter = null;
-                if (resourceFilterDef != null) {
-                    resourceFilter = (IncludeAllFilter) Class.forName(resourceFilterDef).newInstance();
-                }
-                
-                // Check if we are in a OSGi context
-                String base = FilenameUtils.getFullPath(pathName);
-				Enumeration<URL> res = resourceAccessor.getResources(base);
-                Logger logger = LogFactory.getInstance().getLog();
-                
-				while (res.hasMoreElements()) {
-					URL url = res.nextElement();
-					logger.info(String.format("Found file resource at [%s]: [%s]", base, url.toString()));
-				}
-                
-                // Relative to changelog
-                if (isRelativeToChangelogFile) {
-                	// TODO This still isn't working with relative path "../changelogs"
-                	// Resolve the relative path of folder to include
-                    IFile changeLogFile = null;
-
-                    boolean osgiContext = resourceAccessor instanceof OSGiResourceAccessor;
-                    
-                    logger.debug(String.format("Are we in an OSGi context? [%s]", osgiContext));
-                    
-					if (osgiContext) {
-                    	// Cria o file
-						OSGiResourceAccessor resAccessor = (OSGiResourceAccessor) resourceAccessor;
-						changeLogFile = new BundleFile(resAccessor.getBundle(), databaseChangeLog.getPhysicalFilePath());
-						logger.debug(String.format("Changelog file [%s]. Exists: [%s]", databaseChangeLog.getPhysicalFilePath(), changeLogFile.exists()));
-					} else {
-	                    Enumeration<URL> resources = resourceAccessor.getResources(databaseChangeLog.getPhysicalFilePath());
-	                    
-	                    // Does the changelog file being processed exist? Can we get its path?
-	                    while (resources.hasMoreElements()) {
-	                        try {
-	                            changeLogFile = new NormalFile(new File(resources.nextElement().toURI()));
-	                        } catch (URISyntaxException e) {
-	                            continue; // ignore error, probably a URL or something like that
-	                        }
-	                        if (changeLogFile.exists()) {
-	                            break;
-	                        } else {
-	                            changeLogFile = null;
-	                        }
-	                    }
-					}
-
-                    if (changeLogFile == null) {
-                        throw new SAXException("Cannot determine physical location of " + databaseChangeLog.getPhysicalFilePath());
-                    }
-                    
-                    // Get the base "folder" where all xmls are included
-//                    File resourceBase = new File(changeLogFile.getParentFile(), pathName);
-                    IFile resourceBase = null;
-                    
-                    if (osgiContext) {
-                    	// It's OSGi
-                    	OSGiResourceAccessor resAccessor = (OSGiResourceAccessor) resourceAccessor;
-                    	// É um caminho relativo, ele não vai encontrar o "resource"
-                    	resourceBase = new BundleFile(resAccessor.getBundle(), changeLogFile.getParentFile(), pathName);
-                    } else
-                    	resourceBase = new NormalFile(new File(changeLogFile.getParentFile().getPath(), pathName));
-                    
-                    logger.debug(String.format("Resource base IFile: [%s]. getPath: [%s]", resourceBase.getCanonicalPath(), resourceBase.getPath()));
-                    
-                    // Check if the base folder exists
-                    if (!resourceBase.exists()) {
-                        throw new SAXException(String.format("Resource directory for includeAll does not exist [%s]", resourceBase.getCanonicalPath()));
-                    }
-
-                    pathName = resourceBase.getPath();
-                    // Remove the parent folder absolute path from the path, to keep only the relative
-                    pathName = pathName.replaceFirst("^\\Q" + changeLogFile.getParentFile().getAbsolutePath() + "\\E", "");
-                    // Get only the last "part" of the path: "test/one/directory" becomes "/directory"
-                    pathName = databaseChangeLog.getFilePath().replaceFirst("/[^/]*$", "") + pathName;
-                    // Transform into unix path syntax
-                    pathName = pathName.replace('\\', '/');
-                    // If path does not end with "/", add it because it should be a folder
-                    if (!pathName.endsWith("/")) {
-                        pathName = pathName + "/";
-                    }
-
-                    while (pathName.matches(".*/\\.\\./.*")) {
-                        pathName = pathName.replaceFirst("[^/]+/\\.\\.", "/");
-                    }
-                    
-                    logger.debug("databaseChangeLog.getFilePath() = "+databaseChangeLog.getFilePath().replaceFirst("/[^/]*$", ""));
-                    logger.debug(String.format("Resolved relative pathName: [%s]", pathName));
-                }
-
-                Enumeration<URL> resourcesEnum = resourceAccessor.getResources(pathName);
-                SortedSet<URL> resources = new TreeSet<URL>(new Comparator<URL>() {
+    private void submitIncludeTask(final String fileName, final ResourceAccessor resourceAccessorToUse) {
+        final FutureTask<DatabaseChangeLog> precedingInclude = lastIncludeTask;
+        final ParseContext includeParseContext = parseContext.forConcurrentInclude(precedingInclude);
+        FutureTask<DatabaseChangeLog> includeTask = new FutureTask<DatabaseChangeLog>(
+                new Callable<DatabaseChangeLog>() {
                     @Override
-                    public int compare(final URL o1, final URL o2) {
-                        return o1.toString().compareTo(o2.toString());
-                    }
-                });
-                while (resourcesEnum.hasMoreElements()) {
-                    resources.add(resourcesEnum.nextElement());
-                }
-
-                boolean foundResource = false;
-
-                Set<String> seenPaths = new HashSet<String>();
-                List<String> includedChangeLogs = new LinkedList<String>();
-                for (URL fileUrl : resources) {
-                	// Check if it is a bundle file
-                	boolean isBundleFile = fileUrl.getProtocol().equals("bundleentry") || fileUrl.getProtocol().equals("bundleresource");
-                    
-                	if (!fileUrl.toExternalForm().startsWith("file:") && !isBundleFile) { // Bundle files are treated differently
-                    	// Extract the compressed file
-                        if (fileUrl.toExternalForm().startsWith("jar:file:")
-                                || fileUrl.toExternalForm().startsWith("wsjar:file:")
-                                || fileUrl.toExternalForm().startsWith("zip:")) {
-                            File zipFileDir = OSGiXMLChangeLogSAXHandler.extractZipFile(fileUrl);
-                            if (pathName.startsWith("classpath:")) {
-                                log.debug("replace classpath");
-                                pathName = pathName.replaceFirst("classpath:", "");
+                    public DatabaseChangeLog call() throws Exception {
+                        try {
+                            return parseIncludedChangeLog(fileName, resourceAccessorToUse, includeParseContext);
+                        } finally {
+                            // The include tasks of a changelog complete in document order
+                            if (precedingInclude != null) {
+                                ParseContext.awaitTask(precedingInclude);
                             }
-                            if (pathName.startsWith("classpath*:")) {
-                                log.debug("replace classpath*");
-                                pathName = pathName.replaceFirst("classpath\\*:", "");
-                            }
-                            URI fileUri = new File(zipFileDir, pathName).toURI();
-                            fileUrl = fileUri.toURL();
-                        } else {
-                            log.debug(fileUrl.toExternalForm() + " is not a file path");
-                            continue;
                         }
                     }
-                    
-                    IFile file = null;
-                    
-					if(isBundleFile) {
-                    	// OSGi resource... treat it differently
-                    	OSGiResourceAccessor accessor = (OSGiResourceAccessor) resourceAccessor;
-                    	file = new BundleFile(accessor.getBundle(), fileUrl.getPath());
-                    } else
-                    	file = new NormalFile(new File(fileUrl.toURI()));
-                    
-                    log.debug("includeAll using path " + file.getCanonicalPath());
-                    // Check if file exists and if it is a directory
-                    if (!file.exists()) {
-                        throw new SAXException("includeAll path " + pathName + " could not be found. Tried in "
-                                + file.toString());
-                    }
-                    // If it's a directory, then must traverse the directory too
-                    if (file.isDirectory()) {
-                        log.debug(file.getCanonicalPath() + " is a directory");
-                        for (IFile childFile : new TreeSet<IFile>(file.listFiles())) {
-                            String path = pathName + childFile.getName();
-                            if (!seenPaths.add(path)) {
-                                log.debug("already included " + path);
-                                continue;
-                            }
-
-                            includedChangeLogs.add(path);
-                        }
-                    } else {
-                        String path = pathName + file.getName();
-                        if (!seenPaths.add(path)) {
-                            log.debug("already included " + path);
-                            continue;
-                        }
-                        includedChangeLogs.add(path);
-                    }
-                }
-                if (resourceFilter != null) {
-                    includedChangeLogs = resourceFilter.filter(includedChangeLogs);
-                }
-
-                for (String path : includedChangeLogs) {
-                    if (handleIncludedChangeLog(path, false, databaseChangeLog.getPhysicalFilePath())) {
-                        foundResource = true;
-                    }
-                }
-
-                if (!foundResource) {
-                    throw new SAXException("Could not find directory or directory was empty for includeAll '"
-                            + pathName + "'");
-                }
-            } else if ((changeSet == null) && "changeSet".equals(qName)) {
-                boolean alwaysRun = false;
-                boolean runOnChange = false;
-                if ("true".equalsIgnoreCase(atts.getValue("runAlways"))) {
-                    alwaysRun = true;
-                }
-                if ("true".equalsIgnoreCase(atts.getValue("runOnChange"))) {
-                    runOnChange = true;
-                }
-                String filePath = atts.getValue("logicalFilePath");
-                if ((filePath == null) || "".equals(filePath)) {
-                    filePath = databaseChangeLog.getFilePath();
-                }
-
-                ObjectQuotingStrategy quotingStrategy = databaseChangeLog.getObjectQuotingStrategy();
-                String quotingStrategyText = atts.getValue("objectQuotingStrategy");
-                if (quotingStrategyText != null) {
-                    quotingStrategy = ObjectQuotingStrategy.valueOf(quotingStrategyText);
-                }
-
-                changeSet = new ChangeSet(atts.getValue("id"), atts.getValue("author"), alwaysRun, runOnChange,
-                        filePath,
-                        atts.getValue("context"), atts.getValue("dbms"), Boolean.valueOf(atts
-                                .getValue("runInTransaction")),
-                        quotingStrategy, databaseChangeLog);
-                if (StringUtils.trimToNull(atts.getValue("failOnError")) != null) {
-                    changeSet.setFailOnError(Boolean.parseBoolean(atts.getValue("failOnError")));
-                }
-                if (StringUtils.trimToNull(atts.getValue("onValidationFail")) != null) {
-                    changeSet.setOnValidationFail(ChangeSet.ValidationFailOption.valueOf(atts
-                            .getValue("onValidationFail")));
-                }
-                changeSet.setChangeLogParameters(changeLogParameters);
-
-            } else if ((changeSet != null) && "rollback".equals(qName)) {
-                text = new StringBuffer();
-                String id = atts.getValue("changeSetId");
-                if (id != null) {
-                    String path = atts.getValue("changeSetPath");
-                    if (path == null) {
-                        path = databaseChangeLog.getFilePath();
-                    }
-                    String author = atts.getValue("changeSetAuthor");
-                    ChangeSet changeSet = databaseChangeLog.getChangeSet(path, author, id);
-                    if (changeSet == null) {
-                        throw new SAXException("Could not find changeSet to use for rollback: " + path + ":" + author
-                                + ":" + id);
-                    } else {
-                        for (Change change : changeSet.getChanges()) {
-                            this.changeSet.addRollbackChange(change);
-                        }
-                    }
-                }
-                inRollback = true;
-            } else if ("preConditions".equals(qName)) {
-                rootPrecondition = new PreconditionContainer();
-                rootPrecondition.setOnFail(StringUtils.trimToNull(atts.getValue("onFail")));
-                rootPrecondition.setOnError(StringUtils.trimToNull(atts.getValue("onError")));
-                rootPrecondition.setOnFailMessage(StringUtils.trimToNull(atts.getValue("onFailMessage")));
-                rootPrecondition.setOnErrorMessage(StringUtils.trimToNull(atts.getValue("onErrorMessage")));
-                rootPrecondition.setOnSqlOutput(StringUtils.trimToNull(atts.getValue("onSqlOutput")));
-                preconditionLogicStack.push(rootPrecondition);
-            } else if ((currentPrecondition != null) && (currentPrecondition instanceof CustomPreconditionWrapper)
-                    && qName.equals("param")) {
-                ((CustomPreconditionWrapper) currentPrecondition).setParam(atts.getValue("name"),
-                        atts.getValue("value"));
-            } else if (rootPrecondition != null) {
-                currentPrecondition = preconditionFactory.create(localName);
-
-                setAllProperties(currentPrecondition, atts);
-                preconditionLogicStack.peek().addNestedPrecondition(currentPrecondition);
-
-                if (currentPrecondition instanceof PreconditionLogic) {
-                    preconditionLogicStack.push(((PreconditionLogic) currentPrecondition));
-                }
+                });
+        if (pendingEntries == null) {
+            pendingEntries = new ArrayList<Object>();
+        }
+        pendingEntries.add(includeTask);
+        lastIncludeTask = includeTask;
+        try {
+            includeExecutor.execute(includeTask);
+        } catch (RejectedExecutionException e) {
+            // The task will be run on this thread when the pending entries are completed
+            log.debug("Include task of " + fileName + " was rejected by the executor: " + e.getMessage());
+        }
+    }
 
-                if ("sqlCheck".equals(qName)) {
-                    text = new StringBuffer();
-                }
-            } else if ("modifySql".equals(qName)) {
-                inModifySql = true;
-                if (StringUtils.trimToNull(atts.getValue("dbms")) != null) {
-                    modifySqlDbmsList = new HashSet<String>(StringUtils.splitAndTrim(atts.getValue("dbms"), ","));
-                }
-                if (StringUtils.trimToNull(atts.getValue("context")) != null) {
-                    modifySqlContexts = new Contexts(atts.getValue("context"));
-                }
-                if (StringUtils.trimToNull(atts.getValue("applyToRollback")) != null) {
-                    modifySqlAppliedOnRollback = Boolean.valueOf(atts.getValue("applyToRollback"));
-                }
-            } else if (inModifySql) {
-                SqlVisitor sqlVisitor = sqlVisitorFactory.create(localName);
-                for (int i = 0; i < atts.getLength(); i++) {
-                    String attributeName = atts.getLocalName(i);
-                    String attributeValue = atts.getValue(i);
-                    setProperty(sqlVisitor, attributeName, attributeValue);
-                }
-                sqlVisitor.setApplicableDbms(modifySqlDbmsList);
-                sqlVisitor.setApplyToRollback(modifySqlAppliedOnRollback);
-                sqlVisitor.setContexts(modifySqlContexts);
+    private void startChange(final String localName, final Attributes atts) throws Exception {
+        change = changeFactory.create(localName);
+        if (change == null) {
+            throw new SAXException("Unknown Liquibase extension: " + localName
+                    + ".  Are you missing a jar from your classpath?");
+        }
+        change.setChangeSet(changeSet);
+        text = textBuffer.reset();
+        if (change == null) {
+            throw new MigrationFailedException(changeSet, "Unknown change: " + localName);
+        }
+        change.setResourceAccessor(resourceAccessor);
+        if (change instanceof CustomChangeWrapper) {
+            ((CustomChangeWrapper) change).setClassLoader(resourceAccessor.toClassLoader());
+        }
 
-                changeSet.addSqlVisitor(sqlVisitor);
-            } else if ((changeSet != null) && (change == null)) {
-                change = changeFactory.create(localName);
-                if (change == null) {
-                    throw new SAXException("Unknown Liquibase extension: " + localName
-                            + ".  Are you missing a jar from your classpath?");
-                }
-                change.setChangeSet(changeSet);
-                text = new StringBuffer();
-                if (change == null) {
-                    throw new MigrationFailedException(changeSet, "Unknown change: " + localName);
-                }
-                change.setResourceAccessor(resourceAccessor);
-                if (change instanceof CustomChangeWrapper) {
-                    ((CustomChangeWrapper) change).setClassLoader(resourceAccessor.toClassLoader());
-                }
+        setAllProperties(change, atts);
+        change.finishInitialization();
+        changeName = changeFactory.getChangeMetaData(change).getName();
+    }
 
-                setAllProperties(change, atts);
-                change.finishInitialization();
-            } else if ((change != null) && "column".equals(qName)) {
-                ColumnConfig column;
-                if (change instanceof LoadDataChange) {
-                    column = new LoadDataColumnConfig();
-                } else if ((change instanceof AddColumnChange) || (change instanceof CreateIndexChange)) {
-                    column = new AddColumnConfig();
-                } else if (change instanceof CreateIndexChange) {
-                    column = new AddColumnConfig();
-                } else {
-                    column = new ColumnConfig();
-                }
-                populateColumnFromAttributes(atts, column);
-                if (change instanceof ChangeWithColumns) {
-                    ((ChangeWithColumns) change).addColumn(column);
-                } else {
-                    throw new RuntimeException("Unexpected column tag for " + change.getClass().getName());
-                }
-            } else if ((change != null) && "whereParams".equals(qName)) {
+    /**
+     * Handles the elements that belong to the current change or to the changelog after the change elements.
+     *
+     * @return <code>true</code> if the element was handled.
+     */
+    private boolean startChangeElement(final Element element, final Attributes atts) throws Exception {
+        switch (element) {
+        case COLUMN:
+            if (change != null) {
+                startColumn(atts);
+                return true;
+            }
+            return false;
+        case WHERE_PARAMS:
+            if (change != null) {
                 if (!(change instanceof AbstractModifyDataChange)) {
                     throw new RuntimeException("Unexpected change: " + change.getClass().getName());
                 }
-            } else if ((change != null) && (change instanceof AbstractModifyDataChange) && "param".equals(qName)) {
+                return true;
+            }
+            return false;
+        case PARAM:
+            if (change instanceof AbstractModifyDataChange) {
                 ColumnConfig param = new ColumnConfig();
                 populateColumnFromAttributes(atts, param);
                 ((AbstractModifyDataChange) change).addWhereParam(param);
-            } else if ((change != null) && "constraints".equals(qName)) {
-                ConstraintsConfig constraints = new ConstraintsConfig();
-                for (int i = 0; i < atts.getLength(); i++) {
-                    String attributeName = atts.getLocalName(i);
-                    String attributeValue = atts.getValue(i);
-                    setProperty(constraints, attributeName, attributeValue);
-                }
-                ColumnConfig lastColumn = null;
-                if (change instanceof ChangeWithColumns) {
-                    List<ColumnConfig> columns = ((ChangeWithColumns) change).getColumns();
-                    if ((columns != null) && (columns.size() > 0)) {
-                        lastColumn = columns.get(columns.size() - 1);
-                    }
-                } else {
-                    throw new RuntimeException("Unexpected change: " + change.getClass().getName());
-                }
-                if (lastColumn == null) {
-                    throw new RuntimeException("Could not determine column to add constraint to");
-                }
-                lastColumn.setConstraints(constraints);
-            } else if ("param".equals(qName) && (change instanceof CustomChangeWrapper)) {
+                return true;
+            }
+            if (change instanceof CustomChangeWrapper) {
                 if (atts.getValue("value") == null) {
                     paramName = atts.getValue("name");
-                    text = new StringBuffer();
+                    text = textBuffer.reset();
                 } else {
                     ((CustomChangeWrapper) change).setParam(atts.getValue("name"), atts.getValue("value"));
                 }
-            } else if ("where".equals(qName)) {
-                text = new StringBuffer();
-            } else if ("property".equals(qName)) {
-                String context = StringUtils.trimToNull(atts.getValue("context"));
-                String dbms = StringUtils.trimToNull(atts.getValue("dbms"));
-                if (StringUtils.trimToNull(atts.getValue("file")) == null) {
-                    changeLogParameters.set(atts.getValue("name"), atts.getValue("value"), context, dbms);
-                } else {
-                    Properties props = new Properties();
-                    InputStream propertiesStream = resourceAccessor.getResourceAsStream(atts.getValue("file"));
-                    if (propertiesStream == null) {
-                        log.info("Could not open properties file " + atts.getValue("file"));
-                    } else {
-                        props.load(propertiesStream);
-
-                        for (Map.Entry entry : props.entrySet()) {
-                            changeLogParameters.set(entry.getKey().toString(), entry.getValue().toString(),
-                                    context, dbms);
-                        }
-                    }
-                }
-            } else if ((change instanceof ExecuteShellCommandChange) && "arg".equals(qName)) {
+                return true;
+            }
+            return false;
+        case CONSTRAINTS:
+            if (change != null) {
+                startConstraints(atts);
+                return true;
+            }
+            return false;
+        case WHERE:
+            text = textBuffer.reset();
+            return true;
+        case PROPERTY:
+            startProperty(atts);
+            return true;
+        case ARG:
+            if (change instanceof ExecuteShellCommandChange) {
                 ((ExecuteShellCommandChange) change).addArg(atts.getValue("value"));
-            } else if (change != null) {
-                String creatorMethod = "create" + localName.substring(0, 1).toUpperCase() + localName.substring(1);
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
 
-                Object objectToCreateFrom;
-                if (changeSubObjects.size() == 0) {
-                    objectToCreateFrom = change;
-                } else {
-                    objectToCreateFrom = changeSubObjects.peek();
-                }
+    private void startChangeSet(final Attributes atts) {
+        boolean alwaysRun = false;
+        boolean runOnChange = false;
+        if ("true".equalsIgnoreCase(atts.getValue("runAlways"))) {
+            alwaysRun = true;
+        }
+        if ("true".equalsIgnoreCase(atts.getValue("runOnChange"))) {
+            runOnChange = true;
+        }
+        String filePath = atts.getValue("logicalFilePath");
+        if ((filePath == null) || "".equals(filePath)) {
+            filePath = databaseChangeLog.getFilePath();
+        }
 
-                Method method;
-                try {
-                    method = objectToCreateFrom.getClass().getMethod(creatorMethod);
-                } catch (NoSuchMethodException e) {
-                    throw new MigrationFailedException(changeSet, "Could not find creator method " + creatorMethod
-                            + " for tag: "
-                            + localName);
+        ObjectQuotingStrategy quotingStrategy = databaseChangeLog.getObjectQuotingStrategy();
+        String quotingStrategyText = atts.getValue("objectQuotingStrategy");
+        if (quotingStrategyText != null) {
+            quotingStrategy = ObjectQuotingStrategy.valueOf(quotingStrategyText);
+        }
+
+        changeSet = new ChangeSet(atts.getValue("id"), atts.getValue("author"), alwaysRun, runOnChange,
+                filePath,
+                atts.getValue("context"), atts.getValue("dbms"), Boolean.valueOf(atts
+                        .getValue("runInTransaction")),
+                quotingStrategy, databaseChangeLog);
+        if (StringUtils.trimToNull(atts.getValue("failOnError")) != null) {
+            changeSet.setFailOnError(Boolean.parseBoolean(atts.getValue("failOnError")));
+        }
+        if (StringUtils.trimToNull(atts.getValue("onValidationFail")) != null) {
+            changeSet.setOnValidationFail(ChangeSet.ValidationFailOption.valueOf(atts
+                    .getValue("onValidationFail")));
+        }
+        changeSet.setChangeLogParameters(changeLogParameters);
+    }
+
+    private void startChangeSubObject(final String localName, final Attributes atts) throws Exception {
+        String creatorMethod = "create" + localName.substring(0, 1).toUpperCase() + localName.substring(1);
+
+        Object objectToCreateFrom;
+        if (changeSubObjects.size() == 0) {
+            objectToCreateFrom = change;
+        } else {
+            objectToCreateFrom = changeSubObjects.peek();
+        }
+
+        Method method;
+        try {
+            method = objectToCreateFrom.getClass().getMethod(creatorMethod);
+        } catch (NoSuchMethodException e) {
+            throw new MigrationFailedException(changeSet, "Could not find creator method " + creatorMethod
+                    + " for tag: "
+                    + localName);
+        }
+        Object subObject = method.invoke(objectToCreateFrom);
+        setAllProperties(subObject, atts);
+
+        changeSubObjects.push(subObject);
+    }
+
+    private void startColumn(final Attributes atts) throws Exception {
+        ColumnConfig column;
+        if (change instanceof LoadDataChange) {
+            column = new LoadDataColumnConfig();
+        } else if ((change instanceof AddColumnChange) || (change instanceof CreateIndexChange)) {
+            column = new AddColumnConfig();
+        } else if (change instanceof CreateIndexChange) {
+            column = new AddColumnConfig();
+        } else {
+            column = new ColumnConfig();
+        }
+        populateColumnFromAttributes(atts, column);
+        if (change instanceof ChangeWithColumns) {
+            ((ChangeWithColumns) change).addColumn(column);
+        } else {
+            throw new RuntimeException("Unexpected column tag for " + change.getClass().getName());
+        }
+    }
+
+    private void startConstraints(final Attributes atts) throws Exception {
+        ConstraintsConfig constraints = new ConstraintsConfig();
+        for (int i = 0; i < atts.getLength(); i++) {
+            String attributeName = atts.getLocalName(i);
+            String attributeValue = atts.getValue(i);
+            setProperty(constraints, attributeName, attributeValue);
+        }
+        ColumnConfig lastColumn = null;
+        if (change instanceof ChangeWithColumns) {
+            List<ColumnConfig> columns = ((ChangeWithColumns) change).getColumns();
+            if ((columns != null) && (columns.size() > 0)) {
+                lastColumn = columns.get(columns.size() - 1);
+            }
+        } else {
+            throw new RuntimeException("Unexpected change: " + change.getClass().getName());
+        }
+        if (lastColumn == null) {
+            throw new RuntimeException("Could not determine column to add constraint to");
+        }
+        lastColumn.setConstraints(constraints);
+    }
+
+    private void startDatabaseChangeLog(final Attributes atts) {
+        String schemaLocation = atts.getValue("xsi:schemaLocation");
+        if (schemaLocation != null) {
+            Matcher matcher = Pattern.compile(".*dbchangelog-(\\d+\\.\\d+).xsd").matcher(schemaLocation);
+            if (matcher.matches()) {
+                String version = matcher.group(1);
+                if (!version.equals(OSGiXMLChangeLogSAXParser
+                        .getSchemaVersion())) {
+                    log.warning(databaseChangeLog.getPhysicalFilePath()
+                            + " is using schema version " + version
+                            + " rather than version "
+                            + OSGiXMLChangeLogSAXParser.getSchemaVersion());
                 }
-                Object subObject = method.invoke(objectToCreateFrom);
-                setAllProperties(subObject, atts);
+            }
+        }
+        databaseChangeLog.setLogicalFilePath(atts.getValue("logicalFilePath"));
+        ObjectQuotingStrategy quotingStrategy = ObjectQuotingStrategy.LEGACY;
+        String quotingStrategyText = atts.getValue("objectQuotingStrategy");
+        if (quotingStrategyText != null) {
+            quotingStrategy = ObjectQuotingStrategy.valueOf(quotingStrategyText);
+        }
+        databaseChangeLog.setObjectQuotingStrategy(quotingStrategy);
+    }
 
-                changeSubObjects.push(subObject);
+    @Override
+    public void startElement(final String uri, final String localName, final String qName,
+            final Attributes baseAttributes) throws SAXException {
+        Attributes atts = new ExpandingAttributes(baseAttributes);
+        Element element = Element.forName(qName);
+        try {
+            if (startLeadingElement(element, atts)) {
+                return;
+            }
+            if (rootPrecondition != null) {
+                startPrecondition(localName, qName, atts);
+            } else if (element == Element.MODIFY_SQL) {
+                startModifySql(atts);
+            } else if (inModifySql) {
+                startSqlVisitor(localName, atts);
+            } else if ((changeSet != null) && (change == null)) {
+                startChange(localName, atts);
+            } else if (startChangeElement(element, atts)) {
+                return;
+            } else if (change != null) {
+                startChangeSubObject(localName, atts);
             } else {
                 throw new MigrationFailedException(changeSet, "Unexpected tag: " + localName);
             }
@@ -977,4 +1048,290 @@ class OSGiXMLChangeLogSAXHandler extends DefaultHandler {
             throw new SAXException(e);
         }
     }
+
+    private void startInclude(final Attributes atts) throws LiquibaseException {
+        String fileName = atts.getValue("file");
+        fileName = fileName.replace('\\', '/');
+        boolean isRelativeToChangelogFile = Boolean.parseBoolean(atts.getValue("relativeToChangelogFile"));
+        handleIncludedChangeLog(fileName, isRelativeToChangelogFile, databaseChangeLog.getPhysicalFilePath());
+    }
+
+    /**
+     * Resolves the path of an includeAll element that is relative to the changelog file.
+     */
+    private String resolveRelativeIncludeAllPath(final String pathName) throws Exception {
+        Logger logger = LogFactory.getInstance().getLog();
+        String resolvedPathName;
+        if (resourceAccessor instanceof OSGiResourceAccessor) {
+            resolvedPathName = FilenameUtils.normalize(FilenameUtils.getFullPath(databaseChangeLog.getFilePath())
+                    + pathName);
+            if (resolvedPathName == null) {
+                throw new SAXException(String.format("Resource directory for includeAll does not exist [%s]",
+                        pathName));
+            }
+            resolvedPathName = resolvedPathName.replace('\\', '/');
+        } else {
+            IFile changeLogFile = null;
+            Enumeration<URL> resources = resourceAccessor.getResources(databaseChangeLog.getPhysicalFilePath());
+
+            // Does the changelog file being processed exist? Can we get its path?
+            while (resources.hasMoreElements()) {
+                try {
+                    changeLogFile = new NormalFile(new File(resources.nextElement().toURI()));
+                } catch (URISyntaxException e) {
+                    continue; // ignore error, probably a URL or something like that
+                }
+                if (changeLogFile.exists()) {
+                    break;
+                } else {
+                    changeLogFile = null;
+                }
+            }
+
+            if (changeLogFile == null) {
+                throw new SAXException("Cannot determine physical location of "
+                        + databaseChangeLog.getPhysicalFilePath());
+            }
+
+            // Get the base "folder" where all xmls are included
+            IFile resourceBase = new NormalFile(new File(changeLogFile.getParentFile().getPath(), pathName));
+
+            // Check if the base folder exists
+            if (!resourceBase.exists()) {
+                throw new SAXException(String.format("Resource directory for includeAll does not exist [%s]",
+                        resourceBase.getCanonicalPath()));
+            }
+
+            resolvedPathName = resourceBase.getPath();
+            // Remove the parent folder absolute path from the path, to keep only the relative
+            resolvedPathName = resolvedPathName.replaceFirst("^\\Q" + changeLogFile.getParentFile().getAbsolutePath()
+                    + "\\E", "");
+            // Get only the last "part" of the path: "test/one/directory" becomes "/directory"
+            resolvedPathName = databaseChangeLog.getFilePath().replaceFirst("/[^/]*$", "") + resolvedPathName;
+            // Transform into unix path syntax
+            resolvedPathName = resolvedPathName.replace('\\', '/');
+
+            while (resolvedPathName.matches(".*/\\.\\./.*")) {
+                resolvedPathName = resolvedPathName.replaceFirst("[^/]+/\\.\\.", "/");
+            }
+        }
+        // If path does not end with "/", add it because it should be a folder
+        if (!resolvedPathName.endsWith("/")) {
+            resolvedPathName = resolvedPathName + "/";
+        }
+        logger.debug(String.format("Resolved relative pathName: [%s]", resolvedPathName));
+        return resolvedPathName;
+    }
+
+    private void startIncludeAll(final Attributes atts) throws Exception {
+        String pathName = atts.getValue("path");
+        // Replace backwards slash with normal slash
+        pathName = pathName.replace('\\', '/');
+
+        // Add the normal slash to the end of the path, if not present already
+        if (!(pathName.endsWith("/"))) {
+            pathName = pathName + '/';
+        }
+
+        log.debug("includeAll for " + pathName);
+
+        boolean isRelativeToChangelogFile = Boolean.parseBoolean(atts.getValue("relativeToChangelogFile"));
+
+        String resourceFilterDef = atts.getValue("resourceFilter");
+        IncludeAllFilter resourceFilter = null;
+        if (resourceFilterDef != null) {
+            resourceFilter = (IncludeAllFilter) Class.forName(resourceFilterDef).newInstance();
+        }
+
+        if (isRelativeToChangelogFile) {
+            pathName = resolveRelativeIncludeAllPath(pathName);
+        }
+
+        List<String> includedChangeLogs;
+        List<String> indexedFileNames = IncludeAllIndex.getFileNames(resourceAccessor, pathName);
+        if (indexedFileNames != null) {
+            log.debug("includeAll uses the precompiled index of " + pathName);
+            includedChangeLogs = new ArrayList<String>(indexedFileNames.size());
+            for (String fileName : indexedFileNames) {
+                includedChangeLogs.add(pathName + fileName);
+            }
+        } else {
+            includedChangeLogs = IncludeAllDiscovery.getInstance().discover(resourceAccessor, pathName);
+        }
+        if (resourceFilter != null) {
+            includedChangeLogs = resourceFilter.filter(includedChangeLogs);
+        }
+
+        boolean foundResource = false;
+        for (String path : includedChangeLogs) {
+            if (handleIncludedChangeLog(path, false, databaseChangeLog.getPhysicalFilePath())) {
+                foundResource = true;
+            }
+        }
+
+        if (!foundResource) {
+            throw new SAXException("Could not find directory or directory was empty for includeAll '"
+                    + pathName + "'");
+        }
+    }
+
+    /**
+     * Handles the elements that are processed before the precondition, modifySql and change elements.
+     *
+     * @return <code>true</code> if the element was handled.
+     */
+    private boolean startLeadingElement(final Element element, final Attributes atts) throws Exception {
+        switch (element) {
+        case COMMENT:
+        case VALID_CHECK_SUM:
+            text = textBuffer.reset();
+            return true;
+        case DATABASE_CHANGE_LOG:
+            startDatabaseChangeLog(atts);
+            return true;
+        case INCLUDE:
+            startInclude(atts);
+            return true;
+        case INCLUDE_ALL:
+            startIncludeAll(atts);
+            return true;
+        case CHANGE_SET:
+            if (changeSet == null) {
+                startChangeSet(atts);
+                return true;
+            }
+            return false;
+        case ROLLBACK:
+            if (changeSet != null) {
+                startRollback(atts);
+                return true;
+            }
+            return false;
+        case PRE_CONDITIONS:
+            startPreconditions(atts);
+            return true;
+        case PARAM:
+            if (currentPrecondition instanceof CustomPreconditionWrapper) {
+                ((CustomPreconditionWrapper) currentPrecondition).setParam(atts.getValue("name"),
+                        atts.getValue("value"));
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    private void startModifySql(final Attributes atts) {
+        inModifySql = true;
+        if (StringUtils.trimToNull(atts.getValue("dbms")) != null) {
+            modifySqlDbmsList = new HashSet<String>(StringUtils.splitAndTrim(atts.getValue("dbms"), ","));
+        }
+        if (StringUtils.trimToNull(atts.getValue("context")) != null) {
+            modifySqlContexts = new Contexts(atts.getValue("context"));
+        }
+        if (StringUtils.trimToNull(atts.getValue("applyToRollback")) != null) {
+            modifySqlAppliedOnRollback = Boolean.valueOf(atts.getValue("applyToRollback"));
+        }
+    }
+
+    private void startPrecondition(final String localName, final String qName, final Attributes atts)
+            throws Exception {
+        currentPrecondition = preconditionFactory.create(localName);
+
+        setAllProperties(currentPrecondition, atts);
+        preconditionLogicStack.peek().addNestedPrecondition(currentPrecondition);
+
+        if (currentPrecondition instanceof PreconditionLogic) {
+            preconditionLogicStack.push(((PreconditionLogic) currentPrecondition));
+        }
+
+        if ("sqlCheck".equals(qName)) {
+            text = textBuffer.reset();
+        }
+    }
+
+    private void startPreconditions(final Attributes atts) {
+        rootPrecondition = new PreconditionContainer();
+        rootPrecondition.setOnFail(StringUtils.trimToNull(atts.getValue("onFail")));
+        rootPrecondition.setOnError(StringUtils.trimToNull(atts.getValue("onError")));
+        rootPrecondition.setOnFailMessage(StringUtils.trimToNull(atts.getValue("onFailMessage")));
+        rootPrecondition.setOnErrorMessage(StringUtils.trimToNull(atts.getValue("onErrorMessage")));
+        rootPrecondition.setOnSqlOutput(StringUtils.trimToNull(atts.getValue("onSqlOutput")));
+        preconditionLogicStack.push(rootPrecondition);
+    }
+
+    private void startProperty(final Attributes atts) throws Exception {
+        String context = StringUtils.trimToNull(atts.getValue("context"));
+        String dbms = StringUtils.trimToNull(atts.getValue("dbms"));
+        if (StringUtils.trimToNull(atts.getValue("file")) == null) {
+            setChangeLogParameter(atts.getValue("name"), atts.getValue("value"), context, dbms);
+        } else {
+            Properties props = new Properties();
+            InputStream propertiesStream = resourceAccessor.getResourceAsStream(atts.getValue("file"));
+            if (propertiesStream == null) {
+                log.info("Could not open properties file " + atts.getValue("file"));
+            } else {
+                props.load(propertiesStream);
+
+                for (Map.Entry entry : props.entrySet()) {
+                    setChangeLogParameter(entry.getKey().toString(), entry.getValue().toString(),
+                            context, dbms);
+                }
+            }
+        }
+    }
+
+    private void startRollback(final Attributes atts) throws Exception {
+        text = textBuffer.reset();
+        String id = atts.getValue("changeSetId");
+        if ((id != null) && (changeSetConsumer != null)) {
+            throw new ChangeLogParseException(databaseChangeLog.getPhysicalFilePath()
+                    + ": a rollback cannot refer to change set " + id
+                    + " in a streamed changelog as the streamed change sets are not kept");
+        }
+        if (id != null) {
+            String path = atts.getValue("changeSetPath");
+            if (path == null) {
+                path = databaseChangeLog.getFilePath();
+            }
+            String author = atts.getValue("changeSetAuthor");
+            // The referenced change set might be in a preceding include that is still being parsed
+            completePendingEntries();
+            ChangeSet changeSet = databaseChangeLog.getChangeSet(path, author, id);
+            if (changeSet == null) {
+                throw new SAXException("Could not find changeSet to use for rollback: " + path + ":" + author
+                        + ":" + id);
+            } else {
+                for (Change change : changeSet.getChanges()) {
+                    this.changeSet.addRollbackChange(change);
+                }
+            }
+        }
+        inRollback = true;
+    }
+
+    private void startSqlVisitor(final String localName, final Attributes atts) throws Exception {
+        SqlVisitor sqlVisitor = sqlVisitorFactory.create(localName);
+        for (int i = 0; i < atts.getLength(); i++) {
+            String attributeName = atts.getLocalName(i);
+            String attributeValue = atts.getValue(i);
+            setProperty(sqlVisitor, attributeName, attributeValue);
+        }
+        sqlVisitor.setApplicableDbms(modifySqlDbmsList);
+        sqlVisitor.setApplyToRollback(modifySqlAppliedOnRollback);
+        sqlVisitor.setContexts(modifySqlContexts);
+
+        changeSet.addSqlVisitor(sqlVisitor);
+    }
+
+    /**
+     * Creates the exception for changelog level preconditions in a streamed changelog. Liquibase checks the
+     * preconditions of the whole tree before the first change set is executed, but the tree of a streamed changelog is
+     * only known completely when its last change set is parsed.
+     */
+    private static ChangeLogParseException streamedPreconditionsException(final DatabaseChangeLog changeLog) {
+        return new ChangeLogParseException(changeLog.getPhysicalFilePath()
+                + ": changelog preconditions are not supported in a streamed changelog");
+    }
 }
@@ -18,9 +18,16 @@ package org.everit.osgi.liquibase.bundle.internal.parser;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
@@ -34,6 +41,10 @@ import liquibase.resource.ResourceAccessor;
 import liquibase.resource.UtfBomStripperInputStream;
 import liquibase.util.file.FilenameUtils;
 
+import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
+import org.everit.osgi.liquibase.bundle.OSGiResourceAccessor;
+import org.osgi.framework.Bundle;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -44,18 +55,116 @@ import org.xml.sax.XMLReader;
 
 public class OSGiXMLChangeLogSAXParser extends XMLChangeLogSAXParser {
 
-    private SAXParserFactory saxParserFactory;
+    /**
+     * System property that holds the number of threads that parse the included changelogs concurrently. Zero or a
+     * missing property means that the included changelogs are parsed one after the other on the thread of the
+     * including changelog. The change sets are added to the changelog in document order in both cases, but the
+     * properties that are defined in an included changelog are not guaranteed to be visible in the changelogs that are
+     * included after it when the includes are parsed concurrently.
+     */
+    public static final String PARALLEL_INCLUDE_THREADS_PROPERTY =
+            "org.everit.osgi.liquibase.bundle.parallelIncludes.threads";
+
+    private static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+        @Override
+        public void error(final SAXParseException exception) throws SAXException {
+            LogFactory.getLogger().severe(exception.getMessage());
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(final SAXParseException exception) throws SAXException {
+            LogFactory.getLogger().severe(exception.getMessage());
+            throw exception;
+        }
+
+        @Override
+        public void warning(final SAXParseException exception) throws SAXException {
+            LogFactory.getLogger().warning(exception.getMessage());
+            throw exception;
+        }
+    };
+
+    private static volatile Executor includeExecutor;
 
-    private static ThreadLocal<Set<String>> processedChangeLogsOnThread = new ThreadLocal<Set<String>>();
+    private static volatile boolean includeExecutorInitialized = false;
 
-    public static Set<String> getProcessedChangeLogsOnThread() {
-        return processedChangeLogsOnThread.get();
+    /**
+     * The maximum number of idle parsers that are kept by a thread. Every nested include needs its own parser, so this
+     * is the include depth that can be processed without creating new parsers.
+     */
+    private static final int MAX_POOLED_PARSERS_PER_THREAD = 8;
+
+    private static ThreadLocal<List<SAXParser>> pooledSchemaParsersOnThread = new ThreadLocal<List<SAXParser>>() {
+        @Override
+        protected List<SAXParser> initialValue() {
+            return new ArrayList<SAXParser>();
+        }
+    };
+
+    private static Executor createIncludeExecutor() {
+        int threads = Integer.getInteger(PARALLEL_INCLUDE_THREADS_PROPERTY, 0);
+        if (threads <= 0) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "liquibase-include-parser-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the executor that parses the included changelogs.
+     *
+     * @return The executor or <code>null</code> if the included changelogs are parsed on the thread of the including
+     *         changelog.
+     */
+    public static Executor getIncludeExecutor() {
+        if (!includeExecutorInitialized) {
+            synchronized (OSGiXMLChangeLogSAXParser.class) {
+                if (!includeExecutorInitialized) {
+                    includeExecutor = createIncludeExecutor();
+                    includeExecutorInitialized = true;
+                }
+            }
+        }
+        return includeExecutor;
     }
 
     public static String getSchemaVersion() {
         return "3.1";
     }
 
+    /**
+     * Sets the executor that parses the included changelogs instead of the one that is configured with the
+     * {@value #PARALLEL_INCLUDE_THREADS_PROPERTY} system property.
+     *
+     * @param executor
+     *            The executor or <code>null</code> to parse the included changelogs on the thread of the including
+     *            changelog.
+     */
+    public static void setIncludeExecutor(final Executor executor) {
+        synchronized (OSGiXMLChangeLogSAXParser.class) {
+            includeExecutor = executor;
+            includeExecutorInitialized = true;
+        }
+    }
+
+    private SAXParserFactory saxParserFactory;
+
+    /**
+     * Factory of the non-validating parsers that are used together with the precompiled schemas of the
+     * {@link ChangeLogSchemaCache}. Null if the precompiled schemas cannot be used in the current JVM.
+     */
+    private SAXParserFactory schemaParserFactory;
+
     public OSGiXMLChangeLogSAXParser() {
         saxParserFactory = SAXParserFactory.newInstance();
 
@@ -65,71 +174,86 @@ public class OSGiXMLChangeLogSAXParser extends XMLChangeLogSAXParser {
         } else {
             saxParserFactory.setValidating(true);
             saxParserFactory.setNamespaceAware(true);
+
+            schemaParserFactory = SAXParserFactory.newInstance();
+            schemaParserFactory.setValidating(false);
+            schemaParserFactory.setNamespaceAware(true);
         }
     }
 
+    private SAXParser borrowSchemaParser() throws ParserConfigurationException, SAXException {
+        List<SAXParser> pooledParsers = pooledSchemaParsersOnThread.get();
+        if (pooledParsers.isEmpty()) {
+            return schemaParserFactory.newSAXParser();
+        }
+        return pooledParsers.remove(pooledParsers.size() - 1);
+    }
+
     @Override
     public int getPriority() {
         return PRIORITY_DEFAULT + 1;
     }
 
+    private void initXMLReader(final XMLReader xmlReader, final String physicalChangeLogLocation,
+            final ResourceAccessor resourceAccessor) {
+        LiquibaseEntityResolver resolver = new LiquibaseEntityResolver(this);
+        resolver.useResoureAccessor(resourceAccessor, FilenameUtils.getFullPath(physicalChangeLogLocation));
+        xmlReader.setEntityResolver(resolver);
+        xmlReader.setErrorHandler(ERROR_HANDLER);
+    }
+
+    /**
+     * Tells whether the changelogs that are read through a resource accessor can be cached by the bundle and the path
+     * of the changelog. That is true only if the content comes from the accessors of the bundle, as the accessors that
+     * are passed by a caller might return different content for the same path.
+     */
+    private static boolean isCacheable(final ResourceAccessor resourceAccessor) {
+        return (resourceAccessor instanceof OSGiResourceAccessor)
+                && !((OSGiResourceAccessor) resourceAccessor).hasCallerAccessors();
+    }
+
+    private InputStream openChangeLog(final String physicalChangeLogLocation, final ResourceAccessor resourceAccessor)
+            throws IOException, ChangeLogParseException {
+        InputStream inputStream = resourceAccessor.getResourceAsStream(physicalChangeLogLocation);
+        if (inputStream == null) {
+            throw new ChangeLogParseException(physicalChangeLogLocation + " does not exist");
+        }
+        return inputStream;
+    }
+
     @Override
     public DatabaseChangeLog parse(final String physicalChangeLogLocation,
             final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor)
             throws ChangeLogParseException {
+        return parse(physicalChangeLogLocation, changeLogParameters, resourceAccessor, new ParseContext());
+    }
 
-        InputStream inputStream = null;
-
-        boolean processedChangeLogsInitialized = (processedChangeLogsOnThread.get() != null);
-        if (!processedChangeLogsInitialized) {
-            processedChangeLogsOnThread.set(new HashSet<String>());
-        }
+    /**
+     * Parses a changelog of a changelog tree.
+     *
+     * @param physicalChangeLogLocation
+     *            The path of the changelog.
+     * @param changeLogParameters
+     *            The parameters of the changelog tree.
+     * @param resourceAccessor
+     *            The resource accessor that finds the changelog.
+     * @param parseContext
+     *            The context of the changelog tree that is shared by the parses of the included changelogs.
+     * @return The parsed changelog.
+     * @throws ChangeLogParseException
+     *             if the changelog or one of the included changelogs cannot be parsed.
+     */
+    public DatabaseChangeLog parse(final String physicalChangeLogLocation,
+            final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor,
+            final ParseContext parseContext) throws ChangeLogParseException {
 
+        OSGiXMLChangeLogSAXHandler contentHandler = null;
         try {
-            SAXParser parser = saxParserFactory.newSAXParser();
-            try {
-                parser.setProperty("http://java.sun.com/xml/jaxp/properties/schemaLanguage",
-                        "http://www.w3.org/2001/XMLSchema");
-            } catch (SAXNotRecognizedException e) {
-                // ok, parser must not support it
-            } catch (SAXNotSupportedException e) {
-                // ok, parser must not support it
-            }
-
-            XMLReader xmlReader = parser.getXMLReader();
-            LiquibaseEntityResolver resolver = new LiquibaseEntityResolver(this);
-            resolver.useResoureAccessor(resourceAccessor, FilenameUtils.getFullPath(physicalChangeLogLocation));
-            xmlReader.setEntityResolver(resolver);
-            xmlReader.setErrorHandler(new ErrorHandler() {
-                @Override
-                public void error(final SAXParseException exception) throws SAXException {
-                    LogFactory.getLogger().severe(exception.getMessage());
-                    throw exception;
-                }
-
-                @Override
-                public void fatalError(final SAXParseException exception) throws SAXException {
-                    LogFactory.getLogger().severe(exception.getMessage());
-                    throw exception;
-                }
-
-                @Override
-                public void warning(final SAXParseException exception) throws SAXException {
-                    LogFactory.getLogger().warning(exception.getMessage());
-                    throw exception;
-                }
-            });
-
-            inputStream = resourceAccessor.getResourceAsStream(physicalChangeLogLocation);
-            if (inputStream == null) {
-                throw new ChangeLogParseException(physicalChangeLogLocation + " does not exist");
+            contentHandler = new OSGiXMLChangeLogSAXHandler(physicalChangeLogLocation, resourceAccessor,
+                    changeLogParameters, parseContext);
+            if (!replayPrecompiledChangeLog(physicalChangeLogLocation, resourceAccessor, contentHandler)) {
+                parseXMLWithCache(physicalChangeLogLocation, resourceAccessor, contentHandler);
             }
-
-            OSGiXMLChangeLogSAXHandler contentHandler = new OSGiXMLChangeLogSAXHandler(physicalChangeLogLocation,
-                    resourceAccessor, changeLogParameters);
-            xmlReader.setContentHandler(contentHandler);
-            xmlReader.parse(new InputSource(new UtfBomStripperInputStream(inputStream)));
-
             return contentHandler.getDatabaseChangeLog();
         } catch (ChangeLogParseException e) {
             throw e;
@@ -167,16 +291,173 @@ public class OSGiXMLChangeLogSAXParser extends XMLChangeLogSAXParser {
         } catch (Exception e) {
             throw new ChangeLogParseException(e);
         } finally {
-            if (inputStream != null) {
+            if (contentHandler != null) {
+                contentHandler.releaseResources();
+            }
+        }
+    }
+
+    /**
+     * Parses and validates a changelog XML.
+     *
+     * @param physicalChangeLogLocation
+     *            The path of the changelog.
+     * @param resourceAccessor
+     *            The resource accessor that finds the changelog.
+     * @param contentHandler
+     *            The handler that receives the events of the validated changelog.
+     */
+    void parseXML(final String physicalChangeLogLocation, final ResourceAccessor resourceAccessor,
+            final ContentHandler contentHandler) throws IOException, ChangeLogParseException,
+            ParserConfigurationException, SAXException {
+
+        InputStream inputStream = openChangeLog(physicalChangeLogLocation, resourceAccessor);
+        try {
+            if (schemaParserFactory != null) {
+                SAXParser parser = borrowSchemaParser();
                 try {
+                    XMLReader xmlReader = parser.getXMLReader();
+                    initXMLReader(xmlReader, physicalChangeLogLocation, resourceAccessor);
+                    xmlReader.setContentHandler(new SchemaSelectingContentHandler(contentHandler, ERROR_HANDLER,
+                            this));
+                    xmlReader.parse(new InputSource(new UtfBomStripperInputStream(inputStream)));
+                    return;
+                } catch (SchemaSelectingContentHandler.SchemaNotAvailableException e) {
+                    // The changelog has to be validated by a validating parser. The content handler did not receive
+                    // any event yet, so it can be used again.
                     inputStream.close();
-                } catch (IOException e) {
-                    // probably ok
+                    inputStream = openChangeLog(physicalChangeLogLocation, resourceAccessor);
+                } finally {
+                    releaseSchemaParser(parser);
                 }
             }
-            if (!processedChangeLogsInitialized) {
-                processedChangeLogsOnThread.set(null);
+
+            SAXParser parser = saxParserFactory.newSAXParser();
+            try {
+                parser.setProperty("http://java.sun.com/xml/jaxp/properties/schemaLanguage",
+                        "http://www.w3.org/2001/XMLSchema");
+            } catch (SAXNotRecognizedException e) {
+                // ok, parser must not support it
+            } catch (SAXNotSupportedException e) {
+                // ok, parser must not support it
+            }
+
+            XMLReader xmlReader = parser.getXMLReader();
+            initXMLReader(xmlReader, physicalChangeLogLocation, resourceAccessor);
+            xmlReader.setContentHandler(contentHandler);
+            xmlReader.parse(new InputSource(new UtfBomStripperInputStream(inputStream)));
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // probably ok
+            }
+        }
+    }
+
+    /**
+     * Parses and validates a changelog XML or replays its events from the {@link ChangeLogCache} if the cache is
+     * enabled and the changelog was parsed before. The events of a successful parse are stored in the cache.
+     */
+    private void parseXMLWithCache(final String physicalChangeLogLocation, final ResourceAccessor resourceAccessor,
+            final ContentHandler contentHandler) throws IOException, ChangeLogParseException,
+            ParserConfigurationException, SAXException {
+
+        ChangeLogCache changeLogCache = ChangeLogCache.getInstance();
+        if (!changeLogCache.isEnabled() || !isCacheable(resourceAccessor)) {
+            parseXML(physicalChangeLogLocation, resourceAccessor, contentHandler);
+            return;
+        }
+
+        Bundle bundle = ((OSGiResourceAccessor) resourceAccessor).getBundle();
+        PrecompiledChangeLog cachedChangeLog = changeLogCache.get(bundle, physicalChangeLogLocation);
+        if (cachedChangeLog != null) {
+            cachedChangeLog.replay(contentHandler);
+            return;
+        }
+
+        PrecompiledChangeLog.Recorder recorder = new PrecompiledChangeLog.Recorder(contentHandler);
+        parseXML(physicalChangeLogLocation, resourceAccessor, recorder);
+        changeLogCache.put(bundle, physicalChangeLogLocation, recorder.toPrecompiledChangeLog());
+    }
+
+    /**
+     * Sends the events of the precompiled form of a changelog to the handler if the bundle of the changelog has a
+     * precompiled form that was created from the current content of the changelog XML. The XML is compared with the
+     * precompiled form only on the first use within a bundle revision, after that the verified form is taken from the
+     * precompiled instance of the {@link ChangeLogCache}.
+     *
+     * @return <code>true</code> if the precompiled form was used, <code>false</code> if the XML has to be parsed.
+     */
+    private boolean replayPrecompiledChangeLog(final String physicalChangeLogLocation,
+            final ResourceAccessor resourceAccessor, final ContentHandler contentHandler) throws IOException,
+            ChangeLogParseException, SAXException {
+
+        if (!(resourceAccessor instanceof OSGiResourceAccessor)) {
+            return false;
+        }
+        Bundle bundle = ((OSGiResourceAccessor) resourceAccessor).getBundle();
+        String precompiledDirectory = bundle.getHeaders().get(LiquibaseOSGiUtil.PRECOMPILED_CHANGELOGS_HEADER);
+        if (precompiledDirectory == null) {
+            return false;
+        }
+        ChangeLogCache precompiledCache = ChangeLogCache.getPrecompiledInstance();
+        boolean cacheable = precompiledCache.isEnabled() && isCacheable(resourceAccessor);
+        PrecompiledChangeLog verifiedChangeLog = null;
+        if (cacheable) {
+            verifiedChangeLog = precompiledCache.get(bundle, physicalChangeLogLocation);
+        }
+        if (verifiedChangeLog != null) {
+            verifiedChangeLog.replay(contentHandler);
+            return true;
+        }
+        String precompiledPath = PrecompiledChangeLog.getPrecompiledPath(precompiledDirectory,
+                physicalChangeLogLocation) + PrecompiledChangeLog.FILE_EXTENSION;
+        InputStream precompiledStream = resourceAccessor.getResourceAsStream(precompiledPath);
+        if (precompiledStream == null) {
+            return false;
+        }
+        PrecompiledChangeLog precompiledChangeLog;
+        try {
+            precompiledChangeLog = PrecompiledChangeLog.read(precompiledStream);
+        } catch (IOException e) {
+            LogFactory.getLogger().warning("Cannot read precompiled changelog " + precompiledPath + " of bundle "
+                    + bundle.getSymbolicName() + ", parsing " + physicalChangeLogLocation + ": " + e.getMessage());
+            return false;
+        } finally {
+            precompiledStream.close();
+        }
+
+        boolean upToDate;
+        ReadableByteChannel channel = Channels.newChannel(openChangeLog(physicalChangeLogLocation,
+                resourceAccessor));
+        try {
+            upToDate = precompiledChangeLog.matches(channel);
+        } finally {
+            channel.close();
+        }
+        if (!upToDate) {
+            LogFactory.getLogger().debug("Precompiled changelog " + precompiledPath + " of bundle "
+                    + bundle.getSymbolicName() + " is out of date, parsing " + physicalChangeLogLocation);
+            return false;
+        }
+        if (cacheable) {
+            precompiledCache.put(bundle, physicalChangeLogLocation, precompiledChangeLog);
+        }
+        precompiledChangeLog.replay(contentHandler);
+        return true;
+    }
+
+    private void releaseSchemaParser(final SAXParser parser) {
+        List<SAXParser> pooledParsers = pooledSchemaParsersOnThread.get();
+        if (pooledParsers.size() < MAX_POOLED_PARSERS_PER_THREAD) {
+            try {
+                parser.reset();
+            } catch (UnsupportedOperationException e) {
+                // The parser cannot be reused
+                return;
             }
+            pooledParsers.add(parser);
         }
     }
 
@@ -0,0 +1,194 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import liquibase.exception.ChangeLogParseException;
+
+import org.everit.osgi.liquibase.bundle.ChangeSetConsumer;
+import org.osgi.framework.Bundle;
+
+/**
+ * The state that is shared by the parses of a changelog tree: the eosgi: includes that were processed already and
+ * the consumer of the change sets if the tree is streamed. A context belongs to one root changelog and not to a
+ * thread, so the changelogs of the tree can be parsed on any thread and several trees can be parsed on the same
+ * thread independently. The context is thread-safe.
+ *
+ * <p>
+ * The context of an include that is parsed concurrently also knows the includes that precede it in the document and
+ * are parsed concurrently as well. The parse of the include calls {@link #awaitPrecedingIncludes()} before it reads
+ * or changes the state that depends on the document order, the processed eosgi: includes and the changelog
+ * parameters, so it sees the same state as a sequential parse would.
+ */
+public final class ParseContext {
+
+    private static final class IncludeKey {
+
+        private final long bundleId;
+
+        private final int hashCode;
+
+        private final String path;
+
+        IncludeKey(final long bundleId, final String path) {
+            this.bundleId = bundleId;
+            this.path = path;
+            this.hashCode = (31 * (int) (bundleId ^ (bundleId >>> 32))) + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof IncludeKey)) {
+                return false;
+            }
+            IncludeKey other = (IncludeKey) obj;
+            return (bundleId == other.bundleId) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final ChangeSetConsumer changeSetConsumer;
+
+    /**
+     * The context of the including changelog or <code>null</code> if this is the context of the root changelog or
+     * of an include that is parsed on the thread of the including changelog.
+     */
+    private final ParseContext enclosingContext;
+
+    /**
+     * The task of the include that precedes this include within the including changelog and is parsed concurrently
+     * or <code>null</code>. The include tasks of a changelog complete in document order, so the completion of this
+     * task means that every preceding include of the changelog is parsed.
+     */
+    private final FutureTask<?> precedingInclude;
+
+    private volatile boolean precedingIncludesParsed;
+
+    private final Set<IncludeKey> processedIncludes;
+
+    public ParseContext() {
+        this(null, Collections.newSetFromMap(new ConcurrentHashMap<IncludeKey, Boolean>()));
+    }
+
+    /**
+     * Creates a context that streams the change sets of the tree to a consumer instead of collecting them in the
+     * changelogs.
+     *
+     * @param changeSetConsumer
+     *            The consumer of the change sets.
+     */
+    public ParseContext(final ChangeSetConsumer changeSetConsumer) {
+        this(changeSetConsumer, Collections.newSetFromMap(new ConcurrentHashMap<IncludeKey, Boolean>()));
+    }
+
+    private ParseContext(final ChangeSetConsumer changeSetConsumer, final Set<IncludeKey> processedIncludes) {
+        this(changeSetConsumer, processedIncludes, null, null);
+        precedingIncludesParsed = true;
+    }
+
+    private ParseContext(final ChangeSetConsumer changeSetConsumer, final Set<IncludeKey> processedIncludes,
+            final ParseContext enclosingContext, final FutureTask<?> precedingInclude) {
+        this.changeSetConsumer = changeSetConsumer;
+        this.processedIncludes = processedIncludes;
+        this.enclosingContext = enclosingContext;
+        this.precedingInclude = precedingInclude;
+    }
+
+    /**
+     * Waits until every include that precedes the changelog of this context in the document of the changelog tree
+     * is parsed. The waiting is only needed once per context, the later calls return immediately.
+     *
+     * @throws ChangeLogParseException
+     *             if the thread is interrupted while it is waiting.
+     */
+    void awaitPrecedingIncludes() throws ChangeLogParseException {
+        if (precedingIncludesParsed) {
+            return;
+        }
+        if (precedingInclude != null) {
+            awaitTask(precedingInclude);
+        }
+        if (enclosingContext != null) {
+            enclosingContext.awaitPrecedingIncludes();
+        }
+        precedingIncludesParsed = true;
+    }
+
+    /**
+     * Waits until an include task is completed. If the task has not been started by the executor yet, it is run on
+     * the current thread. The result of the task is not needed, a failure is reported by the including changelog.
+     */
+    static void awaitTask(final FutureTask<?> task) throws ChangeLogParseException {
+        task.run();
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChangeLogParseException(e);
+        } catch (ExecutionException e) {
+            return;
+        } catch (CancellationException e) {
+            return;
+        }
+    }
+
+    /**
+     * Returns a context for an include that is parsed concurrently with its including changelog. The returned context
+     * shares the processed eosgi: includes of this context, but it does not stream the change sets, as they have to be
+     * added to the including changelog in document order.
+     *
+     * @param precedingInclude
+     *            The task of the preceding include of the same changelog that is parsed concurrently or
+     *            <code>null</code>.
+     */
+    ParseContext forConcurrentInclude(final FutureTask<?> precedingInclude) {
+        return new ParseContext(null, processedIncludes, this, precedingInclude);
+    }
+
+    /**
+     * The consumer of the change sets or <code>null</code> if the change sets are collected in the changelogs.
+     */
+    ChangeSetConsumer getChangeSetConsumer() {
+        return changeSetConsumer;
+    }
+
+    /**
+     * Marks a changelog of a bundle as processed.
+     *
+     * @param bundle
+     *            The bundle that contains the changelog.
+     * @param path
+     *            The path of the changelog within the bundle.
+     * @return <code>true</code> if the changelog was not processed before within this context.
+     */
+    public boolean markProcessed(final Bundle bundle, final String path) {
+        return processedIncludes.add(new IncludeKey(bundle.getBundleId(), path));
+    }
+}
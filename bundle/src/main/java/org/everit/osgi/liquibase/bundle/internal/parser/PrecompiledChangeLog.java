@@ -0,0 +1,465 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The binary form of a changelog that is created at build time by the ChangeLogPrecompiler of the
+ * <code>org.everit.osgi.liquibase.bundle.precompiler</code> module. The binary form holds the SAX events that the
+ * {@link OSGiXMLChangeLogSAXHandler} receives when the changelog is parsed and validated, so the events can be
+ * replayed at runtime without parsing and validating the XML again. The {@link ChangeLogCache} keeps the same events
+ * in memory for the changelogs that were parsed at runtime and for the binary forms that were verified already.
+ *
+ * <p>
+ * Format:
+ *
+ * <pre>
+ * int     magic number ("LBC1", big endian)
+ * byte[]  the SHA-1 digest of the XML file (20 bytes)
+ * varint  the number of strings
+ * string  the strings: the length of the UTF-8 form (varint) and the UTF-8 bytes
+ * varint  the number of event words
+ * varint[] the events: an opcode followed by the string indexes of the event
+ * </pre>
+ *
+ * <p>
+ * A varint is an unsigned integer that is written in groups of seven bits, starting with the lowest bits. The
+ * highest bit of a byte is set if more bytes follow.
+ *
+ * <p>
+ * A start element event is followed by the uri, the local name, the qualified name and the number of the attributes
+ * of the element and the uri, local name, qualified name, type and value of every attribute. An end element event
+ * is followed by the uri, the local name and the qualified name of the element. A characters event is followed by
+ * the text.
+ */
+final class PrecompiledChangeLog {
+
+    /**
+     * Records the SAX events of a changelog. The recorded events can be forwarded to a handler as they arrive, so the
+     * handler receives the same events during the recording as during a replay.
+     */
+    static class Recorder extends DefaultHandler {
+
+        private int eventCount;
+
+        private int[] events = new int[INITIAL_EVENT_CAPACITY];
+
+        private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        /**
+         * The handler that the events are forwarded to or <code>null</code>.
+         */
+        private final ContentHandler target;
+
+        private final StringBuilder text = new StringBuilder();
+
+        Recorder() {
+            this(null);
+        }
+
+        Recorder(final ContentHandler target) {
+            this.target = target;
+        }
+
+        private void addEvent(final int event) {
+            if (eventCount == events.length) {
+                events = Arrays.copyOf(events, events.length * 2);
+            }
+            events[eventCount++] = event;
+        }
+
+        private int addString(final String value) {
+            Integer index = stringIndexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.add(value);
+                stringIndexes.put(value, index);
+            }
+            return index;
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) throws SAXException {
+            text.append(ch, start, length);
+            if (target != null) {
+                target.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            if (target != null) {
+                target.endDocument();
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+            flushText();
+            addEvent(END_ELEMENT);
+            addEvent(addString(uri));
+            addEvent(addString(localName));
+            addEvent(addString(qName));
+            if (target != null) {
+                target.endElement(uri, localName, qName);
+            }
+        }
+
+        /**
+         * Records the collected characters as one event. The handler appends the characters to the text of the
+         * element, so it does not matter how the parser splits them.
+         */
+        private void flushText() {
+            if (text.length() > 0) {
+                addEvent(CHARACTERS);
+                addEvent(addString(text.toString()));
+                text.setLength(0);
+            }
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            if (target != null) {
+                target.startDocument();
+            }
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                final Attributes atts) throws SAXException {
+            flushText();
+            addEvent(START_ELEMENT);
+            addEvent(addString(uri));
+            addEvent(addString(localName));
+            addEvent(addString(qName));
+            int length = atts.getLength();
+            addEvent(length);
+            for (int i = 0; i < length; i++) {
+                addEvent(addString(atts.getURI(i)));
+                addEvent(addString(atts.getLocalName(i)));
+                addEvent(addString(atts.getQName(i)));
+                addEvent(addString(atts.getType(i)));
+                addEvent(addString(atts.getValue(i)));
+            }
+            if (target != null) {
+                target.startElement(uri, localName, qName, atts);
+            }
+        }
+
+        /**
+         * Returns the recorded events in the form that can be replayed. The returned changelog does not hold the
+         * digest of an XML file, so it can be used only in memory.
+         */
+        PrecompiledChangeLog toPrecompiledChangeLog() {
+            flushText();
+            return new PrecompiledChangeLog(null, strings.toArray(new String[strings.size()]), Arrays.copyOf(events,
+                    eventCount));
+        }
+
+        /**
+         * Writes the binary form of the recorded changelog.
+         *
+         * @param xmlDigest
+         *            The digest of the XML file that the events were recorded from.
+         * @param outputStream
+         *            The stream that the binary form is written to. The stream is not closed.
+         */
+        void write(final byte[] xmlDigest, final OutputStream outputStream) throws IOException {
+            flushText();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+            out.writeInt(MAGIC);
+            out.write(xmlDigest);
+            writeVarInt(out, strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(STRING_ENCODING);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+            writeVarInt(out, eventCount);
+            for (int i = 0; i < eventCount; i++) {
+                writeVarInt(out, events[i]);
+            }
+            out.flush();
+        }
+    }
+
+    private static final int CHARACTERS = 3;
+
+    private static final int DIGEST_BUFFER_SIZE = 8192;
+
+    private static final int DIGEST_LENGTH = 20;
+
+    private static final int END_ELEMENT = 2;
+
+    /**
+     * The extension of the binary files. The binary form of a changelog is stored with the path of the changelog
+     * plus this extension under the directory that is named by the
+     * {@link org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil#PRECOMPILED_CHANGELOGS_HEADER} manifest header.
+     */
+    public static final String FILE_EXTENSION = ".lbc";
+
+    private static final int INITIAL_EVENT_CAPACITY = 256;
+
+    private static final int MAGIC = 0x4C424331;
+
+    /**
+     * The size in bytes above which the content of a file is mapped into memory to calculate its digest.
+     */
+    private static final long MAPPED_DIGEST_THRESHOLD = 1024 * 1024;
+
+    private static final int START_ELEMENT = 1;
+
+    private static final String STRING_ENCODING = "UTF-8";
+
+    /**
+     * The estimated number of bytes that a string object and its character array occupy besides the characters.
+     */
+    private static final int STRING_OVERHEAD = 48;
+
+    private static final int VARINT_BITS = 7;
+
+    private static final int VARINT_CONTINUATION = 0x80;
+
+    private static final int VARINT_MASK = 0x7F;
+
+    private static final int VARINT_MAX_SHIFT = 28;
+
+    /**
+     * Calculates the digest of a changelog XML that is stored in the binary form. The content is read through a
+     * fixed size buffer, so the XML is never held in memory as a whole. Files that are larger than
+     * {@link #MAPPED_DIGEST_THRESHOLD} are mapped into memory instead of being read.
+     *
+     * @param channel
+     *            The content of the XML file. The channel is not closed.
+     * @return The SHA-1 digest of the content.
+     * @throws IOException
+     *             if the content cannot be read.
+     */
+    static byte[] digest(final ReadableByteChannel channel) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not supported by the JVM", e);
+        }
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            long size = fileChannel.size();
+            if ((size > MAPPED_DIGEST_THRESHOLD) && (size <= Integer.MAX_VALUE)) {
+                // The mapping is released when the buffer is collected, so it is only used for large files
+                messageDigest.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                return messageDigest.digest();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            messageDigest.update(buffer);
+            buffer.clear();
+        }
+        return messageDigest.digest();
+    }
+
+    /**
+     * Returns the path within the bundle where the precompiled files of a changelog or a changelog directory are
+     * stored.
+     *
+     * @param precompiledDirectory
+     *            The value of the
+     *            {@link org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil#PRECOMPILED_CHANGELOGS_HEADER} header.
+     * @param path
+     *            The path of the changelog XML or the changelog directory.
+     * @return The path under the precompiled directory without extension.
+     */
+    static String getPrecompiledPath(final String precompiledDirectory, final String path) {
+        return trimSlashes(precompiledDirectory) + "/" + trimSlashes(path);
+    }
+
+    /**
+     * Reads the binary form of a changelog.
+     *
+     * @param inputStream
+     *            The stream of the binary form. The stream is not closed.
+     * @return The changelog.
+     * @throws IOException
+     *             if the stream cannot be read or it does not hold a binary changelog.
+     */
+    static PrecompiledChangeLog read(final InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a precompiled changelog");
+        }
+        byte[] xmlDigest = new byte[DIGEST_LENGTH];
+        in.readFully(xmlDigest);
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            strings[i] = new String(bytes, STRING_ENCODING);
+        }
+        int[] events = new int[readVarInt(in)];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = readVarInt(in);
+        }
+        return new PrecompiledChangeLog(xmlDigest, strings, events);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b = in.readUnsignedByte();
+        while ((b & VARINT_CONTINUATION) != 0) {
+            if (shift > VARINT_MAX_SHIFT) {
+                throw new IOException("Invalid number in precompiled changelog");
+            }
+            value |= (b & VARINT_MASK) << shift;
+            shift += VARINT_BITS;
+            b = in.readUnsignedByte();
+        }
+        return value | (b << shift);
+    }
+
+    static String trimSlashes(final String path) {
+        int start = 0;
+        int end = path.length();
+        while ((start < end) && (path.charAt(start) == '/')) {
+            start++;
+        }
+        while ((end > start) && (path.charAt(end - 1) == '/')) {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    private static void writeVarInt(final DataOutputStream out, final int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~VARINT_MASK) != 0) {
+            out.writeByte((remaining & VARINT_MASK) | VARINT_CONTINUATION);
+            remaining >>>= VARINT_BITS;
+        }
+        out.writeByte(remaining);
+    }
+
+    private final int[] events;
+
+    private final long memorySize;
+
+    private final String[] strings;
+
+    private final byte[] xmlDigest;
+
+    private PrecompiledChangeLog(final byte[] xmlDigest, final String[] strings, final int[] events) {
+        this.xmlDigest = xmlDigest;
+        this.strings = strings;
+        this.events = events;
+        long size = (long) events.length * Integer.SIZE / Byte.SIZE;
+        for (String string : strings) {
+            size += STRING_OVERHEAD + ((long) string.length() * Character.SIZE / Byte.SIZE);
+        }
+        this.memorySize = size;
+    }
+
+    /**
+     * Returns the estimated number of bytes that the events and the strings of the changelog occupy in the memory.
+     * The {@link ChangeLogCache} is bounded by this size.
+     */
+    long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Checks whether the binary form was created from an XML file.
+     *
+     * @param channel
+     *            The content of the XML file. The channel is not closed.
+     * @return <code>true</code> if the binary form holds the events of the XML file.
+     * @throws IOException
+     *             if the content cannot be read.
+     */
+    boolean matches(final ReadableByteChannel channel) throws IOException {
+        return Arrays.equals(xmlDigest, digest(channel));
+    }
+
+    /**
+     * Sends the recorded events to a handler.
+     *
+     * @param contentHandler
+     *            The handler.
+     * @throws SAXException
+     *             if the handler fails.
+     */
+    void replay(final ContentHandler contentHandler) throws SAXException {
+        contentHandler.startDocument();
+        int position = 0;
+        while (position < events.length) {
+            switch (events[position]) {
+            case START_ELEMENT:
+                AttributesImpl atts = new AttributesImpl();
+                int attributeCount = events[position + 4];
+                int attributePosition = position + 5;
+                for (int i = 0; i < attributeCount; i++) {
+                    atts.addAttribute(strings[events[attributePosition]], strings[events[attributePosition + 1]],
+                            strings[events[attributePosition + 2]], strings[events[attributePosition + 3]],
+                            strings[events[attributePosition + 4]]);
+                    attributePosition += 5;
+                }
+                contentHandler.startElement(strings[events[position + 1]], strings[events[position + 2]],
+                        strings[events[position + 3]], atts);
+                position = attributePosition;
+                break;
+            case END_ELEMENT:
+                contentHandler.endElement(strings[events[position + 1]], strings[events[position + 2]],
+                        strings[events[position + 3]]);
+                position += 4;
+                break;
+            case CHARACTERS:
+                char[] text = strings[events[position + 1]].toCharArray();
+                contentHandler.characters(text, 0, text.length);
+                position += 2;
+                break;
+            default:
+                throw new SAXException("Invalid event in precompiled changelog: " + events[position]);
+            }
+        }
+        contentHandler.endDocument();
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.ValidatorHandler;
+
+import liquibase.parser.LiquibaseParser;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * Validates the changelog with a precompiled schema from the {@link ChangeLogSchemaCache}. The events before the root
+ * element are held back until the xsi:schemaLocation attribute of the root element is known. After that every event
+ * goes through a {@link ValidatorHandler} of the selected schema to the changelog handler. If the schema of the
+ * changelog is not available, a {@link SchemaNotAvailableException} is thrown and the changelog must be parsed with a
+ * validating parser.
+ */
+class SchemaSelectingContentHandler implements ContentHandler {
+
+    /**
+     * Thrown when the changelog does not refer to a schema that can be found in the {@link ChangeLogSchemaCache}.
+     */
+    static class SchemaNotAvailableException extends SAXException {
+
+        private static final long serialVersionUID = 1L;
+
+        SchemaNotAvailableException(final String message) {
+            super(message);
+        }
+    }
+
+    private final ContentHandler contentHandler;
+
+    private final ErrorHandler errorHandler;
+
+    private Locator locator;
+
+    private final LiquibaseParser parser;
+
+    private final List<String[]> prefixMappings = new ArrayList<String[]>();
+
+    private boolean startDocumentCalled = false;
+
+    /**
+     * The handler that the events are forwarded to. Null until the root element arrives.
+     */
+    private ContentHandler target;
+
+    SchemaSelectingContentHandler(final ContentHandler contentHandler, final ErrorHandler errorHandler,
+            final LiquibaseParser parser) {
+        this.contentHandler = contentHandler;
+        this.errorHandler = errorHandler;
+        this.parser = parser;
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) throws SAXException {
+        if (target != null) {
+            target.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (target != null) {
+            target.endDocument();
+        }
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        target.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void endPrefixMapping(final String prefix) throws SAXException {
+        if (target != null) {
+            target.endPrefixMapping(prefix);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+        if (target != null) {
+            target.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    @Override
+    public void processingInstruction(final String processingInstructionTarget, final String data)
+            throws SAXException {
+        if (target != null) {
+            target.processingInstruction(processingInstructionTarget, data);
+        }
+    }
+
+    private void selectTarget(final Attributes atts) throws SAXException {
+        String schemaLocation = atts.getValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+        if (schemaLocation == null) {
+            throw new SchemaNotAvailableException("No schema location is defined");
+        }
+        Schema schema = ChangeLogSchemaCache.getInstance().getSchema(schemaLocation, parser);
+        if (schema == null) {
+            throw new SchemaNotAvailableException("Schema is not available: " + schemaLocation);
+        }
+        ValidatorHandler validatorHandler = schema.newValidatorHandler();
+        validatorHandler.setErrorHandler(errorHandler);
+        validatorHandler.setContentHandler(contentHandler);
+
+        target = validatorHandler;
+        if (locator != null) {
+            target.setDocumentLocator(locator);
+        }
+        if (startDocumentCalled) {
+            target.startDocument();
+        }
+        for (String[] prefixMapping : prefixMappings) {
+            target.startPrefixMapping(prefixMapping[0], prefixMapping[1]);
+        }
+        prefixMappings.clear();
+    }
+
+    @Override
+    public void setDocumentLocator(final Locator locator) {
+        this.locator = locator;
+        if (target != null) {
+            target.setDocumentLocator(locator);
+        }
+    }
+
+    @Override
+    public void skippedEntity(final String name) throws SAXException {
+        if (target != null) {
+            target.skippedEntity(name);
+        }
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        startDocumentCalled = true;
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+            throws SAXException {
+        if (target == null) {
+            selectTarget(atts);
+        }
+        target.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+        if (target != null) {
+            target.startPrefixMapping(prefix, uri);
+        } else {
+            prefixMappings.add(new String[] { prefix, uri });
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Collects the text content of the changelog elements. The buffer is reused by the elements of a changelog, so the
+ * SAX character events are copied only once into the buffer. If the text gets longer than the spill threshold, it is
+ * moved to a temporary file and read back only when it is needed, so huge inline SQL statements do not have to be
+ * kept in memory while they are growing.
+ *
+ * <p>
+ * The spill threshold (in characters) can be set in the {@value #SPILL_THRESHOLD_PROPERTY} system property. Zero or
+ * a negative value keeps every text in memory.
+ */
+class TextBuffer {
+
+    private static final int DEFAULT_SPILL_THRESHOLD = 8 * 1024 * 1024;
+
+    private static final String FILE_ENCODING = "UTF-8";
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    /**
+     * System property that holds the number of characters above which the text is moved to a temporary file.
+     */
+    public static final String SPILL_THRESHOLD_PROPERTY = "org.everit.osgi.liquibase.bundle.textBuffer.spillThreshold";
+
+    private static final int SPILL_THRESHOLD = Integer.getInteger(SPILL_THRESHOLD_PROPERTY, DEFAULT_SPILL_THRESHOLD);
+
+    private static boolean isWhitespace(final char c) {
+        // The same characters as String.trim() removes
+        return c <= ' ';
+    }
+
+    private char[] buffer = new char[INITIAL_CAPACITY];
+
+    private int length = 0;
+
+    private File spillFile;
+
+    private Writer spillWriter;
+
+    private final int spillThreshold;
+
+    TextBuffer() {
+        this(SPILL_THRESHOLD);
+    }
+
+    TextBuffer(final int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public void append(final char[] ch, final int start, final int count) throws IOException {
+        if (spillWriter != null) {
+            spillWriter.write(ch, start, count);
+        } else if ((spillThreshold > 0) && ((length + count) > spillThreshold)) {
+            spill();
+            spillWriter.write(ch, start, count);
+        } else {
+            ensureCapacity(length + count);
+            System.arraycopy(ch, start, buffer, length, count);
+        }
+        length += count;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > buffer.length) {
+            int newCapacity = Math.max(buffer.length * 2, capacity);
+            char[] newBuffer = new char[newCapacity];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Reads the text back from the temporary file into a builder that has the size of the text. If the text is
+     * trimmed, the leading whitespace is skipped while reading and the trailing whitespace is cut off in the builder,
+     * so the text is copied only once more, into the returned string.
+     *
+     * @return The text or <code>null</code> if the trimmed text is empty.
+     */
+    private String readSpillFile(final boolean trim) throws IOException {
+        spillWriter.flush();
+        StringBuilder sb = new StringBuilder(length);
+        Reader reader = new InputStreamReader(new FileInputStream(spillFile), FILE_ENCODING);
+        try {
+            char[] chunk = new char[READ_CHUNK_SIZE];
+            int read = reader.read(chunk);
+            while (read > -1) {
+                int start = 0;
+                if (trim && (sb.length() == 0)) {
+                    while ((start < read) && isWhitespace(chunk[start])) {
+                        start++;
+                    }
+                }
+                sb.append(chunk, start, read - start);
+                read = reader.read(chunk);
+            }
+        } finally {
+            reader.close();
+        }
+        if (trim) {
+            int end = sb.length();
+            while ((end > 0) && isWhitespace(sb.charAt(end - 1))) {
+                end--;
+            }
+            if (end == 0) {
+                return null;
+            }
+            sb.setLength(end);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Empties the buffer and deletes the temporary file if there is one.
+     *
+     * @return This buffer.
+     */
+    public TextBuffer reset() {
+        length = 0;
+        if (buffer.length > INITIAL_CAPACITY * 64) {
+            buffer = new char[INITIAL_CAPACITY];
+        }
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                // The file is deleted anyway
+            }
+            spillWriter = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        return this;
+    }
+
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("liquibase-text", ".tmp");
+        spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile), FILE_ENCODING));
+        spillWriter.write(buffer, 0, length);
+        buffer = new char[INITIAL_CAPACITY];
+    }
+
+    @Override
+    public String toString() {
+        if (spillWriter == null) {
+            return new String(buffer, 0, length);
+        }
+        try {
+            return readSpillFile(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read text buffer file " + spillFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Returns the text without leading and trailing whitespace the same way as
+     * {@link liquibase.util.StringUtils#trimToNull(String)} does, but without copying the text more than once.
+     *
+     * @return The trimmed text or <code>null</code> if the text contains only whitespace.
+     */
+    public String toTrimmedString() {
+        if (spillWriter != null) {
+            try {
+                return readSpillFile(true);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read text buffer file " + spillFile.getAbsolutePath(), e);
+            }
+        }
+        int start = 0;
+        int end = length;
+        while ((start < end) && isWhitespace(buffer[start])) {
+            start++;
+        }
+        while ((end > start) && isWhitespace(buffer[end - 1])) {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+        return new String(buffer, start, end - start);
+    }
+}
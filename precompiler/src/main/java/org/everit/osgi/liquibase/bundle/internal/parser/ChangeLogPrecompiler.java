@@ -0,0 +1,234 @@
+/**
+ * This file is part of Everit OSGi Liquibase Bundle.
+ *
+ * Everit OSGi Liquibase Bundle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit OSGi Liquibase Bundle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit OSGi Liquibase Bundle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.liquibase.bundle.internal.parser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.com.germantech.liquibase.IFile;
+import br.com.germantech.liquibase.impl.NormalFile;
+import liquibase.resource.FileSystemResourceAccessor;
+
+/**
+ * Command line tool that precompiles the changelogs of a bundle at build time. The tool is not part of the Liquibase
+ * bundle, it is in the same package only to reach the package private parser classes on the build classpath. The
+ * changelogs are parsed and validated the same way as at runtime and the events that the
+ * {@link OSGiXMLChangeLogSAXHandler} would receive are written into a {@link PrecompiledChangeLog} file. At runtime
+ * the precompiled file is used instead of the XML if it was created from the same XML content, otherwise the XML is
+ * parsed as usual.
+ *
+ * <p>
+ * Arguments: the directory of the changelogs (normally <code>target/classes</code>), the output directory and the
+ * paths of the changelogs relative to the changelog directory. If a path points to a directory, every XML file in
+ * the directory tree is precompiled and an {@link IncludeAllIndex} is written for every directory of the tree, so the
+ * includeAll elements that refer to these directories do not have to list the directories at runtime.
+ *
+ * <p>
+ * Example configuration in the pom of a bundle that provides <code>liquibase.schema</code> capabilities:
+ *
+ * <pre>
+ * &lt;plugin&gt;
+ *   &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *   &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *   &lt;executions&gt;
+ *     &lt;execution&gt;
+ *       &lt;id&gt;precompile-changelogs&lt;/id&gt;
+ *       &lt;phase&gt;process-classes&lt;/phase&gt;
+ *       &lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *       &lt;configuration&gt;
+ *         &lt;mainClass&gt;org.everit.osgi.liquibase.bundle.internal.parser.ChangeLogPrecompiler&lt;/mainClass&gt;
+ *         &lt;includePluginDependencies&gt;true&lt;/includePluginDependencies&gt;
+ *         &lt;arguments&gt;
+ *           &lt;argument&gt;${project.build.outputDirectory}&lt;/argument&gt;
+ *           &lt;argument&gt;${project.build.directory}/liquibase-precompiled&lt;/argument&gt;
+ *           &lt;argument&gt;META-INF/liquibase&lt;/argument&gt;
+ *         &lt;/arguments&gt;
+ *       &lt;/configuration&gt;
+ *     &lt;/execution&gt;
+ *   &lt;/executions&gt;
+ *   &lt;dependencies&gt;
+ *     &lt;dependency&gt;
+ *       &lt;groupId&gt;org.everit.osgi&lt;/groupId&gt;
+ *       &lt;artifactId&gt;org.everit.osgi.liquibase.bundle.precompiler&lt;/artifactId&gt;
+ *       &lt;version&gt;...&lt;/version&gt;
+ *     &lt;/dependency&gt;
+ *   &lt;/dependencies&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ *
+ * and in the instructions of the maven-bundle-plugin:
+ *
+ * <pre>
+ * &lt;Include-Resource&gt;{maven-resources},META-INF/liquibase-precompiled=target/liquibase-precompiled&lt;/Include-Resource&gt;
+ * &lt;Liquibase-Precompiled-ChangeLogs&gt;META-INF/liquibase-precompiled&lt;/Liquibase-Precompiled-ChangeLogs&gt;
+ * </pre>
+ */
+public final class ChangeLogPrecompiler {
+
+    private static final String CHANGELOG_EXTENSION = ".xml";
+
+    /**
+     * Collects the changelogs of a path and the names of the files in the directories of the path. Every file of the
+     * tree is listed once, the listing provides the attributes of the files, too.
+     *
+     * @param file
+     *            The file or directory of the path.
+     * @param path
+     *            The path relative to the changelog directory.
+     * @param changeLogs
+     *            The paths of the changelogs that are found.
+     * @param directories
+     *            The names of the files in the directories that are found, by the paths of the directories.
+     */
+    private static void collectChangeLogs(final IFile file, final String path, final List<String> changeLogs,
+            final Map<String, List<String>> directories) {
+        if (!file.isDirectory()) {
+            changeLogs.add(path);
+            return;
+        }
+        List<String> fileNames = new ArrayList<String>();
+        directories.put(path, fileNames);
+        Iterator<IFile> children = file.iterateFiles();
+        while (children.hasNext()) {
+            IFile child = children.next();
+            String childName = child.getName();
+            if (child.isDirectory()) {
+                collectChangeLogs(child, path + "/" + childName, changeLogs, directories);
+            } else {
+                fileNames.add(childName);
+                if (childName.endsWith(CHANGELOG_EXTENSION)) {
+                    collectChangeLogs(child, path + "/" + childName, changeLogs, directories);
+                }
+            }
+        }
+    }
+
+    private static void createParentDirectory(final File file) throws IOException {
+        File parentDirectory = file.getParentFile();
+        if ((parentDirectory != null) && !parentDirectory.isDirectory() && !parentDirectory.mkdirs()) {
+            throw new IOException("Cannot create directory " + parentDirectory.getAbsolutePath());
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: " + ChangeLogPrecompiler.class.getName()
+                    + " <changelog directory> <output directory> <changelog path>...");
+            System.exit(1);
+        }
+        File changeLogDirectory = new File(args[0]);
+        File outputDirectory = new File(args[1]);
+        List<String> changeLogs = new ArrayList<String>();
+        Map<String, List<String>> directories = new LinkedHashMap<String, List<String>>();
+        for (int i = 2; i < args.length; i++) {
+            String path = PrecompiledChangeLog.trimSlashes(args[i]);
+            collectChangeLogs(new NormalFile(new File(changeLogDirectory, path)), path, changeLogs, directories);
+        }
+
+        for (Map.Entry<String, List<String>> directory : directories.entrySet()) {
+            File indexFile = new File(outputDirectory, directory.getKey() + "/" + IncludeAllIndex.INDEX_FILE_NAME);
+            createParentDirectory(indexFile);
+            writeIncludeAllIndex(directory.getValue(), indexFile);
+        }
+
+        ChangeLogPrecompiler precompiler = new ChangeLogPrecompiler(changeLogDirectory);
+        for (String changeLog : changeLogs) {
+            precompiler.precompile(changeLog, new File(outputDirectory, changeLog
+                    + PrecompiledChangeLog.FILE_EXTENSION));
+        }
+    }
+
+    /**
+     * Writes the {@link IncludeAllIndex} of a directory.
+     *
+     * @param fileNames
+     *            The names of the files in the directory.
+     * @param indexFile
+     *            The file that the index is written to.
+     * @throws IOException
+     *             if the index cannot be written.
+     */
+    private static void writeIncludeAllIndex(final List<String> fileNames, final File indexFile) throws IOException {
+        String[] sortedFileNames = fileNames.toArray(new String[fileNames.size()]);
+        Arrays.sort(sortedFileNames);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile),
+                IncludeAllIndex.ENCODING));
+        try {
+            for (String fileName : sortedFileNames) {
+                writer.write(fileName);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private final File changeLogDirectory;
+
+    private final OSGiXMLChangeLogSAXParser parser = new OSGiXMLChangeLogSAXParser();
+
+    private final FileSystemResourceAccessor resourceAccessor;
+
+    public ChangeLogPrecompiler(final File changeLogDirectory) {
+        this.changeLogDirectory = changeLogDirectory;
+        this.resourceAccessor = new FileSystemResourceAccessor(changeLogDirectory.getAbsolutePath());
+    }
+
+    /**
+     * Precompiles a changelog.
+     *
+     * @param changeLog
+     *            The path of the changelog relative to the changelog directory.
+     * @param outputFile
+     *            The file that the precompiled form is written to.
+     * @throws Exception
+     *             if the changelog is not valid or the precompiled form cannot be written.
+     */
+    public void precompile(final String changeLog, final File outputFile) throws Exception {
+        byte[] xmlDigest;
+        ReadableByteChannel channel = new NormalFile(new File(changeLogDirectory, changeLog)).openChannel();
+        try {
+            xmlDigest = PrecompiledChangeLog.digest(channel);
+        } finally {
+            channel.close();
+        }
+
+        PrecompiledChangeLog.Recorder recorder = new PrecompiledChangeLog.Recorder();
+        parser.parseXML(changeLog, resourceAccessor, recorder);
+
+        createParentDirectory(outputFile);
+        OutputStream outputStream = new FileOutputStream(outputFile);
+        try {
+            recorder.write(xmlDigest, outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -18,32 +18,84 @@ package org.everit.osgi.liquibase.bundle.tests;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 
 import javax.sql.DataSource;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 
+import liquibase.Contexts;
 import liquibase.Liquibase;
+import liquibase.change.Change;
+import liquibase.change.core.CreateTableChange;
+import liquibase.change.core.RawSQLChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
 import liquibase.database.jvm.JdbcConnection;
+import liquibase.datatype.LiquibaseDataType;
 import liquibase.exception.ChangeLogParseException;
 import liquibase.exception.DatabaseException;
 import liquibase.exception.LiquibaseException;
+import liquibase.exception.ServiceNotFoundException;
+import liquibase.parser.ChangeLogParser;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.xml.XMLChangeLogSAXParser;
+import liquibase.precondition.Precondition;
+import liquibase.precondition.core.PreconditionContainer;
 import liquibase.resource.ClassLoaderResourceAccessor;
 import liquibase.resource.ResourceAccessor;
+import liquibase.serializer.core.xml.XMLChangeLogSerializer;
+import liquibase.servicelocator.LiquibaseService;
+import liquibase.servicelocator.ServiceLocator;
+import liquibase.sqlgenerator.SqlGenerator;
+import liquibase.util.csv.opencsv.bean.ColumnPositionMappingStrategy;
+import liquibase.util.csv.opencsv.bean.HeaderColumnNameMappingStrategy;
+import liquibase.util.csv.opencsv.bean.HeaderColumnNameTranslateMappingStrategy;
+import liquibase.util.csv.opencsv.bean.MappingStrategy;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -51,6 +103,7 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.liquibase.bundle.ChangeSetStream;
 import org.everit.osgi.liquibase.bundle.LiquibaseOSGiUtil;
 import org.everit.osgi.liquibase.bundle.OSGiResourceAccessor;
 import org.everit.osgi.liquibase.bundle.SchemaExpressionSyntaxException;
@@ -60,8 +113,16 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 @Component(name = "LiquibaseTest", immediate = true)
 @Service(value = LiquibaseTestComponent.class)
@@ -69,6 +130,17 @@ import org.osgi.framework.wiring.BundleWiring;
         @Property(name = "eosgi.testId", value = "liquibaseTest") })
 public class LiquibaseTestComponent {
 
+    /**
+     * The routes of the resource route cache of the Liquibase bundle.
+     */
+    private static final int ROUTE_BUNDLE = 0;
+
+    private static final int ROUTE_LIQUIBASE_BUNDLE = 1;
+
+    private static final int ROUTE_NOT_FOUND = -1;
+
+    private static final int ROUTE_UNKNOWN = -2;
+
     private static void copyURLContentToStream(final URL url, final OutputStream out) {
         try (InputStream is = url.openStream()) {
             byte[] buffer = new byte[1024];
@@ -117,9 +189,51 @@ public class LiquibaseTestComponent {
         }
     }
 
-    private void installAndStartBundle(final String pathPrefix, final String manifestPropertiesPath,
+    private void assertTableExists(final String tableName) {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            Assert.assertTrue(statement.execute("select * from \"" + tableName + "\""));
+        } catch (SQLException e) {
+            Assert.fail("Table " + tableName + " cannot be queried: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a changelog of a bundle with the parser of the Liquibase bundle and with the XML parser of Liquibase. The
+     * two parsers must give the same changelog.
+     */
+    private void assertParsedLikeLiquibaseParser(final Bundle bundle, final String changeLogFile) {
+        ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle);
+        ChangeLogParser parser;
+        DatabaseChangeLog expectedChangeLog;
+        try {
+            parser = ChangeLogParserFactory.getInstance().getParser(changeLogFile, resourceAccessor);
+            expectedChangeLog =
+                    new XMLChangeLogSAXParser().parse(changeLogFile, new ChangeLogParameters(), resourceAccessor);
+        } catch (LiquibaseException e) {
+            throw new RuntimeException(e);
+        }
+        Assert.assertNotSame(XMLChangeLogSAXParser.class, parser.getClass());
+        Assert.assertEquals(describeChangeLog(expectedChangeLog),
+                describeChangeLog(parseChangeLog(bundle, changeLogFile, Collections.<String, String> emptyMap())));
+    }
+
+    /**
+     * Creates the JAR content of a test bundle.
+     */
+    private byte[] createBundleContent(final String pathPrefix, final String manifestPropertiesPath,
             final String... filePaths) {
-        Manifest manifest = resolveManifest("/META-INF/testBundles/" + pathPrefix + "/" + manifestPropertiesPath);
+        return createBundleContent(pathPrefix,
+                resolveManifest("/META-INF/testBundles/" + pathPrefix + "/" + manifestPropertiesPath),
+                Collections.<String, byte[]> emptyMap(), filePaths);
+    }
+
+    /**
+     * Creates the content of a bundle from the files of a test bundle and from entries that are generated by the
+     * test.
+     */
+    private byte[] createBundleContent(final String pathPrefix, final Manifest manifest,
+            final Map<String, byte[]> generatedEntries, final String... filePaths) {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         JarOutputStream zipOutputStream;
         try {
@@ -141,16 +255,125 @@ public class LiquibaseTestComponent {
             }
 
         }
+        for (Entry<String, byte[]> generatedEntry : generatedEntries.entrySet()) {
+            try {
+                zipOutputStream.putNextEntry(new ZipEntry(generatedEntry.getKey()));
+                zipOutputStream.write(generatedEntry.getValue());
+                zipOutputStream.closeEntry();
+            } catch (IOException e) {
+                throw new RuntimeException("Error during writing entry " + generatedEntry.getKey(), e);
+            }
+        }
         try {
             zipOutputStream.close();
-            byte[] bundleBA = bout.toByteArray();
-            Bundle installedBundle = bundleContext.installBundle(pathPrefix, new ByteArrayInputStream(bundleBA));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Creates the content of a changelog file from the elements of the changelog.
+     */
+    private byte[] createChangeLogContent(final String elements) {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog"
+                + " http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.1.xsd\">\n" + elements
+                + "\n</databaseChangeLog>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Describes the preconditions and the change sets of a changelog with strings that can be compared. The changes
+     * and the rollback changes are described by their XML form.
+     */
+    private List<String> describeChangeLog(final DatabaseChangeLog changeLog) {
+        XMLChangeLogSerializer serializer = new XMLChangeLogSerializer();
+        List<String> description = new ArrayList<>();
+        for (Precondition precondition : changeLog.getPreconditions().getNestedPreconditions()) {
+            description.add(precondition.getName());
+        }
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            PreconditionContainer preconditions = changeSet.getPreconditions();
+            StringBuilder sb = new StringBuilder();
+            sb.append(changeSet.getFilePath()).append("::").append(changeSet.getId()).append("::")
+                    .append(changeSet.getAuthor()).append("::").append(changeSet.generateCheckSum()).append("::")
+                    .append(changeSet.getComments()).append("::").append(changeSet.getContexts()).append("::")
+                    .append(changeSet.getDbmsSet()).append("::").append(changeSet.isAlwaysRun()).append("::")
+                    .append(changeSet.isRunOnChange()).append("::").append(changeSet.getFailOnError()).append("::")
+                    .append(changeSet.isRunInTransaction()).append("::").append(changeSet.getObjectQuotingStrategy())
+                    .append("::").append(changeSet.getSqlVisitors().size()).append("::");
+            if (preconditions != null) {
+                sb.append(preconditions.getOnFail()).append("/").append(preconditions.getOnFailMessage())
+                        .append("/").append(preconditions.getNestedPreconditions().size());
+            }
+            for (Change change : changeSet.getChanges()) {
+                sb.append("\n").append(serializer.serialize(change, false));
+            }
+            for (Change change : changeSet.getRollBackChanges()) {
+                sb.append("\nrollback: ").append(serializer.serialize(change, false));
+            }
+            description.add(sb.toString());
+        }
+        return description;
+    }
+
+    private List<String> getChangeSetFilePaths(final DatabaseChangeLog changeLog) {
+        List<String> filePaths = new ArrayList<>();
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            filePaths.add(changeSet.getFilePath());
+        }
+        return filePaths;
+    }
+
+    /**
+     * Returns the remembered route of a resource of a bundle. The route cache is in an internal package of the
+     * Liquibase bundle, so it is reached by reflection.
+     */
+    private int getResourceRoute(final Bundle bundle, final String path) {
+        ClassLoader liquibaseClassLoader =
+                FrameworkUtil.getBundle(ServiceLocator.class).adapt(BundleWiring.class).getClassLoader();
+        try {
+            Class<?> routeCacheClass =
+                    liquibaseClassLoader.loadClass("org.everit.osgi.liquibase.bundle.internal.ResourceRouteCache");
+            Object routeCache = routeCacheClass.getMethod("getInstance").invoke(null);
+            return (Integer) routeCacheClass.getMethod("getRoute", Bundle.class, String.class).invoke(routeCache,
+                    bundle, path);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void installAndStartBundle(final String pathPrefix, final String manifestPropertiesPath,
+            final String... filePaths) {
+        Bundle installedBundle = installBundle(pathPrefix, manifestPropertiesPath, filePaths);
+        try {
             installedBundle.start();
             BundleWiring bundleWiring = installedBundle.adapt(BundleWiring.class);
             List<BundleCapability> capabilities = bundleWiring.getCapabilities(null);
             System.out.println(capabilities);
-        } catch (IOException e) {
+        } catch (BundleException e) {
             throw new RuntimeException(e);
+        }
+    }
+
+    private Bundle installBundle(final String pathPrefix, final String manifestPropertiesPath,
+            final String... filePaths) {
+        byte[] bundleBA = createBundleContent(pathPrefix, manifestPropertiesPath, filePaths);
+        try {
+            return bundleContext.installBundle(pathPrefix, new ByteArrayInputStream(bundleBA));
         } catch (BundleException e) {
             throw new RuntimeException(e);
         }
@@ -162,6 +385,100 @@ public class LiquibaseTestComponent {
         installAndStartBundle("bundle1", "META-INF/MANIFEST.properties", "META-INF/liquibase/myApp.xml");
     }
 
+    /**
+     * Runs an operation repeatedly after the same number of warm-up runs and returns the average time of a run. The
+     * result is printed, so the numbers of the test runs can be compared.
+     *
+     * @return The average time of a run in nanoseconds.
+     */
+    private long measureNanos(final String name, final int runs, final Runnable operation) {
+        for (int i = 0; i < runs; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            operation.run();
+        }
+        long average = (System.nanoTime() - start) / runs;
+        System.out.println("Benchmark " + name + ": " + average + " ns/op");
+        return average;
+    }
+
+    /**
+     * Checks a class the same way as the {@link ServiceLocator} does when it decides whether the class can be used as
+     * an implementation of a service.
+     */
+    private boolean isServiceImplementation(final Class<?> type, final Class<?> service) {
+        if (!service.isAssignableFrom(type)) {
+            return false;
+        }
+        LiquibaseService liquibaseService = type.getAnnotation(LiquibaseService.class);
+        if ((liquibaseService != null) && liquibaseService.skip()) {
+            return false;
+        }
+        int modifiers = type.getModifiers();
+        if (Modifier.isAbstract(modifiers) || Modifier.isInterface(modifiers) || !Modifier.isPublic(modifiers)) {
+            return false;
+        }
+        try {
+            type.getConstructor();
+            return true;
+        } catch (NoSuchMethodException | NoClassDefFoundError e) {
+            return false;
+        }
+    }
+
+    private DatabaseChangeLog parseChangeLog(final Bundle bundle, final String changeLogFile,
+            final Map<String, String> parameters) {
+        ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle);
+        ChangeLogParameters changeLogParameters = new ChangeLogParameters();
+        for (Entry<String, String> parameter : parameters.entrySet()) {
+            changeLogParameters.set(parameter.getKey(), parameter.getValue());
+        }
+        try {
+            return ChangeLogParserFactory.getInstance().getParser(changeLogFile, resourceAccessor)
+                    .parse(changeLogFile, changeLogParameters, resourceAccessor);
+        } catch (LiquibaseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a resource with a resource accessor.
+     *
+     * @return The content of the resource or <code>null</code> if the resource accessor does not find it.
+     */
+    private String readResource(final ResourceAccessor resourceAccessor, final String path) {
+        try (InputStream inputStream = resourceAccessor.getResourceAsStream(path)) {
+            if (inputStream == null) {
+                return null;
+            }
+            return readStream(inputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Error during reading resource " + path, e);
+        }
+    }
+
+    /**
+     * Reads the content of a stream as UTF-8 text. The stream is not closed.
+     */
+    private String readStream(final InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len = inputStream.read(buffer);
+        while (len > -1) {
+            out.write(buffer, 0, len);
+            len = inputStream.read(buffer);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String readURL(final URL url) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LiquibaseTestComponent.copyURLContentToStream(url, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     private void removeBundles() {
 
         try {
@@ -202,6 +519,498 @@ public class LiquibaseTestComponent {
         }
     }
 
+    /**
+     * Sets the executor that parses the included changelogs. The parser is in an internal package of the Liquibase
+     * bundle, so it is reached by reflection.
+     */
+    private void setIncludeExecutor(final Executor executor) {
+        ClassLoader liquibaseClassLoader =
+                FrameworkUtil.getBundle(ServiceLocator.class).adapt(BundleWiring.class).getClassLoader();
+        try {
+            Class<?> parserClass = liquibaseClassLoader
+                    .loadClass("org.everit.osgi.liquibase.bundle.internal.parser.OSGiXMLChangeLogSAXParser");
+            parserClass.getMethod("setIncludeExecutor", Executor.class).invoke(null, executor);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void uninstallBundles(final Bundle... bundles) {
+        try {
+            for (Bundle bundle : bundles) {
+                bundle.uninstall();
+            }
+        } catch (BundleException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void updateDatabase(final Bundle bundle, final String changeLogFile) {
+        Database database = null;
+        try {
+            Connection connection = dataSource.getConnection();
+            database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            Liquibase liquibase = new Liquibase(changeLogFile, new OSGiResourceAccessor(bundle), database);
+            liquibase.update((String) null);
+        } catch (SQLException | LiquibaseException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (database != null) {
+                try {
+                    database.close();
+                } catch (DatabaseException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Walking a bundle directory of 5,000 entries with the bundle files that are used by includeAll, compared to
+     * looking up the resource of every entry as the bundle files did on construction before. The walk must not look
+     * up the resources of the listed entries, so it must be cheaper.
+     */
+    @Test
+    public void testBenchmarkBundleFileWalk() {
+        final int fileCount = 5000;
+        final String directory = "META-INF/liquibase/walk/";
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < fileCount; i++) {
+            entries.put(directory + "file" + i + ".xml", new byte[0]);
+        }
+        final Bundle bundle5;
+        try {
+            bundle5 = bundleContext.installBundle("bundle5", new ByteArrayInputStream(createBundleContent("bundle5",
+                    resolveManifest("/META-INF/testBundles/bundle5/META-INF/MANIFEST.properties"), entries)));
+            bundle5.start();
+        } catch (BundleException e) {
+            throw new RuntimeException(e);
+        }
+        ClassLoader liquibaseClassLoader =
+                FrameworkUtil.getBundle(ServiceLocator.class).adapt(BundleWiring.class).getClassLoader();
+        try {
+            final Constructor<?> bundleFileConstructor = liquibaseClassLoader
+                    .loadClass("br.com.germantech.liquibase.impl.BundleFile")
+                    .getConstructor(Bundle.class, String.class);
+            Class<?> fileClass = liquibaseClassLoader.loadClass("br.com.germantech.liquibase.IFile");
+            final Method iterateFiles = fileClass.getMethod("iterateFiles");
+            final Method isDirectory = fileClass.getMethod("isDirectory");
+            final Method getName = fileClass.getMethod("getName");
+
+            long walkNanos = measureNanos("BundleFile walk of " + fileCount + " entries", 10, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Iterator<?> files = (Iterator<?>) iterateFiles.invoke(bundleFileConstructor.newInstance(
+                                bundle5, directory));
+                        int count = 0;
+                        while (files.hasNext()) {
+                            Object file = files.next();
+                            if (!((Boolean) isDirectory.invoke(file)) && (getName.invoke(file) != null)) {
+                                count++;
+                            }
+                        }
+                        Assert.assertEquals(fileCount, count);
+                    } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            long resolveNanos = measureNanos("Resource lookup of " + fileCount + " entries", 10, new Runnable() {
+                @Override
+                public void run() {
+                    Enumeration<String> entryPaths = bundle5.getEntryPaths(directory);
+                    int count = 0;
+                    while (entryPaths.hasMoreElements()) {
+                        URL resource = bundle5.getResource(entryPaths.nextElement());
+                        if (!resource.getPath().endsWith("/")) {
+                            count++;
+                        }
+                    }
+                    Assert.assertEquals(fileCount, count);
+                }
+            });
+            Assert.assertTrue("Walk: " + walkNanos + " ns, lookup: " + resolveNanos + " ns",
+                    walkNanos < resolveNanos);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } finally {
+            uninstallBundles(bundle5);
+        }
+    }
+
+    /**
+     * Replaying the SAX events of a changelog with 200 createTable and insert change sets to the handler of the
+     * Liquibase bundle that dispatches the elements by a table and to the handler of the XML parser of Liquibase that
+     * compares the name of every element with a chain of names. Both handlers are internal, so they are reached by
+     * reflection. The table must be cheaper than the chain. The events are recorded once, so the numbers show the
+     * cost of handling an element without the cost of parsing and validating the XML. The average cost of an element
+     * is printed for both handlers.
+     */
+    @Test
+    public void testBenchmarkElementDispatch() {
+        final int changeSetCount = 200;
+        final int columnCount = 20;
+        final String changeLogFile = "META-INF/liquibase/dispatch.xml";
+        StringBuilder changeSets = new StringBuilder();
+        for (int i = 0; i < changeSetCount; i++) {
+            changeSets.append("<changeSet id=\"dispatch").append(i).append("\" author=\"everit\">");
+            changeSets.append("<createTable tableName=\"dispatch").append(i).append("\">");
+            for (int j = 0; j < columnCount; j++) {
+                changeSets.append("<column name=\"column").append(j).append("\" type=\"varchar(255)\"/>");
+            }
+            changeSets.append("</createTable><insert tableName=\"dispatch").append(i).append("\">");
+            for (int j = 0; j < columnCount; j++) {
+                changeSets.append("<column name=\"column").append(j).append("\" value=\"value").append(j)
+                        .append("\"/>");
+            }
+            changeSets.append("</insert></changeSet>");
+        }
+        int elementCount = 1 + (changeSetCount * (3 + (2 * columnCount)));
+
+        ClassLoader liquibaseClassLoader =
+                FrameworkUtil.getBundle(ServiceLocator.class).adapt(BundleWiring.class).getClassLoader();
+        try {
+            Class<?> precompiledChangeLogClass = liquibaseClassLoader
+                    .loadClass("org.everit.osgi.liquibase.bundle.internal.parser.PrecompiledChangeLog");
+            Class<?> recorderClass = liquibaseClassLoader
+                    .loadClass("org.everit.osgi.liquibase.bundle.internal.parser.PrecompiledChangeLog$Recorder");
+            Constructor<?> recorderConstructor = recorderClass.getDeclaredConstructor();
+            recorderConstructor.setAccessible(true);
+            DefaultHandler recorder = (DefaultHandler) recorderConstructor.newInstance();
+            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+            saxParserFactory.setNamespaceAware(true);
+            saxParserFactory.newSAXParser().parse(new ByteArrayInputStream(createChangeLogContent(
+                    changeSets.toString())), recorder);
+            Method toPrecompiledChangeLog = recorderClass.getDeclaredMethod("toPrecompiledChangeLog");
+            toPrecompiledChangeLog.setAccessible(true);
+            final Object precompiledChangeLog = toPrecompiledChangeLog.invoke(recorder);
+            final Method replay = precompiledChangeLogClass.getDeclaredMethod("replay", ContentHandler.class);
+            replay.setAccessible(true);
+
+            Class<?> handlerClass = liquibaseClassLoader
+                    .loadClass("org.everit.osgi.liquibase.bundle.internal.parser.OSGiXMLChangeLogSAXHandler");
+            Class<?> parseContextClass = liquibaseClassLoader
+                    .loadClass("org.everit.osgi.liquibase.bundle.internal.parser.ParseContext");
+            final Constructor<?> handlerConstructor = handlerClass.getDeclaredConstructor(String.class,
+                    ResourceAccessor.class, ChangeLogParameters.class, parseContextClass);
+            handlerConstructor.setAccessible(true);
+            final Constructor<?> parseContextConstructor = parseContextClass.getConstructor();
+            final Method getDatabaseChangeLog = handlerClass.getMethod("getDatabaseChangeLog");
+            getDatabaseChangeLog.setAccessible(true);
+            final ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundleContext.getBundle());
+
+            long tableNanos = measureNanos("Table dispatch of " + elementCount + " elements", 20, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Object handler = handlerConstructor.newInstance(changeLogFile, resourceAccessor,
+                                new ChangeLogParameters(), parseContextConstructor.newInstance());
+                        replay.invoke(precompiledChangeLog, handler);
+                        Assert.assertEquals(changeSetCount, ((DatabaseChangeLog) getDatabaseChangeLog
+                                .invoke(handler)).getChangeSets().size());
+                    } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            Class<?> chainHandlerClass =
+                    XMLChangeLogSAXParser.class.getClassLoader().loadClass(XMLChangeLogSAXParser.class.getPackage()
+                            .getName() + ".XMLChangeLogSAXHandler");
+            final Constructor<?> chainHandlerConstructor = chainHandlerClass.getDeclaredConstructor(String.class,
+                    ResourceAccessor.class, ChangeLogParameters.class);
+            chainHandlerConstructor.setAccessible(true);
+            final Method getChainDatabaseChangeLog = chainHandlerClass.getMethod("getDatabaseChangeLog");
+            getChainDatabaseChangeLog.setAccessible(true);
+            long chainNanos = measureNanos("Chained dispatch of " + elementCount + " elements", 20, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Object handler = chainHandlerConstructor.newInstance(changeLogFile, resourceAccessor,
+                                new ChangeLogParameters());
+                        replay.invoke(precompiledChangeLog, handler);
+                        Assert.assertEquals(changeSetCount, ((DatabaseChangeLog) getChainDatabaseChangeLog
+                                .invoke(handler)).getChangeSets().size());
+                    } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            System.out.println("Benchmark element dispatch: " + (tableNanos / elementCount) + " ns/element with the"
+                    + " table, " + (chainNanos / elementCount) + " ns/element with the chain");
+            Assert.assertTrue("Table: " + tableNanos + " ns, chain: " + chainNanos + " ns", tableNanos < chainNanos);
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException | ParserConfigurationException | SAXException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Looking up a schema with the capability index while 200 other bundles provide schemas, compared to scanning the
+     * capabilities of every bundle as the lookup did before. The index finds the capabilities of the schema name
+     * without touching the other bundles, so it must be cheaper.
+     */
+    @Test
+    public void testBenchmarkSchemaLookup() {
+        final int bundleCount = 200;
+        installAndStartBundles();
+        List<Bundle> generatedBundles = new ArrayList<>();
+        try {
+            for (int i = 0; i < bundleCount; i++) {
+                Manifest manifest = new Manifest();
+                Attributes mainAttributes = manifest.getMainAttributes();
+                mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+                mainAttributes.putValue("Bundle-ManifestVersion", "2");
+                mainAttributes.putValue("Bundle-SymbolicName", "org.everit.osgi.liquibase.bundle.tests.generated" + i);
+                mainAttributes.putValue("Bundle-Version", "1.0.0");
+                mainAttributes.putValue("Provide-Capability", LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS
+                        + ";name=generated" + i + ";resource=/META-INF/liquibase/generated.xml");
+                Bundle generatedBundle = bundleContext.installBundle("generated" + i, new ByteArrayInputStream(
+                        createBundleContent("bundle5", manifest, Collections.<String, byte[]> emptyMap())));
+                generatedBundles.add(generatedBundle);
+                generatedBundle.start();
+            }
+        } catch (BundleException e) {
+            uninstallBundles(generatedBundles.toArray(new Bundle[generatedBundles.size()]));
+            removeBundles();
+            throw new RuntimeException(e);
+        }
+        try {
+            final Bundle bundle2 = bundleContext.getBundle("bundle2");
+            long indexNanos = measureNanos("Indexed lookup among " + bundleCount + " schema bundles", 1000,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Map<Bundle, List<BundleCapability>> bundles = LiquibaseOSGiUtil
+                                    .findBundlesBySchemaExpression("carandperson", bundleContext, Bundle.ACTIVE);
+                            Assert.assertEquals(Collections.singleton(bundle2), bundles.keySet());
+                        }
+                    });
+            final Filter filter = LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes("carandperson");
+            long scanNanos = measureNanos("Scanned lookup among " + bundleCount + " schema bundles", 1000,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Map<Bundle, List<BundleCapability>> bundles = new HashMap<>();
+                            for (Bundle bundle : bundleContext.getBundles()) {
+                                if (bundle.getState() != Bundle.ACTIVE) {
+                                    continue;
+                                }
+                                for (BundleCapability capability : bundle.adapt(BundleWiring.class)
+                                        .getCapabilities(LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS)) {
+                                    Map<String, Object> attributes = capability.getAttributes();
+                                    if ((attributes.get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE) != null)
+                                            && filter.matches(attributes)) {
+                                        bundles.put(bundle, Collections.singletonList(capability));
+                                    }
+                                }
+                            }
+                            Assert.assertEquals(Collections.singleton(bundle2), bundles.keySet());
+                        }
+                    });
+            Assert.assertTrue("Index: " + indexNanos + " ns, scan: " + scanNanos + " ns", indexNanos < scanNanos);
+        } finally {
+            uninstallBundles(generatedBundles.toArray(new Bundle[generatedBundles.size()]));
+            removeBundles();
+        }
+    }
+
+    /**
+     * Parsing a changelog with 500 includes with the parser of the Liquibase bundle that validates every file with a
+     * pooled SAX parser and a schema that is compiled once, compared to parsing the same files with the XML parser of
+     * Liquibase that creates a new SAX parser and loads the schema for every file as the parser did before. The
+     * included files are parsed one by one with the XML parser of Liquibase, as it would hand the includes over to the
+     * parser of the Liquibase bundle. The accessor of the caller keeps the changelog cache out of the measurement.
+     */
+    @Test
+    public void testBenchmarkSchemaValidatedIncludes() {
+        final int includeCount = 500;
+        final String changeLogFile = "META-INF/liquibase/includes.xml";
+        final List<String> changeLogFiles = new ArrayList<>();
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        StringBuilder includes = new StringBuilder();
+        for (int i = 0; i < includeCount; i++) {
+            String includedChangeLogFile = "META-INF/liquibase/includes/changelog" + i + ".xml";
+            changeLogFiles.add(includedChangeLogFile);
+            entries.put(includedChangeLogFile, createChangeLogContent("<changeSet id=\"include" + i
+                    + "\" author=\"everit\"><createTable tableName=\"include" + i + "\">"
+                    + "<column name=\"include" + i + "_id\" type=\"bigint\"/></createTable></changeSet>"));
+            includes.append("<include file=\"").append(includedChangeLogFile).append("\"/>");
+        }
+        entries.put(changeLogFile, createChangeLogContent(includes.toString()));
+        final Bundle bundle5;
+        try {
+            bundle5 = bundleContext.installBundle("bundle5", new ByteArrayInputStream(createBundleContent("bundle5",
+                    resolveManifest("/META-INF/testBundles/bundle5/META-INF/MANIFEST.properties"), entries)));
+            bundle5.start();
+        } catch (BundleException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            ResourceAccessor callerAccessor = new ResourceAccessor() {
+
+                @Override
+                public InputStream getResourceAsStream(final String file) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public Enumeration<URL> getResources(final String packageName) throws IOException {
+                    return Collections.emptyEnumeration();
+                }
+
+                @Override
+                public ClassLoader toClassLoader() {
+                    return bundle5.adapt(BundleWiring.class).getClassLoader();
+                }
+            };
+            final ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle5, callerAccessor);
+            final ChangeLogParser parser;
+            try {
+                parser = ChangeLogParserFactory.getInstance().getParser(changeLogFile, resourceAccessor);
+            } catch (LiquibaseException e) {
+                throw new RuntimeException(e);
+            }
+            Assert.assertNotSame(XMLChangeLogSAXParser.class, parser.getClass());
+
+            long pooledNanos = measureNanos("Pooled parse of " + includeCount + " includes", 5, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Assert.assertEquals(includeCount, parser.parse(changeLogFile, new ChangeLogParameters(),
+                                resourceAccessor).getChangeSets().size());
+                    } catch (ChangeLogParseException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            long perFileNanos = measureNanos("Per-file parse of " + includeCount + " includes", 5, new Runnable() {
+                @Override
+                public void run() {
+                    int changeSetCount = 0;
+                    for (String file : changeLogFiles) {
+                        try {
+                            changeSetCount += new XMLChangeLogSAXParser().parse(file, new ChangeLogParameters(),
+                                    resourceAccessor).getChangeSets().size();
+                        } catch (ChangeLogParseException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    Assert.assertEquals(includeCount, changeSetCount);
+                }
+            });
+            Assert.assertTrue("Pooled: " + pooledNanos + " ns, per file: " + perFileNanos + " ns",
+                    pooledNanos < perFileNanos);
+        } finally {
+            uninstallBundles(bundle5);
+        }
+    }
+
+    /**
+     * Parsing a changelog that is cached already with an accessor of the caller that returns different content for the
+     * same path. The changelog cache must not be used, as it is keyed by the bundle and the path only.
+     */
+    @Test
+    public void testChangeLogCacheBypassedForCallerAccessors() {
+        final String changeLogFile = "META-INF/liquibase/tenant.xml";
+        installAndStartBundle("bundle5", "META-INF/MANIFEST.properties", changeLogFile);
+        final Bundle bundle5 = bundleContext.getBundle("bundle5");
+        try {
+            DatabaseChangeLog cachedChangeLog =
+                    parseChangeLog(bundle5, changeLogFile, Collections.singletonMap("tenant", "first"));
+            Assert.assertEquals("first_account", ((CreateTableChange) cachedChangeLog.getChangeSets().get(0)
+                    .getChanges().get(0)).getTableName());
+
+            final byte[] callerContent = readResource(new OSGiResourceAccessor(bundle5), changeLogFile)
+                    .replace("_account", "_customer").getBytes(StandardCharsets.UTF_8);
+            ResourceAccessor callerAccessor = new ResourceAccessor() {
+
+                @Override
+                public InputStream getResourceAsStream(final String file) throws IOException {
+                    if (changeLogFile.equals(file)) {
+                        return new ByteArrayInputStream(callerContent);
+                    }
+                    return null;
+                }
+
+                @Override
+                public Enumeration<URL> getResources(final String packageName) throws IOException {
+                    return Collections.emptyEnumeration();
+                }
+
+                @Override
+                public ClassLoader toClassLoader() {
+                    return bundle5.adapt(BundleWiring.class).getClassLoader();
+                }
+            };
+            ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle5, callerAccessor);
+            ChangeLogParameters changeLogParameters = new ChangeLogParameters();
+            changeLogParameters.set("tenant", "first");
+            DatabaseChangeLog callerChangeLog = ChangeLogParserFactory.getInstance()
+                    .getParser(changeLogFile, resourceAccessor)
+                    .parse(changeLogFile, changeLogParameters, resourceAccessor);
+            Assert.assertEquals("first_customer", ((CreateTableChange) callerChangeLog.getChangeSets().get(0)
+                    .getChanges().get(0)).getTableName());
+        } catch (LiquibaseException e) {
+            throw new RuntimeException(e);
+        } finally {
+            uninstallBundles(bundle5);
+        }
+    }
+
+    /**
+     * Parsing the same changelog for two tenants with different parameters while the changelog cache is enabled. Every
+     * parse must get its own change sets and changes with the parameters of that parse.
+     */
+    @Test
+    public void testChangeLogCacheWithTenantParameters() {
+        String changeLogFile = "META-INF/liquibase/tenant.xml";
+        installAndStartBundle("bundle5", "META-INF/MANIFEST.properties", changeLogFile);
+        Bundle bundle5 = bundleContext.getBundle("bundle5");
+        try {
+            DatabaseChangeLog firstChangeLog =
+                    parseChangeLog(bundle5, changeLogFile, Collections.singletonMap("tenant", "first"));
+            DatabaseChangeLog secondChangeLog =
+                    parseChangeLog(bundle5, changeLogFile, Collections.singletonMap("tenant", "second"));
+            DatabaseChangeLog firstChangeLogAgain =
+                    parseChangeLog(bundle5, changeLogFile, Collections.singletonMap("tenant", "first"));
+
+            ChangeSet firstChangeSet = firstChangeLog.getChangeSets().get(0);
+            ChangeSet secondChangeSet = secondChangeLog.getChangeSets().get(0);
+            ChangeSet firstChangeSetAgain = firstChangeLogAgain.getChangeSets().get(0);
+            Assert.assertSame(firstChangeLog, firstChangeSet.getChangeLog());
+            Assert.assertSame(secondChangeLog, secondChangeSet.getChangeLog());
+            Assert.assertSame(firstChangeLogAgain, firstChangeSetAgain.getChangeLog());
+            Assert.assertNotSame(firstChangeSet.getChanges().get(0), firstChangeSetAgain.getChanges().get(0));
+
+            Assert.assertEquals("first_account",
+                    ((CreateTableChange) firstChangeSet.getChanges().get(0)).getTableName());
+            Assert.assertEquals("second_account",
+                    ((CreateTableChange) secondChangeSet.getChanges().get(0)).getTableName());
+            Assert.assertEquals("first_account",
+                    ((CreateTableChange) firstChangeSetAgain.getChanges().get(0)).getTableName());
+        } finally {
+            uninstallBundles(bundle5);
+        }
+    }
+
+    /**
+     * Parsing a changelog that uses the elements of the changelog schema. The elements are dispatched by a table in
+     * the parser of the Liquibase bundle, the result must be the same as the result of the XML parser of Liquibase.
+     */
+    @Test
+    public void testChangeLogElementsParsedLikeLiquibaseParser() {
+        String changeLogFile = "META-INF/liquibase/elements.xml";
+        installAndStartBundle("bundle8", "META-INF/MANIFEST.properties", changeLogFile);
+        Bundle bundle8 = bundleContext.getBundle("bundle8");
+        try {
+            assertParsedLikeLiquibaseParser(bundle8, changeLogFile);
+        } finally {
+            uninstallBundles(bundle8);
+        }
+    }
+
     /**
      * Testing normal OSGi inclusion in a ChangeLog file.
      */
@@ -248,6 +1057,87 @@ public class LiquibaseTestComponent {
         }
     }
 
+    /**
+     * Parsing a changelog whose change sets, changes and columns have attributes of many types. The attributes are
+     * bound by cached setters in the parser of the Liquibase bundle, the result must be the same as the result of the
+     * XML parser of Liquibase.
+     */
+    @Test
+    public void testChangeSetAttributesBoundLikeLiquibaseParser() {
+        String changeLogFile = "META-INF/liquibase/attributes.xml";
+        installAndStartBundle("bundle8", "META-INF/MANIFEST.properties", changeLogFile);
+        Bundle bundle8 = bundleContext.getBundle("bundle8");
+        try {
+            assertParsedLikeLiquibaseParser(bundle8, changeLogFile);
+        } finally {
+            uninstallBundles(bundle8);
+        }
+    }
+
+    /**
+     * Looking up the Liquibase services from many threads at the same time. Every lookup of a service must return the
+     * same implementations as a single threaded lookup.
+     */
+    @Test
+    public void testConcurrentServiceLookups() {
+        final Class<?>[] services = new Class<?>[] { Change.class, ChangeLogParser.class, Database.class,
+                LiquibaseDataType.class, Precondition.class, SqlGenerator.class };
+        final int threadCount = 16;
+        final int lookupsPerThread = 500;
+
+        Map<Class<?>, Set<Class<?>>> expectedImplementations = new HashMap<>();
+        ServiceLocator.reset();
+        try {
+            for (Class<?> service : services) {
+                Set<Class<?>> expected = new HashSet<>(Arrays.asList(ServiceLocator.getInstance()
+                        .findClasses(service)));
+                Assert.assertFalse(expected.isEmpty());
+                expectedImplementations.put(service, expected);
+            }
+        } catch (ServiceNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+
+        ServiceLocator.reset();
+        final ServiceLocator serviceLocator = ServiceLocator.getInstance();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Map<Class<?>, Set<Class<?>>>>> results = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                final int offset = i;
+                results.add(executorService.submit(new Callable<Map<Class<?>, Set<Class<?>>>>() {
+
+                    @Override
+                    public Map<Class<?>, Set<Class<?>>> call() throws Exception {
+                        startSignal.await();
+                        Map<Class<?>, Set<Class<?>>> implementations = new HashMap<>();
+                        for (int j = 0; j < lookupsPerThread; j++) {
+                            Class<?> service = services[(offset + j) % services.length];
+                            Set<Class<?>> found = new HashSet<>(Arrays.asList(serviceLocator.findClasses(service)));
+                            Set<Class<?>> previous = implementations.put(service, found);
+                            Assert.assertTrue(previous == null || previous.equals(found));
+                        }
+                        return implementations;
+                    }
+                }));
+            }
+            startSignal.countDown();
+
+            for (Future<Map<Class<?>, Set<Class<?>>>> result : results) {
+                Map<Class<?>, Set<Class<?>>> implementations = result.get();
+                Assert.assertEquals(expectedImplementations.keySet(), implementations.keySet());
+                for (Entry<Class<?>, Set<Class<?>>> entry : implementations.entrySet()) {
+                    Assert.assertEquals(expectedImplementations.get(entry.getKey()), entry.getValue());
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
     /**
      * Testing the {@link}createFilterForLiquibaseCapabilityAttributes function with invalid schema expressions.
      */
@@ -287,6 +1177,145 @@ public class LiquibaseTestComponent {
         Assert.assertTrue(LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes("myApp;filter:=(name=asd)") instanceof Filter);
     }
 
+    /**
+     * Resolving an eosgi: include, replacing the bundle that provides the included schema and refreshing the bundles.
+     * The cached resolution belongs to the old wiring, so the next include must be resolved to the wire of the new
+     * provider.
+     */
+    @Test
+    public void testEOSGiIncludeResolvedAfterProviderRefresh() {
+        String changeLogFile = "META-INF/liquibase/myApp.xml";
+        List<String> expectedFilePaths = Arrays.asList("org.everit.osgi.liquibase.bundle.tests.person",
+                "org.everit.osgi.liquibase.bundle.tests.car", "org.everit.osgi.liquibase.bundle.tests.myApp");
+        installAndStartBundles();
+        try {
+            Bundle bundle1 = bundleContext.getBundle("bundle1");
+            Bundle oldProvider = bundleContext.getBundle("bundle2");
+            Assert.assertEquals(expectedFilePaths, getChangeSetFilePaths(
+                    parseChangeLog(bundle1, changeLogFile, Collections.<String, String> emptyMap())));
+            BundleWire oldWire = LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(bundle1, "carandperson");
+            Assert.assertEquals(oldProvider, oldWire.getProviderWiring().getBundle());
+
+            oldProvider.uninstall();
+            installAndStartBundle("bundle2", "META-INF/MANIFEST.properties", "META-INF/liquibase/car.xml",
+                    "META-INF/liquibase/person.xml");
+            Bundle newProvider = bundleContext.getBundle("bundle2");
+            final CountDownLatch refreshed = new CountDownLatch(1);
+            bundleContext.getBundle(0).adapt(FrameworkWiring.class).refreshBundles(
+                    Arrays.asList(bundle1, oldProvider), new FrameworkListener() {
+
+                        @Override
+                        public void frameworkEvent(final FrameworkEvent event) {
+                            refreshed.countDown();
+                        }
+                    });
+            Assert.assertTrue("The bundles were not refreshed", refreshed.await(30, TimeUnit.SECONDS));
+
+            BundleWire newWire = LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(bundle1, "carandperson");
+            Assert.assertNotSame(oldWire, newWire);
+            Assert.assertEquals(newProvider, newWire.getProviderWiring().getBundle());
+            Assert.assertEquals(expectedFilePaths, getChangeSetFilePaths(
+                    parseChangeLog(bundle1, changeLogFile, Collections.<String, String> emptyMap())));
+        } catch (BundleException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            removeBundles();
+        }
+    }
+
+    /**
+     * Parsing changelogs with eosgi: includes one after the other on the same thread and concurrently on several
+     * threads. The includes that were processed by a parse, even by one that failed halfway, must not be skipped by
+     * the other parses.
+     */
+    @Test
+    public void testEOSGiIncludesOfIndependentParses() {
+        final String changeLogFile = "META-INF/liquibase/myApp.xml";
+        String abandonedChangeLogFile = "META-INF/liquibase/include_eosgi_abandoned.xml";
+        final int threadCount = 4;
+        installAndStartBundle("bundle2", "META-INF/MANIFEST.properties", "META-INF/liquibase/car.xml",
+                "META-INF/liquibase/person.xml");
+        installAndStartBundle("bundle1", "META-INF/MANIFEST.properties", changeLogFile, abandonedChangeLogFile);
+        final Bundle bundle1 = bundleContext.getBundle("bundle1");
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<String> expectedFilePaths = Arrays.asList("org.everit.osgi.liquibase.bundle.tests.person",
+                    "org.everit.osgi.liquibase.bundle.tests.car", "org.everit.osgi.liquibase.bundle.tests.myApp");
+            Assert.assertEquals(expectedFilePaths, getChangeSetFilePaths(
+                    parseChangeLog(bundle1, changeLogFile, Collections.<String, String> emptyMap())));
+
+            try {
+                parseChangeLog(bundle1, abandonedChangeLogFile, Collections.<String, String> emptyMap());
+                Assert.fail("The parse should fail as the changelog includes a missing changelog");
+            } catch (RuntimeException e) {
+                Assert.assertTrue(e.getCause() instanceof ChangeLogParseException);
+            }
+            Assert.assertEquals(expectedFilePaths, getChangeSetFilePaths(
+                    parseChangeLog(bundle1, changeLogFile, Collections.<String, String> emptyMap())));
+
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            List<Future<DatabaseChangeLog>> results = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                results.add(executorService.submit(new Callable<DatabaseChangeLog>() {
+
+                    @Override
+                    public DatabaseChangeLog call() throws Exception {
+                        startSignal.await();
+                        return parseChangeLog(bundle1, changeLogFile, Collections.<String, String> emptyMap());
+                    }
+                }));
+            }
+            startSignal.countDown();
+            for (Future<DatabaseChangeLog> result : results) {
+                Assert.assertEquals(expectedFilePaths, getChangeSetFilePaths(result.get()));
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executorService.shutdownNow();
+            removeBundles();
+        }
+    }
+
+    /**
+     * Parsing a changelog whose two includes are parsed concurrently and both include the same schema with eosgi:.
+     * The schema must be included by the first include in document order and skipped by the second one, and the
+     * property that the first include defines must win over the definition of the second one, as in a sequential
+     * parse. The parse is repeated, as the outcome of a race between the include threads would change from run to run.
+     */
+    @Test
+    public void testEOSGiIncludesOfParallelSiblings() {
+        String changeLogFile = "META-INF/liquibase/include_eosgi_siblings.xml";
+        Map<String, String> parameters = Collections.emptyMap();
+        int parseCount = 100;
+        installAndStartBundle("bundle2", "META-INF/MANIFEST.properties", "META-INF/liquibase/car.xml",
+                "META-INF/liquibase/person.xml");
+        installAndStartBundle("bundle1", "META-INF/MANIFEST.properties", changeLogFile,
+                "META-INF/liquibase/include_eosgi_sibling_a.xml", "META-INF/liquibase/include_eosgi_sibling_b.xml");
+        Bundle bundle1 = bundleContext.getBundle("bundle1");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DatabaseChangeLog sequentialChangeLog = parseChangeLog(bundle1, changeLogFile, parameters);
+            Assert.assertEquals(Arrays.asList("org.everit.osgi.liquibase.bundle.tests.person",
+                    "org.everit.osgi.liquibase.bundle.tests.car", "org.everit.osgi.liquibase.bundle.tests.sibling_a",
+                    "org.everit.osgi.liquibase.bundle.tests.sibling_b",
+                    "org.everit.osgi.liquibase.bundle.tests.siblings"), getChangeSetFilePaths(sequentialChangeLog));
+            Assert.assertEquals("sibling_first_b", ((CreateTableChange) sequentialChangeLog.getChangeSets().get(3)
+                    .getChanges().get(0)).getTableName());
+            List<String> expectedChangeLog = describeChangeLog(sequentialChangeLog);
+
+            setIncludeExecutor(executor);
+            for (int i = 0; i < parseCount; i++) {
+                Assert.assertEquals("Parse " + i, expectedChangeLog,
+                        describeChangeLog(parseChangeLog(bundle1, changeLogFile, parameters)));
+            }
+        } finally {
+            setIncludeExecutor(null);
+            executor.shutdown();
+            removeBundles();
+        }
+    }
+
     /**
      * Test case, when the capability we want to include in our ChangeLog file is optional, and there is no bundle that
      * provide that capability.
@@ -307,6 +1336,190 @@ public class LiquibaseTestComponent {
         removeBundles();
     }
 
+    /**
+     * Running a changelog with an includeAll element whose directory is indexed at build time while a fragment adds a
+     * changelog to the directory. The index must be ignored, so the changelog of the fragment is included as well.
+     */
+    @Test
+    public void testIncludeAllIndexWithFragment() {
+        Bundle fragment = installBundle("bundle4fragment", "META-INF/MANIFEST.properties",
+                "META-INF/liquibase/all/02_second.xml");
+        installAndStartBundle("bundle4", "META-INF/MANIFEST.properties", "META-INF/liquibase/root.xml",
+                "META-INF/liquibase/all/01_first.xml", "META-INF/precompiled/META-INF/liquibase/all/includeAll.idx");
+        Bundle bundle4 = bundleContext.getBundle("bundle4");
+        try {
+            updateDatabase(bundle4, "META-INF/liquibase/root.xml");
+            assertTableExists("include_all_first");
+            assertTableExists("include_all_second");
+        } finally {
+            dropAll();
+            uninstallBundles(bundle4, fragment);
+        }
+    }
+
+    /**
+     * Parsing a changelog from a jar file with a resource accessor that is not bound to a bundle. The includeAll
+     * directory is listed from the entries of the jar, and the changelogs must be included in the alphabetical order
+     * of their names, not in the order of the entries.
+     */
+    @Test
+    public void testIncludeAllOrderInArchive() {
+        String[][] entries = { { "META-INF/liquibase/", null },
+                { "META-INF/liquibase/root.xml", "bundle4/META-INF/liquibase/root.xml" },
+                { "META-INF/liquibase/all/", null },
+                { "META-INF/liquibase/all/03_third.xml", "bundle4/META-INF/liquibase/all/03_third.xml" },
+                { "META-INF/liquibase/all/01_first.xml", "bundle4/META-INF/liquibase/all/01_first.xml" },
+                { "META-INF/liquibase/all/02_second.xml", "bundle4fragment/META-INF/liquibase/all/02_second.xml" } };
+        File archive = null;
+        try {
+            archive = File.createTempFile("liquibase-test", ".jar");
+            try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(archive))) {
+                for (String[] entry : entries) {
+                    jarOutputStream.putNextEntry(new ZipEntry(entry[0]));
+                    if (entry[1] != null) {
+                        copyURLContentToStream(bundleContext.getBundle().getResource(
+                                "/META-INF/testBundles/" + entry[1]), jarOutputStream);
+                    }
+                    jarOutputStream.closeEntry();
+                }
+            }
+
+            try (URLClassLoader archiveClassLoader =
+                    new URLClassLoader(new URL[] { archive.toURI().toURL() }, null)) {
+                ResourceAccessor resourceAccessor = new ClassLoaderResourceAccessor(archiveClassLoader);
+                String changeLogFile = "META-INF/liquibase/root.xml";
+                ChangeLogParser parser = ChangeLogParserFactory.getInstance().getParser(changeLogFile,
+                        resourceAccessor);
+                Assert.assertNotSame(XMLChangeLogSAXParser.class, parser.getClass());
+                DatabaseChangeLog changeLog =
+                        parser.parse(changeLogFile, new ChangeLogParameters(), resourceAccessor);
+                Assert.assertEquals(Arrays.asList("org.everit.osgi.liquibase.bundle.tests.includeAllFirst",
+                        "org.everit.osgi.liquibase.bundle.tests.includeAllSecond",
+                        "org.everit.osgi.liquibase.bundle.tests.includeAllThird"), getChangeSetFilePaths(changeLog));
+            }
+        } catch (IOException | LiquibaseException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (archive != null) {
+                archive.delete();
+            }
+        }
+    }
+
+    /**
+     * Parsing a changelog with an includeAll element from a directory of the file system with the XML parser of the
+     * Liquibase bundle. The files of the directory are listed in the order of the file system, so the changelogs must
+     * be sorted by their names, and the subdirectories must be skipped.
+     */
+    @Test
+    public void testIncludeAllOrderInDirectory() {
+        String[][] files = { { "META-INF/liquibase/root.xml", "bundle4/META-INF/liquibase/root.xml" },
+                { "META-INF/liquibase/all/03_third.xml", "bundle4/META-INF/liquibase/all/03_third.xml" },
+                { "META-INF/liquibase/all/01_first.xml", "bundle4/META-INF/liquibase/all/01_first.xml" },
+                { "META-INF/liquibase/all/02_second.xml", "bundle4fragment/META-INF/liquibase/all/02_second.xml" } };
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("liquibase-test").toFile();
+            for (String[] file : files) {
+                File target = new File(directory, file[0]);
+                target.getParentFile().mkdirs();
+                try (OutputStream out = new FileOutputStream(target)) {
+                    copyURLContentToStream(bundleContext.getBundle().getResource("/META-INF/testBundles/" + file[1]),
+                            out);
+                }
+            }
+            Assert.assertTrue(new File(directory, "META-INF/liquibase/all/00_directory").mkdir());
+
+            try (URLClassLoader directoryClassLoader =
+                    new URLClassLoader(new URL[] { directory.toURI().toURL() }, null)) {
+                ResourceAccessor resourceAccessor = new ClassLoaderResourceAccessor(directoryClassLoader);
+                String changeLogFile = "META-INF/liquibase/root.xml";
+                ChangeLogParser parser = ChangeLogParserFactory.getInstance().getParser(changeLogFile,
+                        resourceAccessor);
+                Assert.assertNotSame(XMLChangeLogSAXParser.class, parser.getClass());
+                DatabaseChangeLog changeLog =
+                        parser.parse(changeLogFile, new ChangeLogParameters(), resourceAccessor);
+                Assert.assertEquals(Arrays.asList("org.everit.osgi.liquibase.bundle.tests.includeAllFirst",
+                        "org.everit.osgi.liquibase.bundle.tests.includeAllSecond",
+                        "org.everit.osgi.liquibase.bundle.tests.includeAllThird"), getChangeSetFilePaths(changeLog));
+            }
+        } catch (IOException | LiquibaseException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (directory != null) {
+                deleteRecursively(directory);
+            }
+        }
+    }
+
+    /**
+     * Parsing a changelog with an includeAll element whose directory is spread over a bundle and its fragment. The
+     * changelogs must be included in the alphabetical order of their names, no matter which of the two holds them,
+     * also when the listing of the directory is taken from the cache on the second parse.
+     */
+    @Test
+    public void testIncludeAllOrderWithFragment() {
+        Bundle fragment = installBundle("bundle4fragment", "META-INF/MANIFEST.properties",
+                "META-INF/liquibase/all/02_second.xml");
+        installAndStartBundle("bundle4", "META-INF/MANIFEST.properties", "META-INF/liquibase/root.xml",
+                "META-INF/liquibase/all/03_third.xml", "META-INF/liquibase/all/01_first.xml");
+        Bundle bundle4 = bundleContext.getBundle("bundle4");
+        try {
+            List<String> expectedFilePaths = Arrays.asList("org.everit.osgi.liquibase.bundle.tests.includeAllFirst",
+                    "org.everit.osgi.liquibase.bundle.tests.includeAllSecond",
+                    "org.everit.osgi.liquibase.bundle.tests.includeAllThird");
+            for (int i = 0; i < 2; i++) {
+                DatabaseChangeLog changeLog = parseChangeLog(bundle4, "META-INF/liquibase/root.xml",
+                        Collections.<String, String> emptyMap());
+                Assert.assertEquals(expectedFilePaths, getChangeSetFilePaths(changeLog));
+            }
+        } finally {
+            uninstallBundles(bundle4, fragment);
+        }
+    }
+
+    /**
+     * Parsing and running a changelog whose SQL text is longer than the spill threshold of the text buffer that is
+     * set in the test environment. The text is moved to a temporary file while it is collected, so the result must be
+     * the same as the result of the XML parser of Liquibase and the temporary files must be deleted.
+     */
+    @Test
+    public void testLongTextSpilledToTemporaryFile() {
+        String changeLogFile = "META-INF/liquibase/text.xml";
+        installAndStartBundle("bundle8", "META-INF/MANIFEST.properties", changeLogFile);
+        Bundle bundle8 = bundleContext.getBundle("bundle8");
+        File tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+        FilenameFilter spillFileFilter = new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith("liquibase-text");
+            }
+        };
+        Set<String> spillFilesBefore = new HashSet<>(Arrays.asList(tempDirectory.list(spillFileFilter)));
+        try {
+            assertParsedLikeLiquibaseParser(bundle8, changeLogFile);
+
+            DatabaseChangeLog changeLog =
+                    parseChangeLog(bundle8, changeLogFile, Collections.<String, String> emptyMap());
+            String sql = ((RawSQLChange) changeLog.getChangeSets().get(1).getChanges().get(0)).getSql();
+            Assert.assertTrue(sql, sql.startsWith("insert into \"text_values\""));
+            Assert.assertTrue(sql, sql.contains("'second value with <escaped> & characters'"));
+            Assert.assertTrue(sql, sql.contains("'third value in a <CDATA> section'"));
+            Assert.assertTrue(sql,
+                    sql.endsWith("('\u00e1rv\u00edzt\u0171r\u0151 t\u00fck\u00f6rf\u00far\u00f3g\u00e9p');"));
+
+            updateDatabase(bundle8, changeLogFile);
+            assertTableExists("text_values");
+
+            Set<String> spillFilesAfter = new HashSet<>(Arrays.asList(tempDirectory.list(spillFileFilter)));
+            spillFilesAfter.removeAll(spillFilesBefore);
+            Assert.assertEquals(Collections.emptySet(), spillFilesAfter);
+        } finally {
+            dropAll();
+            uninstallBundles(bundle8);
+        }
+    }
+
     /**
      * Testing the case when the resource attribute of the included capability is missing. In this case, the normal
      * behavior is to throw a ChangeLogParseException.
@@ -409,6 +1622,120 @@ public class LiquibaseTestComponent {
         }
     }
 
+    /**
+     * Parsing a changelog whose includes are parsed concurrently by an executor. The change sets must be in document
+     * order, the same as when the includes are parsed one after the other.
+     */
+    @Test
+    public void testParallelIncludesKeepDocumentOrder() {
+        String changeLogFile = "META-INF/liquibase/parallel.xml";
+        Map<String, String> parameters = Collections.emptyMap();
+        installAndStartBundle("bundle7", "META-INF/MANIFEST.properties", changeLogFile,
+                "META-INF/liquibase/parallel_a.xml", "META-INF/liquibase/parallel_a_nested.xml",
+                "META-INF/liquibase/parallel_b.xml", "META-INF/liquibase/parallel_c.xml");
+        Bundle bundle7 = bundleContext.getBundle("bundle7");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<String> sequentialChangeLog = describeChangeLog(parseChangeLog(bundle7, changeLogFile, parameters));
+
+            setIncludeExecutor(executor);
+            DatabaseChangeLog parallelChangeLog = parseChangeLog(bundle7, changeLogFile, parameters);
+            List<String> changeSetIds = new ArrayList<>();
+            for (ChangeSet changeSet : parallelChangeLog.getChangeSets()) {
+                changeSetIds.add(changeSet.getId());
+            }
+            Assert.assertEquals(Arrays.asList("parallel_first", "parallel_a", "parallel_a_nested", "parallel_between",
+                    "parallel_b", "parallel_c", "parallel_last"), changeSetIds);
+            Assert.assertEquals(sequentialChangeLog, describeChangeLog(parallelChangeLog));
+
+            updateDatabase(bundle7, changeLogFile);
+            assertTableExists("parallel_a_nested");
+            assertTableExists("parallel_last");
+        } finally {
+            setIncludeExecutor(null);
+            executor.shutdown();
+            dropAll();
+            uninstallBundles(bundle7);
+        }
+    }
+
+    /**
+     * Parsing a changelog of a bundle without and with the precompiled forms that were created at build time. The
+     * replayed events must result in the same changelog as parsing the XML.
+     */
+    @Test
+    public void testPrecompiledChangeLogMatchesParsedChangeLog() {
+        String changeLogFile = "META-INF/liquibase/precompiled.xml";
+        String includedChangeLogFile = "META-INF/liquibase/all/01_precompiled_included.xml";
+        String precompiledDirectory = "META-INF/precompiled/";
+        Map<String, String> parameters = Collections.singletonMap("tenant", "first");
+
+        installAndStartBundle("bundle6", "META-INF/MANIFEST.properties", changeLogFile, includedChangeLogFile);
+        Bundle bundle6 = bundleContext.getBundle("bundle6");
+        List<String> parsedChangeLog;
+        try {
+            parsedChangeLog = describeChangeLog(parseChangeLog(bundle6, changeLogFile, parameters));
+        } finally {
+            uninstallBundles(bundle6);
+        }
+
+        installAndStartBundle("bundle6", "META-INF/MANIFEST.properties", changeLogFile, includedChangeLogFile,
+                precompiledDirectory + changeLogFile + ".lbc", precompiledDirectory + includedChangeLogFile + ".lbc",
+                precompiledDirectory + "META-INF/liquibase/all/includeAll.idx");
+        bundle6 = bundleContext.getBundle("bundle6");
+        try {
+            Assert.assertNotNull(bundle6.getEntry(precompiledDirectory + changeLogFile + ".lbc"));
+            List<String> replayedChangeLog = describeChangeLog(parseChangeLog(bundle6, changeLogFile, parameters));
+            // The second parse takes the verified precompiled forms from the memory
+            List<String> replayedChangeLogAgain =
+                    describeChangeLog(parseChangeLog(bundle6, changeLogFile, parameters));
+
+            Assert.assertEquals(4, parsedChangeLog.size());
+            Assert.assertEquals(parsedChangeLog, replayedChangeLog);
+            Assert.assertEquals(parsedChangeLog, replayedChangeLogAgain);
+        } finally {
+            uninstallBundles(bundle6);
+        }
+    }
+
+    /**
+     * Reading the resources of a bundle with the read mode that is set in the test environment. The changelogs of the
+     * bundle and of its fragment are found in both modes. A resource in a package that the bundle imports is hidden
+     * from the class loader of the bundle, so it is found only if the entries of the bundle are read first.
+     */
+    @Test
+    public void testReadModeOfBundleResources() {
+        String changeLogFile = "META-INF/liquibase/entries.xml";
+        String fragmentChangeLogFile = "META-INF/liquibase/fragment.xml";
+        String importedPackageResource = "liquibase/parser/core/xml/imported_package.xml";
+        boolean entryFirst = OSGiResourceAccessor.ReadMode.ENTRY_FIRST.name()
+                .equalsIgnoreCase(System.getProperty(OSGiResourceAccessor.READ_MODE_PROPERTY, "").trim());
+
+        Bundle fragment = installBundle("bundle9fragment", "META-INF/MANIFEST.properties", fragmentChangeLogFile);
+        installAndStartBundle("bundle9", "META-INF/MANIFEST.properties", changeLogFile, importedPackageResource);
+        Bundle bundle9 = bundleContext.getBundle("bundle9");
+        try {
+            ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle9);
+            Assert.assertEquals(readURL(bundle9.getEntry(changeLogFile)),
+                    readResource(resourceAccessor, changeLogFile));
+            Assert.assertEquals(readURL(fragment.getEntry(fragmentChangeLogFile)),
+                    readResource(resourceAccessor, fragmentChangeLogFile));
+            String importedPackageContent = readResource(resourceAccessor, importedPackageResource);
+            if (entryFirst) {
+                Assert.assertEquals(readURL(bundle9.getEntry(importedPackageResource)), importedPackageContent);
+            } else {
+                Assert.assertNull(importedPackageContent);
+            }
+
+            updateDatabase(bundle9, changeLogFile);
+            assertTableExists("read_mode_entry");
+            assertTableExists("read_mode_fragment");
+        } finally {
+            dropAll();
+            uninstallBundles(bundle9, fragment);
+        }
+    }
+
     /**
      * Test case, where the given changeLogFile to a Liquibase object refers to an OSGi based dependency but the
      * resourceAccessor has different type from OSGiResourceAccessor. Should throw a ChangeLogParseException.
@@ -446,4 +1773,420 @@ public class LiquibaseTestComponent {
             }
         }
     }
+
+    /**
+     * Reading the resources of a bundle through a content cache that has room for two resources. A cached resource is
+     * returned from the memory, the least recently read resource is evicted when a third one is stored, a resource that
+     * is larger than the whole budget is returned in full without being stored, and the resources of the bundle are
+     * released when the bundle is updated.
+     */
+    @Test
+    public void testResourceContentCached() {
+        String carResource = "META-INF/liquibase/car.xml";
+        String personResource = "META-INF/liquibase/person.xml";
+        installAndStartBundle("bundle2", "META-INF/MANIFEST.properties", carResource, personResource);
+        Bundle bundle2 = bundleContext.getBundle("bundle2");
+        ClassLoader liquibaseClassLoader =
+                FrameworkUtil.getBundle(ServiceLocator.class).adapt(BundleWiring.class).getClassLoader();
+        Object contentCache = null;
+        Method removeListener = null;
+        try {
+            Class<?> cacheClass =
+                    liquibaseClassLoader.loadClass("org.everit.osgi.liquibase.bundle.internal.ResourceContentCache");
+            Class<?> notifierClass =
+                    liquibaseClassLoader.loadClass("org.everit.osgi.liquibase.bundle.internal.BundleChangeNotifier");
+            Class<?> listenerClass = liquibaseClassLoader
+                    .loadClass("org.everit.osgi.liquibase.bundle.internal.BundleChangeNotifier$Listener");
+            Method get = cacheClass.getMethod("get", Bundle.class, String.class);
+            Method put = cacheClass.getMethod("put", Bundle.class, String.class, InputStream.class);
+            Method getSize = cacheClass.getMethod("getSize");
+            removeListener = notifierClass.getMethod("removeListener", listenerClass);
+
+            String carContent = readURL(bundle2.getEntry(carResource));
+            String personContent = readURL(bundle2.getEntry(personResource));
+            int carLength = carContent.getBytes(StandardCharsets.UTF_8).length;
+            int personLength = personContent.getBytes(StandardCharsets.UTF_8).length;
+            contentCache = cacheClass.getConstructor(long.class).newInstance((long) (carLength + personLength));
+            notifierClass.getMethod("addListener", listenerClass).invoke(null, contentCache);
+
+            Assert.assertNull(get.invoke(contentCache, bundle2, carResource));
+            Assert.assertEquals(carContent, readStream((InputStream) put.invoke(contentCache, bundle2, carResource,
+                    bundle2.getEntry(carResource).openStream())));
+            Assert.assertEquals(carContent,
+                    readStream((InputStream) get.invoke(contentCache, bundle2, carResource)));
+            Assert.assertEquals(1L, cacheClass.getMethod("getHitCount").invoke(contentCache));
+
+            put.invoke(contentCache, bundle2, personResource, bundle2.getEntry(personResource).openStream());
+            Assert.assertEquals((long) (carLength + personLength), getSize.invoke(contentCache));
+            get.invoke(contentCache, bundle2, carResource);
+            put.invoke(contentCache, bundle2, "extra.txt",
+                    new ByteArrayInputStream("extra".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertNull(get.invoke(contentCache, bundle2, personResource));
+            Assert.assertNotNull(get.invoke(contentCache, bundle2, carResource));
+            Assert.assertEquals(1L, cacheClass.getMethod("getEvictionCount").invoke(contentCache));
+
+            long sizeBeforeLargeResource = (Long) getSize.invoke(contentCache);
+            char[] largeChars = new char[(carLength + personLength) * 3];
+            Arrays.fill(largeChars, 'x');
+            String largeContent = new String(largeChars);
+            Assert.assertEquals(largeContent, readStream((InputStream) put.invoke(contentCache, bundle2, "large.txt",
+                    new ByteArrayInputStream(largeContent.getBytes(StandardCharsets.UTF_8)))));
+            Assert.assertNull(get.invoke(contentCache, bundle2, "large.txt"));
+            Assert.assertEquals(sizeBeforeLargeResource, getSize.invoke(contentCache));
+
+            bundle2.update(new ByteArrayInputStream(createBundleContent("bundle2", "META-INF/MANIFEST.properties",
+                    carResource, personResource)));
+            Assert.assertEquals(0L, getSize.invoke(contentCache));
+            Assert.assertNull(get.invoke(contentCache, bundle2, carResource));
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException | IOException | BundleException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (contentCache != null) {
+                try {
+                    removeListener.invoke(null, contentCache);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            uninstallBundles(bundle2);
+        }
+    }
+
+    /**
+     * Reading a resource of a bundle, a resource of the Liquibase bundle and a missing resource twice. The accessor
+     * that found a resource is remembered, and so is a missing resource, until the bundle is uninstalled. The
+     * accessors of the caller must still be asked on every read.
+     */
+    @Test
+    public void testResourceRoutesRemembered() {
+        String bundleResource = "META-INF/liquibase/car.xml";
+        String liquibaseResource = "liquibase/parser/core/xml/dbchangelog-3.1.xsd";
+        String missingResource = "META-INF/liquibase/missing.xml";
+        final AtomicInteger callerReads = new AtomicInteger();
+        ResourceAccessor callerResourceAccessor = new ResourceAccessor() {
+
+            @Override
+            public InputStream getResourceAsStream(final String file) {
+                callerReads.incrementAndGet();
+                return null;
+            }
+
+            @Override
+            public Enumeration<URL> getResources(final String packageName) {
+                return Collections.emptyEnumeration();
+            }
+
+            @Override
+            public ClassLoader toClassLoader() {
+                return null;
+            }
+        };
+
+        installAndStartBundle("bundle2", "META-INF/MANIFEST.properties", bundleResource,
+                "META-INF/liquibase/person.xml");
+        Bundle bundle2 = bundleContext.getBundle("bundle2");
+        try {
+            Assert.assertEquals(ROUTE_UNKNOWN, getResourceRoute(bundle2, bundleResource));
+            String expectedContent = readURL(bundle2.getEntry(bundleResource));
+            ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle2, callerResourceAccessor);
+            for (int i = 0; i < 2; i++) {
+                Assert.assertEquals(expectedContent, readResource(resourceAccessor, bundleResource));
+                Assert.assertNotNull(readResource(resourceAccessor, liquibaseResource));
+                Assert.assertNull(readResource(resourceAccessor, missingResource));
+            }
+
+            Assert.assertEquals(6, callerReads.get());
+            Assert.assertEquals(ROUTE_BUNDLE, getResourceRoute(bundle2, bundleResource));
+            Assert.assertEquals(ROUTE_LIQUIBASE_BUNDLE, getResourceRoute(bundle2, liquibaseResource));
+            Assert.assertEquals(ROUTE_NOT_FOUND, getResourceRoute(bundle2, missingResource));
+        } finally {
+            uninstallBundles(bundle2);
+        }
+        Assert.assertEquals(ROUTE_UNKNOWN, getResourceRoute(bundle2, bundleResource));
+        Assert.assertEquals(ROUTE_UNKNOWN, getResourceRoute(bundle2, missingResource));
+    }
+
+    /**
+     * Looking up a capability by every value of its name attribute that holds a list. The lookup checks the current
+     * state of the bundle.
+     */
+    @Test
+    public void testSchemaCapabilityWithNameList() {
+        installAndStartBundle("bundle3", "META-INF/MANIFEST.properties", "META-INF/liquibase/listed.xml");
+        Bundle bundle3 = bundleContext.getBundle("bundle3");
+        try {
+            for (String schemaName : new String[] { "listedFirst", "listedSecond" }) {
+                Map<Bundle, List<BundleCapability>> bundles =
+                        LiquibaseOSGiUtil.findBundlesBySchemaExpression(schemaName, bundleContext, Bundle.ACTIVE);
+                Assert.assertEquals(1, bundles.size());
+                Assert.assertEquals(1, bundles.get(bundle3).size());
+            }
+
+            bundle3.stop();
+            Assert.assertTrue(LiquibaseOSGiUtil.findBundlesBySchemaExpression("listedFirst", bundleContext,
+                    Bundle.ACTIVE).isEmpty());
+            Assert.assertEquals(1, LiquibaseOSGiUtil.findBundlesBySchemaExpression("listedSecond", bundleContext,
+                    Bundle.RESOLVED).size());
+        } catch (BundleException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                bundle3.uninstall();
+            } catch (BundleException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Looking up capabilities by schema expressions twice, so the second lookup uses the compiled expressions from the
+     * cache. The result must be the same as evaluating the filter of the expression on the attributes of every
+     * liquibase.schema capability that has a resource attribute.
+     */
+    @Test
+    public void testSchemaExpressionsMatchLikeFilters() {
+        installAndStartBundles();
+        installAndStartBundle("bundle3", "META-INF/MANIFEST.properties", "META-INF/liquibase/listed.xml");
+        Bundle bundle3 = bundleContext.getBundle("bundle3");
+        try {
+            String[] schemaExpressions = new String[] { "carandperson", "listedSecond", "listed*", "noresource",
+                    "test;filter:=(resource=/META-INF/liquibase/test.xml)", "test;filter:=(resource=/other.xml)",
+                    "car*;filter:=(resource=*car.xml)" };
+            for (int i = 0; i < 2; i++) {
+                for (String schemaExpression : schemaExpressions) {
+                    Filter filter = LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
+                    Assert.assertSame(filter,
+                            LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression));
+
+                    Map<Bundle, List<BundleCapability>> expectedBundles = new HashMap<>();
+                    for (Bundle bundle : bundleContext.getBundles()) {
+                        if (bundle.getState() != Bundle.ACTIVE) {
+                            continue;
+                        }
+                        List<BundleCapability> capabilities = new ArrayList<>();
+                        for (BundleCapability capability : bundle.adapt(BundleWiring.class).getCapabilities(
+                                LiquibaseOSGiUtil.LIQUIBASE_CAPABILITY_NS)) {
+                            Map<String, Object> attributes = capability.getAttributes();
+                            if ((attributes.get(LiquibaseOSGiUtil.ATTR_SCHEMA_RESOURCE) != null)
+                                    && filter.matches(attributes)) {
+                                capabilities.add(capability);
+                            }
+                        }
+                        if (!capabilities.isEmpty()) {
+                            expectedBundles.put(bundle, capabilities);
+                        }
+                    }
+                    Assert.assertEquals(schemaExpression, expectedBundles, LiquibaseOSGiUtil
+                            .findBundlesBySchemaExpression(schemaExpression, bundleContext, Bundle.ACTIVE));
+                }
+            }
+            Assert.assertEquals(1, LiquibaseOSGiUtil.findBundlesBySchemaExpression("listed*", bundleContext,
+                    Bundle.ACTIVE).get(bundle3).size());
+            Assert.assertTrue(LiquibaseOSGiUtil.findBundlesBySchemaExpression("test;filter:=(resource=/other.xml)",
+                    bundleContext, Bundle.ACTIVE).isEmpty());
+        } finally {
+            uninstallBundles(bundle3);
+            removeBundles();
+        }
+    }
+
+    /**
+     * Parsing a changelog that does not conform to its XSD and a valid changelog one after the other on the same
+     * thread, so the pooled SAX parser that rejected the first changelog parses the second one and the compiled schema
+     * is reused. The invalid changelog must be rejected every time with the message of the XML parser of Liquibase.
+     */
+    @Test
+    public void testSchemaValidatedWithPooledParsers() {
+        String invalidChangeLogFile = "META-INF/liquibase/invalid.xml";
+        String validChangeLogFile = "META-INF/liquibase/elements.xml";
+        installAndStartBundle("bundle8", "META-INF/MANIFEST.properties", invalidChangeLogFile, validChangeLogFile);
+        Bundle bundle8 = bundleContext.getBundle("bundle8");
+        try {
+            ResourceAccessor resourceAccessor = new OSGiResourceAccessor(bundle8);
+            String expectedMessage = null;
+            try {
+                new XMLChangeLogSAXParser().parse(invalidChangeLogFile, new ChangeLogParameters(), resourceAccessor);
+                Assert.fail("The changelog should be rejected by the XML parser of Liquibase");
+            } catch (ChangeLogParseException e) {
+                expectedMessage = e.getMessage();
+            } catch (LiquibaseException e) {
+                throw new RuntimeException(e);
+            }
+            Assert.assertTrue(expectedMessage.indexOf("notAColumnAttribute") != -1);
+
+            for (int i = 0; i < 3; i++) {
+                try {
+                    ChangeLogParserFactory.getInstance().getParser(invalidChangeLogFile, resourceAccessor)
+                            .parse(invalidChangeLogFile, new ChangeLogParameters(), resourceAccessor);
+                    Assert.fail("The changelog should be rejected as it does not conform to its XSD");
+                } catch (ChangeLogParseException e) {
+                    Assert.assertEquals(expectedMessage, e.getMessage());
+                } catch (LiquibaseException e) {
+                    throw new RuntimeException(e);
+                }
+                assertParsedLikeLiquibaseParser(bundle8, validChangeLogFile);
+            }
+        } finally {
+            uninstallBundles(bundle8);
+        }
+    }
+
+    /**
+     * Looking up services with the service index that was generated at build time. The result must be the same as if
+     * every class of the packages in the Liquibase-Package header of the Liquibase bundle was loaded and checked.
+     */
+    @Test
+    public void testServiceIndexMatchesPackageScan() {
+        Bundle liquibaseBundle = FrameworkUtil.getBundle(ServiceLocator.class);
+        Assert.assertNotNull(liquibaseBundle.getEntry("META-INF/liquibase-services.idx"));
+        BundleWiring liquibaseWiring = liquibaseBundle.adapt(BundleWiring.class);
+        ClassLoader liquibaseClassLoader = liquibaseWiring.getClassLoader();
+        List<Class<?>> scannedClasses = new ArrayList<>();
+        for (String packageName : liquibaseBundle.getHeaders().get("Liquibase-Package").split(",")) {
+            String packagePath = packageName.trim().replace('.', '/');
+            if (packagePath.isEmpty()) {
+                continue;
+            }
+            for (String resource : liquibaseWiring.listResources(packagePath, "*.class",
+                    BundleWiring.LISTRESOURCES_RECURSE)) {
+                String className = resource.substring(0, resource.length() - ".class".length()).replace('/', '.');
+                try {
+                    scannedClasses.add(liquibaseClassLoader.loadClass(className));
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // The class cannot be used as a service
+                }
+            }
+        }
+
+        ServiceLocator.reset();
+        try {
+            for (Class<?> service : Arrays.asList(Change.class, ChangeLogParser.class, Database.class,
+                    LiquibaseDataType.class, Precondition.class, SqlGenerator.class)) {
+                Set<Class<?>> scannedImplementations = new HashSet<>();
+                for (Class<?> scannedClass : scannedClasses) {
+                    if (isServiceImplementation(scannedClass, service)) {
+                        scannedImplementations.add(scannedClass);
+                    }
+                }
+                Set<Class<?>> implementations =
+                        new HashSet<Class<?>>(Arrays.asList(ServiceLocator.getInstance().findClasses(service)));
+                Assert.assertFalse(service.getName(), implementations.isEmpty());
+                Assert.assertEquals(service.getName(), scannedImplementations, implementations);
+            }
+        } catch (ServiceNotFoundException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ServiceLocator.reset();
+        }
+    }
+
+    /**
+     * Looking up a service in a package that is not in the service index. The class files are checked before loading
+     * the classes, so only the implementations of the service and their supertypes may be loaded by the lookup.
+     */
+    @Test
+    public void testServiceLookupLoadsOnlyImplementations() {
+        String packageName = "liquibase.util.csv";
+        BundleWiring liquibaseWiring = FrameworkUtil.getBundle(ServiceLocator.class).adapt(BundleWiring.class);
+        ClassLoader liquibaseClassLoader = liquibaseWiring.getClassLoader();
+        try {
+            Method findLoadedClass = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            findLoadedClass.setAccessible(true);
+            Set<String> notLoadedClasses = new HashSet<>();
+            for (String resource : liquibaseWiring.listResources(packageName.replace('.', '/'), "*.class",
+                    BundleWiring.LISTRESOURCES_RECURSE)) {
+                String className = resource.substring(0, resource.length() - ".class".length()).replace('/', '.');
+                if (findLoadedClass.invoke(liquibaseClassLoader, className) == null) {
+                    notLoadedClasses.add(className);
+                }
+            }
+
+            ServiceLocator.reset();
+            ServiceLocator serviceLocator = ServiceLocator.getInstance();
+            serviceLocator.addPackageToScan(packageName);
+            Set<Class<?>> implementations = new HashSet<>();
+            for (Class<?> implementation : serviceLocator.findClasses(MappingStrategy.class)) {
+                implementations.add(implementation);
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList(ColumnPositionMappingStrategy.class,
+                    HeaderColumnNameMappingStrategy.class, HeaderColumnNameTranslateMappingStrategy.class)),
+                    implementations);
+
+            for (String className : notLoadedClasses) {
+                Class<?> loadedClass = (Class<?>) findLoadedClass.invoke(liquibaseClassLoader, className);
+                Assert.assertTrue(className + " should not be loaded",
+                        (loadedClass == null) || MappingStrategy.class.isAssignableFrom(loadedClass));
+            }
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException
+                | ServiceNotFoundException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ServiceLocator.reset();
+        }
+    }
+
+    /**
+     * Streaming changelogs that have changelog level preconditions or a rollback that refers to another change set by
+     * id. Neither can be supported in a streamed changelog, so the parse must fail instead of ignoring them.
+     */
+    @Test
+    public void testStreamRejectsPreconditionsAndRollbackById() {
+        installAndStartBundle("bundle5", "META-INF/MANIFEST.properties",
+                "META-INF/liquibase/stream_preconditions.xml", "META-INF/liquibase/stream_rollback.xml");
+        Bundle bundle5 = bundleContext.getBundle("bundle5");
+        try {
+            for (String changeLogFile : new String[] { "META-INF/liquibase/stream_preconditions.xml",
+                    "META-INF/liquibase/stream_rollback.xml" }) {
+                ChangeSetStream stream = ChangeSetStream.open(changeLogFile, new ChangeLogParameters(),
+                        new OSGiResourceAccessor(bundle5), 4);
+                try {
+                    while (stream.next() != null) {
+                        // The parse must fail before the end of the stream
+                    }
+                    Assert.fail("Streaming " + changeLogFile + " should fail");
+                } catch (LiquibaseException e) {
+                    Assert.assertTrue(e.getMessage(), e.getMessage().contains(changeLogFile));
+                } finally {
+                    stream.close();
+                }
+            }
+        } finally {
+            uninstallBundles(bundle5);
+        }
+    }
+
+    /**
+     * Updating the database with a streamed changelog that includes another changelog. The change sets of both
+     * changelogs must be executed and a second update must skip them as they ran already.
+     */
+    @Test
+    public void testStreamUpdate() {
+        installAndStartBundle("bundle5", "META-INF/MANIFEST.properties", "META-INF/liquibase/stream.xml",
+                "META-INF/liquibase/stream_included.xml");
+        Bundle bundle5 = bundleContext.getBundle("bundle5");
+        Database database = null;
+        try {
+            Connection connection = dataSource.getConnection();
+            database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            for (int i = 0; i < 2; i++) {
+                ChangeSetStream.update("META-INF/liquibase/stream.xml", new ChangeLogParameters(database),
+                        new OSGiResourceAccessor(bundle5), 4, database, new Contexts());
+                assertTableExists("stream_root");
+                assertTableExists("stream_included");
+            }
+        } catch (SQLException | LiquibaseException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (database != null) {
+                try {
+                    database.close();
+                } catch (DatabaseException e) {
+                    e.printStackTrace();
+                }
+            }
+            uninstallBundles(bundle5);
+            dropAll();
+        }
+    }
 }